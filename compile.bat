@@ -18,6 +18,10 @@ jar cfm ..\IoTDevice.jar deviceManifest.txt -C device .
 jar uf ..\IoTDevice.jar -C utils Message.class
 jar uf ..\IoTDevice.jar -C utils MessageCode.class
 jar uf ..\IoTDevice.jar -C utils Utils.class
+jar uf ..\IoTDevice.jar -C utils MessageFrames.class
+jar uf ..\IoTDevice.jar -C utils MessageCodec.class
+jar uf ..\IoTDevice.jar -C utils SerializedMessageCodec.class
+jar uf ..\IoTDevice.jar -C utils BinaryMessageCodec.class
 
 cd ..
 rd /s /q bin
\ No newline at end of file
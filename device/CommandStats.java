@@ -0,0 +1,87 @@
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Classe que representa as estatísticas dos pedidos de um teste de carga (modo headless
+ * do IoTDevice e LoadGenerator): o número de pedidos, de erros e o histograma das
+ * latências de cada comando. Pode ser usada por várias threads ao mesmo tempo.
+ *
+ * Um pedido conta como erro se a resposta não for OK nem NOT_MODIFIED.
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class CommandStats {
+
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> errors = new ConcurrentSkipListMap<>();
+
+    /**
+     * Método que regista um pedido
+     *
+     * @param command comando do pedido
+     * @param nanos   latência do pedido, em nanossegundos
+     * @param code    código da resposta
+     */
+    public void record(String command, long nanos, MessageCode code) {
+        latencies.computeIfAbsent(command, k -> new LatencyHistogram()).record(nanos);
+        if (code != MessageCode.OK && code != MessageCode.NOT_MODIFIED) {
+            errors.computeIfAbsent(command, k -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * Método que devolve o número total de pedidos registados
+     *
+     * @return número de pedidos
+     */
+    public long getRequests() {
+        long total = 0;
+        for (LatencyHistogram histogram : latencies.values()) {
+            total += histogram.getCount();
+        }
+        return total;
+    }
+
+    /**
+     * Método que devolve o número total de pedidos com erro
+     *
+     * @return número de erros
+     */
+    public long getErrors() {
+        long total = 0;
+        for (LongAdder count : errors.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Método que imprime a tabela das estatísticas de cada comando
+     *
+     * @param out          onde imprimir
+     * @param elapsedNanos duração do teste, em nanossegundos
+     */
+    public void print(PrintStream out, long elapsedNanos) {
+        double seconds = Math.max(1, elapsedNanos) / 1e9;
+        out.printf("%d requests in %.1f s (%.1f req/s), %d errors%n", getRequests(), seconds,
+                getRequests() / seconds, getErrors());
+        out.printf("%-8s %10s %10s %8s %9s %9s %9s %9s %9s %9s%n", "command", "count", "req/s", "errors",
+                "mean(ms)", "p50(ms)", "p90(ms)", "p99(ms)", "p99.9(ms)", "max(ms)");
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            LongAdder failed = errors.get(entry.getKey());
+            out.printf("%-8s %10d %10.1f %8d %9.3f", entry.getKey(), histogram.getCount(),
+                    histogram.getCount() / seconds, failed == null ? 0 : failed.sum(), histogram.getMean() / 1e6);
+            for (double percentile : PERCENTILES) {
+                out.printf(" %9.3f", histogram.getPercentile(percentile) / 1e6);
+            }
+            out.printf(" %9.3f%n", histogram.getMax() / 1e6);
+        }
+    }
+}
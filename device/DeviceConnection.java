@@ -0,0 +1,192 @@
+import java.io.*;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Classe que representa a ligação de um dispositivo ao servidor sem interação com a
+ * consola, usada pelo modo headless do IoTDevice e pelo LoadGenerator.
+ *
+ * Faz a negociação do formato das mensagens, a autenticação (utilizador, device id e
+ * verificação do executável) e os pedidos, um de cada vez: cada pedido espera pela sua
+ * resposta. As notificações dos dominios subscritos (PUSH) que cheguem antes de uma
+ * resposta são ignoradas e a imagem enviada a seguir à resposta de um RI é lida e
+ * descartada, para a ligação continuar sincronizada com o servidor.
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class DeviceConnection implements Closeable {
+
+    /**
+     * Tamanho das partes em que as imagens grandes são enviadas (EIB, EIC e EIE)
+     */
+    public static final int IMAGE_CHUNK_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final MessageCodec codec;
+    private final byte[] skipBuffer = new byte[8 * 1024];
+
+    /**
+     * Construtor de uma DeviceConnection, que liga ao servidor e negoceia o formato das
+     * mensagens
+     *
+     * @param host endereço do servidor
+     * @param port porto do servidor
+     * @throws IOException se não for possível ligar ao servidor
+     */
+    public DeviceConnection(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        try {
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            codec = MessageFrames.clientHandshake(in, out, BinaryMessageCodec.INSTANCE,
+                    SerializedMessageCodec.INSTANCE);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Método que autentica o utilizador e o dispositivo e faz a verificação do executável,
+     * com o jar de onde esta classe foi carregada (IoTDevice.jar)
+     *
+     * @param user     nome do utilizador
+     * @param password password do utilizador (cria o utilizador se não existir)
+     * @param devId    id do dispositivo
+     * @throws IOException se algum dos passos for recusado ou ocorrer um erro de comunicação
+     */
+    public void authenticate(String user, String password, String devId) throws IOException {
+        Message msg = new Message();
+        msg.setUser(user);
+        msg.setPassword(password);
+        MessageCode code = exchange(msg).getCode();
+        if (code != MessageCode.OK_USER && code != MessageCode.OK_NEW_USER) {
+            throw new IOException("User " + user + " rejected: " + code.getDescription());
+        }
+
+        msg = new Message();
+        msg.setDevId(devId);
+        code = exchange(msg).getCode();
+        if (code != MessageCode.OK_DEVID) {
+            throw new IOException("Device " + devId + " rejected: " + code.getDescription());
+        }
+
+        Path jarPath;
+        try {
+            jarPath = Paths.get(DeviceConnection.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException("Executable not found", e);
+        }
+        msg = new Message();
+        msg.setSize(Files.size(jarPath));
+        msg.setFileName(jarPath.getFileName().toString());
+        code = exchange(msg).getCode();
+        if (code != MessageCode.OK_TESTED) {
+            throw new IOException("Exec file check failed: " + code.getDescription());
+        }
+    }
+
+    /**
+     * Método que envia um pedido e espera pela resposta
+     *
+     * @param msg pedido
+     * @return resposta do servidor
+     * @throws IOException se ocorrer um erro de comunicação
+     */
+    public Message request(Message msg) throws IOException {
+        Message reply = exchange(msg);
+        if ("RI".equals(msg.getCommand()) && reply.getCode() == MessageCode.OK && reply.getData() == null
+                && reply.getSize() != null) {
+            skipFully(reply.getSize());
+        }
+        return reply;
+    }
+
+    /**
+     * Método que envia uma imagem: numa única mensagem (EI) se couber numa parte, ou por
+     * partes de IMAGE_CHUNK_SIZE bytes (EIB, EIC e EIE)
+     *
+     * @param image conteúdo da imagem
+     * @return resposta do servidor
+     * @throws IOException se ocorrer um erro de comunicação
+     */
+    public Message sendImage(byte[] image) throws IOException {
+        Message msg = new Message();
+        msg.setSize((long) image.length);
+        if (image.length <= IMAGE_CHUNK_SIZE) {
+            msg.setCommand("EI");
+            msg.setData(image);
+            return exchange(msg);
+        }
+
+        msg.setCommand("EIB");
+        msg.setVersion((long) Arrays.hashCode(image) * 31 + image.length);
+        Message reply = exchange(msg);
+        if (reply.getCode() != MessageCode.OK) {
+            return reply;
+        }
+        for (long offset = reply.getSize(); offset < image.length; offset += IMAGE_CHUNK_SIZE) {
+            msg = new Message();
+            msg.setCommand("EIC");
+            msg.setSize(offset);
+            msg.setData(Arrays.copyOfRange(image, (int) offset,
+                    (int) Math.min(image.length, offset + IMAGE_CHUNK_SIZE)));
+            MessageFrames.writeFrame(out, codec, msg);
+        }
+        msg = new Message();
+        msg.setCommand("EIE");
+        return exchange(msg);
+    }
+
+    /**
+     * Método que termina a sessão (EXIT) e fecha a ligação
+     */
+    @Override
+    public void close() {
+        try {
+            Message msg = new Message();
+            msg.setCommand("EXIT");
+            MessageFrames.write(out, codec, msg);
+            MessageFrames.read(in, codec, MessageFrames.MAX_REPLY_SIZE);
+        } catch (IOException e) {
+            // o servidor já fechou a ligação
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing socket");
+        }
+    }
+
+    /**
+     * Método que envia uma mensagem e lê a resposta, ignorando as notificações (PUSH)
+     */
+    private Message exchange(Message msg) throws IOException {
+        MessageFrames.write(out, codec, msg);
+        Message reply = MessageFrames.read(in, codec, MessageFrames.MAX_REPLY_SIZE);
+        while ("PUSH".equals(reply.getCommand())) {
+            reply = MessageFrames.read(in, codec, MessageFrames.MAX_REPLY_SIZE);
+        }
+        return reply;
+    }
+
+    private void skipFully(long size) throws IOException {
+        long remaining = size;
+        while (remaining > 0) {
+            int n = in.read(skipBuffer, 0, (int) Math.min(skipBuffer.length, remaining));
+            if (n < 0) {
+                throw new EOFException("Connection closed while receiving image");
+            }
+            remaining -= n;
+        }
+    }
+}
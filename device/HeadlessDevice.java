@@ -0,0 +1,407 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Classe que representa o modo headless do IoTDevice: o dispositivo corre sem consola,
+ * com a password dada na linha de comandos, e executa um script de comandos ou simula um
+ * sensor (temperaturas a um ritmo fixo, imagens e RT periódicos). Durante o teste não é
+ * escrito nada na consola; no fim são impressos o débito e as latências de cada comando.
+ *
+ * Na simulação cada pedido tem um instante marcado e a latência é medida a partir desse
+ * instante, não do envio: se o servidor atrasar, os pedidos seguintes saem atrasados e esse
+ * atraso conta na latência (sem isso um servidor lento pareceria mais rápido).
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class HeadlessDevice {
+
+    private static final long DEFAULT_DURATION = 60;
+    private static final int TEMPERATURE_SIZE = 12;
+    private static final long MAX_WAIT = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private String password;
+    private String script;
+    private int repeat = 1;
+    private double etRate;
+    private long eiPeriod;
+    private String eiFile;
+    private long rtPeriod;
+    private String rtDomain;
+    private long duration = DEFAULT_DURATION;
+
+    private long batchDelay;
+
+    private DeviceConnection conn;
+    private final CommandStats stats = new CommandStats();
+    private ByteBuffer batch;
+    private long batchStart;
+    private long lastReading;
+
+    private volatile boolean stopping = false;
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    /**
+     * Método que lê uma opção do modo headless
+     *
+     * @param arg opção passada na linha de comandos
+     * @return true se a opção é do modo headless
+     * @throws IllegalArgumentException se o valor da opção for inválido
+     */
+    public boolean setOption(String arg) {
+        String[] parts = arg.split("=", 2);
+        if (parts.length != 2 || parts[1].isEmpty()) {
+            return false;
+        }
+        String value = parts[1];
+        try {
+            switch (parts[0]) {
+                case "--password":
+                    password = value;
+                    return true;
+                case "--script":
+                    script = value;
+                    return true;
+                case "--repeat":
+                    repeat = Integer.parseInt(value);
+                    return repeat > 0 || invalid(arg);
+                case "--et-rate":
+                    etRate = Double.parseDouble(value);
+                    return etRate > 0 || invalid(arg);
+                case "--ei": {
+                    String[] ei = value.split(":", 2);
+                    eiPeriod = Long.parseLong(ei[0]);
+                    eiFile = ei.length > 1 ? ei[1] : null;
+                    return (eiPeriod > 0 && eiFile != null) || invalid(arg);
+                }
+                case "--rt": {
+                    String[] rt = value.split(":", 2);
+                    rtPeriod = Long.parseLong(rt[0]);
+                    rtDomain = rt.length > 1 ? rt[1] : null;
+                    return (rtPeriod > 0 && rtDomain != null) || invalid(arg);
+                }
+                case "--duration":
+                    duration = Long.parseLong(value);
+                    return duration >= 0 || invalid(arg);
+                default:
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            return invalid(arg);
+        }
+    }
+
+    private static boolean invalid(String arg) {
+        throw new IllegalArgumentException("Invalid value in option " + arg);
+    }
+
+    /**
+     * Método que indica se o dispositivo deve correr em modo headless
+     *
+     * @return true se foi dada a password na linha de comandos
+     */
+    public boolean isEnabled() {
+        return password != null;
+    }
+
+    /**
+     * Método que corre o dispositivo em modo headless e imprime as estatísticas no fim
+     *
+     * @param host       endereço do servidor
+     * @param port       porto do servidor
+     * @param devId      id do dispositivo
+     * @param user       nome do utilizador
+     * @param batchSize  número de temperaturas por lote (ETB), 0 para enviar cada ET
+     * @param batchDelay tempo máximo (ms) que uma temperatura espera no lote
+     * @return 0 se o teste correu até ao fim, -1 se houve um erro de ligação
+     */
+    public int run(String host, int port, String devId, String user, int batchSize, long batchDelay) {
+        boolean simulate = etRate > 0 || eiPeriod > 0 || rtPeriod > 0;
+        if (script == null && !simulate || script != null && simulate) {
+            System.out.println("Headless mode needs --script=<file> or a simulation (--et-rate, --ei, --rt)");
+            return -1;
+        }
+        this.batchDelay = batchDelay;
+        if (batchSize > 0) {
+            batch = ByteBuffer.allocate(batchSize * TEMPERATURE_SIZE);
+        }
+
+        List<Message> steps = null;
+        byte[] image = null;
+        try {
+            if (script != null) {
+                steps = loadScript(script);
+            } else if (eiFile != null) {
+                image = Files.readAllBytes(Paths.get(eiFile));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return -1;
+        }
+
+        // Ctr+C termina o teste, as estatísticas são impressas na mesma
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stopping = true;
+            try {
+                finished.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+
+        int status = 0;
+        long start = System.nanoTime();
+        try {
+            conn = new DeviceConnection(host, port);
+            conn.authenticate(user, password, devId);
+            start = System.nanoTime();
+            if (steps != null) {
+                runScript(steps);
+            } else {
+                simulate(image, start);
+            }
+            flushReadings();
+        } catch (IOException e) {
+            System.out.println("Headless run stopped: " + e.getMessage());
+            status = -1;
+        } finally {
+            if (conn != null) {
+                conn.close();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println("Device " + user + ":" + devId + " (headless)");
+        stats.print(System.out, elapsed);
+        finished.countDown();
+        return status;
+    }
+
+    /**
+     * Método que lê um script: um comando por linha, com a mesma sintaxe do modo interativo
+     * (CREATE, ADD, RD, ET, EI, RT, RI, RTS, SUBSCRIBE, UNSUBSCRIBE) e SLEEP <ms>. As linhas
+     * vazias e as começadas por # são ignoradas
+     *
+     * @param path ficheiro do script
+     * @return pedidos do script (os SLEEP têm o comando SLEEP e a duração em size)
+     * @throws IOException              se não for possível ler o script ou uma imagem
+     * @throws IllegalArgumentException se alguma linha não for um comando válido
+     */
+    private static List<Message> loadScript(String path) throws IOException {
+        List<Message> steps = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(Paths.get(path))) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] input = line.split("\\s+");
+            String command = input[0].toUpperCase();
+            Message msg = new Message();
+            msg.setCommand(command);
+            boolean valid = input.length == 2;
+            switch (command) {
+                case "CREATE":
+                case "RD":
+                case "RT":
+                case "RTS":
+                case "SUBSCRIBE":
+                case "UNSUBSCRIBE":
+                    msg.setDomain(valid ? input[1] : null);
+                    break;
+                case "ADD":
+                    valid = input.length == 3;
+                    if (valid) {
+                        msg.setUser(input[1]);
+                        msg.setDomain(input[2]);
+                    }
+                    break;
+                case "ET":
+                    msg.setTemp(valid ? input[1] : null);
+                    break;
+                case "EI":
+                    if (valid) {
+                        msg.setData(Files.readAllBytes(Paths.get(input[1])));
+                    }
+                    break;
+                case "RI": {
+                    String[] dev = valid ? input[1].split(":") : new String[0];
+                    valid = dev.length == 2;
+                    if (valid) {
+                        msg.setUser(dev[0]);
+                        msg.setDevId(dev[1]);
+                    }
+                    break;
+                }
+                case "SLEEP":
+                    try {
+                        msg.setSize(valid ? Long.parseLong(input[1]) : null);
+                    } catch (NumberFormatException e) {
+                        valid = false;
+                    }
+                    break;
+                default:
+                    valid = false;
+                    break;
+            }
+            if (!valid) {
+                throw new IllegalArgumentException("Invalid command in " + path + ":" + lineNumber + ": " + line);
+            }
+            steps.add(msg);
+        }
+        return steps;
+    }
+
+    /**
+     * Método que executa os pedidos do script as vezes pedidas
+     */
+    private void runScript(List<Message> steps) throws IOException {
+        for (int i = 0; i < repeat && !stopping; i++) {
+            for (Message step : steps) {
+                if (stopping) {
+                    return;
+                }
+                long now = System.nanoTime();
+                switch (step.getCommand()) {
+                    case "SLEEP":
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(step.getSize()));
+                        break;
+                    case "ET":
+                        float temp;
+                        try {
+                            temp = Float.parseFloat(step.getTemp());
+                        } catch (NumberFormatException e) {
+                            send(step, now);
+                            break;
+                        }
+                        sendTemperature(temp, now);
+                        break;
+                    case "EI":
+                        sendImage(step.getData(), now);
+                        break;
+                    default:
+                        send(step, now);
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Método que simula um sensor até ao fim da duração pedida (ou até Ctr+C se for 0):
+     * temperaturas a etRate por segundo, uma imagem a cada eiPeriod ms e um RT ao dominio
+     * rtDomain a cada rtPeriod ms, este com a versão da última resposta (NOT_MODIFIED se os
+     * dados não mudaram, como num dashboard)
+     */
+    private void simulate(byte[] image, long start) throws IOException {
+        long end = duration == 0 ? Long.MAX_VALUE : start + TimeUnit.SECONDS.toNanos(duration);
+        long etInterval = etRate > 0 ? (long) (1e9 / etRate) : 0;
+        long nextEt = etRate > 0 ? start : Long.MAX_VALUE;
+        long nextEi = eiPeriod > 0 ? start : Long.MAX_VALUE;
+        long nextRt = rtPeriod > 0 ? start : Long.MAX_VALUE;
+        Random random = new Random();
+        Message rt = new Message();
+        rt.setCommand("RT");
+        rt.setDomain(rtDomain);
+
+        while (!stopping) {
+            long batchDeadline = batch != null && batch.position() > 0
+                    ? batchStart + TimeUnit.MILLISECONDS.toNanos(batchDelay)
+                    : Long.MAX_VALUE;
+            long next = Math.min(Math.min(nextEt, nextEi), Math.min(nextRt, batchDeadline));
+            if (next >= end) {
+                return;
+            }
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                // acorda pelo menos a cada MAX_WAIT para terminar depressa com Ctr+C
+                LockSupport.parkNanos(Math.min(wait, MAX_WAIT));
+                continue;
+            }
+
+            if (nextEt == next) {
+                // temperatura a variar devagar, com algum ruído
+                double minutes = (next - start) / 60e9;
+                float temp = (float) (20 + 5 * Math.sin(minutes * Math.PI) + random.nextGaussian() * 0.1);
+                sendTemperature(Math.round(temp * 10) / 10f, next);
+                nextEt += etInterval;
+            } else if (nextEi == next) {
+                sendImage(image, next);
+                nextEi += TimeUnit.MILLISECONDS.toNanos(eiPeriod);
+            } else if (nextRt == next) {
+                Message reply = send(rt, next);
+                if (reply.getCode() == MessageCode.OK || reply.getCode() == MessageCode.NOT_MODIFIED) {
+                    rt.setVersion(reply.getVersion());
+                }
+                nextRt += TimeUnit.MILLISECONDS.toNanos(rtPeriod);
+            } else {
+                flushReadings();
+            }
+        }
+    }
+
+    /**
+     * Método que envia um pedido e regista a sua latência, a partir do instante dado
+     */
+    private Message send(Message msg, long since) throws IOException {
+        Message reply = conn.request(msg);
+        stats.record(msg.getCommand(), System.nanoTime() - since, reply.getCode());
+        return reply;
+    }
+
+    /**
+     * Método que envia uma imagem e regista a latência, a partir do instante dado
+     */
+    private void sendImage(byte[] image, long since) throws IOException {
+        Message reply = conn.sendImage(image);
+        stats.record("EI", System.nanoTime() - since, reply.getCode());
+    }
+
+    /**
+     * Método que envia uma temperatura (ET) ou a junta ao lote, enviado (ETB) quando fica
+     * cheio
+     */
+    private void sendTemperature(float temp, long since) throws IOException {
+        if (batch == null) {
+            Message msg = new Message();
+            msg.setCommand("ET");
+            msg.setTemp(Float.toString(temp));
+            send(msg, since);
+            return;
+        }
+        if (batch.position() == 0) {
+            batchStart = since;
+        }
+        // o servidor só aceita timestamps estritamente crescentes
+        lastReading = Math.max(System.currentTimeMillis(), lastReading + 1);
+        batch.putLong(lastReading).putFloat(temp);
+        if (!batch.hasRemaining()) {
+            flushReadings();
+        }
+    }
+
+    /**
+     * Método que envia as temperaturas do lote (ETB), se houver alguma
+     */
+    private void flushReadings() throws IOException {
+        if (batch == null || batch.position() == 0) {
+            return;
+        }
+        Message msg = new Message();
+        msg.setCommand("ETB");
+        msg.setData(Arrays.copyOf(batch.array(), batch.position()));
+        batch.clear();
+        send(msg, System.nanoTime());
+    }
+}
@@ -1,9 +1,19 @@
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Classe main do dispositivo 
@@ -14,13 +24,52 @@ import java.util.Scanner;
 public class IoTDevice {
 
     private static Scanner sc;
-    private static ObjectInputStream in = null;
-    private static ObjectOutputStream out = null;
+    private static DataInputStream in = null;
+    private static DataOutputStream out = null;
+    private static MessageCodec codec = null;
 
     private static boolean closed;
 
     private static Socket clientSocket;
 
+    // versão dos dados recebidos por RT (RT:<dm>) e RI (RI:<user-id>:<dev_id>), enviada nos
+    // pedidos seguintes para o servidor responder NOT_MODIFIED se os dados não mudaram
+    private static final Map<String, Long> versions = new HashMap<>();
+
+    // id do último pedido enviado em pipelining
+    private static long lastRequestId = 0;
+
+    // tamanho das partes em que as imagens são enviadas (EI) e lidas (RI)
+    private static final int IMAGE_CHUNK_SIZE = 64 * 1024;
+
+    // envio das temperaturas em lotes (--et-batch=N[:ms]): as leituras do ET ficam no lote
+    // ([long timestamp][float temperatura]) até serem N ou a mais antiga ter ms milissegundos,
+    // e são enviadas numa só mensagem (ETB). Sem lotes cada ET é enviado logo. O servidor
+    // só aceita timestamps estritamente crescentes, por isso duas leituras no mesmo ms ficam
+    // em ms seguidos
+    private static final int TEMPERATURE_SIZE = 12;
+    private static final long DEFAULT_BATCH_DELAY = 1000;
+    private static int batchSize = 0;
+    private static long batchDelay = DEFAULT_BATCH_DELAY;
+    private static ByteBuffer batch;
+    private static long batchStart;
+    private static long lastReading;
+
+    // um comando de cada vez no socket (comandos lidos do terminal, envio dos lotes por tempo
+    // e leitura das notificações dos dominios subscritos)
+    private static final ReentrantLock ioLock = new ReentrantLock();
+    private static ScheduledExecutorService timer;
+
+    // temperaturas dos dominios subscritos (SUBSCRIBE), atualizadas pelas notificações, e
+    // intervalo (ms) entre verificações de notificações quando não há comandos a correr
+    private static final Map<String, HashMap<String, Float>> subscribed = new HashMap<>();
+    private static final long PUSH_POLL_INTERVAL = 100;
+
+    // alterações de um dominio que chegam antes da resposta ao seu SUBSCRIBE (o servidor pode
+    // enviar notificações logo que o dominio fica subscrito); são aplicadas depois das
+    // temperaturas da resposta
+    private static final Map<String, HashMap<String, Float>> subscribing = new HashMap<>();
+
     /**
      * Método main do dispositivo
      * @param args argumentos passados na linha de comandos
@@ -30,10 +79,21 @@ public class IoTDevice {
         closed = false;
         sc = new Scanner(System.in);
 
-        if (args.length == 0 || args.length > 3) {
+        if (args.length < 3) {
             System.out.println("Wrong amount of paramenters!");
             System.exit(-1);
         }
+        HeadlessDevice headless = new HeadlessDevice();
+        for (int i = 3; i < args.length; i++) {
+            try {
+                if (!headless.setOption(args[i])) {
+                    parseBatchOption(args[i]);
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                System.exit(-1);
+            }
+        }
 
         String serverAddress = args[0];
         String id = args[1];
@@ -44,8 +104,15 @@ public class IoTDevice {
         int port = (addr.length > 1) ? Integer.parseInt(addr[1]) : 12345;
         clientSocket = null;
 
+        if (headless.isEnabled()) {
+            System.exit(headless.run(ipHostname, port, id, username, batchSize, batchDelay));
+        }
+
         try {
             clientSocket = new Socket(ipHostname, port);
+            // os pedidos são pequenos e cada um espera pela resposta, sem o algoritmo de
+            // Nagle o fim de um frame não fica à espera do ACK do servidor
+            clientSocket.setTcpNoDelay(true);
 
         } catch (IOException e) {
             System.err.println(e.getMessage());
@@ -58,8 +125,10 @@ public class IoTDevice {
         Message msg = new Message();
         try {
 
-            in = new ObjectInputStream(clientSocket.getInputStream());
-            out = new ObjectOutputStream(clientSocket.getOutputStream());
+            in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+            codec = MessageFrames.clientHandshake(in, out, BinaryMessageCodec.INSTANCE,
+                    SerializedMessageCodec.INSTANCE);
 
             String password;
             boolean authenticated = false;
@@ -69,9 +138,9 @@ public class IoTDevice {
                     password = sc.nextLine();
                     msg.setUser(username);
                     msg.setPassword(password);
-                    out.writeObject(msg);
+                    MessageFrames.write(out, codec, msg);
 
-                    msg = (Message) in.readObject();
+                    msg = MessageFrames.read(in, codec, MessageFrames.MAX_REPLY_SIZE);
 
                     System.out.println("Server response: " + msg.getCode() + "\n");
 
@@ -100,9 +169,9 @@ public class IoTDevice {
 
                 msg.clear();
                 msg.setDevId(id);
-                out.writeObject(msg);
+                MessageFrames.write(out, codec, msg);
 
-                msg = (Message) in.readObject();
+                msg = MessageFrames.read(in, codec, MessageFrames.MAX_REPLY_SIZE);
                 System.out.println("Server response: " + msg.getCode() + "\n");
 
                 switch (msg.getCode()) {
@@ -130,9 +199,9 @@ public class IoTDevice {
             msg.setSize(Files.size(jarPath));
             msg.setFileName(jarPath.getFileName().toString());
 
-            out.writeObject(msg);
+            MessageFrames.write(out, codec, msg);
 
-            msg = (Message) in.readObject();
+            msg = MessageFrames.read(in, codec, MessageFrames.MAX_REPLY_SIZE);
 
             switch (msg.getCode()) {
                 case NOK_TESTED:
@@ -148,6 +217,10 @@ public class IoTDevice {
                     break;
             }
 
+            if (batchSize > 0) {
+                startBatchTimer();
+            }
+
             printMenu();
             System.out.println("Command: ");
             do {
@@ -158,6 +231,12 @@ public class IoTDevice {
                     String[] input = sc.nextLine().split(" ");
                     String command = input[0].toUpperCase();
 
+                    ioLock.lock();
+                    // os outros comandos só são enviados depois das temperaturas em espera
+                    if (!command.equals("ET")) {
+                        flushTemperatures();
+                    }
+
                     switch (command) {
                         // CREATE <dm> - tenta criar um dominio <dm>
                         case "CREATE":
@@ -169,9 +248,9 @@ public class IoTDevice {
 
                                 msg.setCommand(command);
                                 msg.setDomain(input[1]);
-                                out.writeObject(msg);
+                                MessageFrames.write(out, codec, msg);
 
-                                msg = (Message) in.readObject();
+                                msg = readReply();
                                 System.out.println("Response: " + msg.getCode().getDescription());
 
                             }
@@ -187,9 +266,9 @@ public class IoTDevice {
                                 ;
                                 msg.setUser(input[1]);
                                 msg.setDomain(input[2]);
-                                out.writeObject(msg);
+                                MessageFrames.write(out, codec, msg);
 
-                                msg = (Message) in.readObject();
+                                msg = readReply();
                                 System.out.println("Response: " + msg.getCode().getDescription());
 
                             }
@@ -202,9 +281,9 @@ public class IoTDevice {
                             } else {
                                 msg.setCommand(command);
                                 msg.setDomain(input[1]);
-                                out.writeObject(msg);
+                                MessageFrames.write(out, codec, msg);
 
-                                msg = (Message) in.readObject();
+                                msg = readReply();
                                 System.out.println("Response: " + msg.getCode().getDescription());
 
                             }
@@ -214,15 +293,18 @@ public class IoTDevice {
                             if (input.length != 2) {
                                 System.out.println("Wrong format for command ET");
                                 System.out.println("Right format -> ET <float>");
+                            } else if (batchSize > 0) {
+                                addTemperature(input[1]);
                             } else {
                                 msg.setCommand(command);
                                 msg.setTemp(input[1]);
-                                out.writeObject(msg);
+                                MessageFrames.write(out, codec, msg);
 
-                                msg = (Message) in.readObject();
+                                msg = readReply();
                                 System.out.println("Response: " + msg.getCode().getDescription());
 
                             }
+                            break;
 
                             // EI <filename.jpg> - tenta registar Imagem com o path <filename.jpg> no dispositivo atual.
                         case "EI":
@@ -231,105 +313,258 @@ public class IoTDevice {
                                 System.out.println("Right format -> EI <filename.jpg>");
                             } else {
 
-                                msg.setCommand(command);
-                                msg.setData(Utils.getFileContents(input[1]));
-                                out.writeObject(msg);
-
-                                msg = (Message) in.readObject();
-                                System.out.println("Response: " + msg.getCode().getDescription());
+                                File image = new File(input[1]);
+                                if (!image.isFile()) {
+                                    System.out.println("File " + input[1] + " not found");
+                                    break;
+                                }
+                                msg = sendImage(image);
+                                if (msg.getCode() == MessageCode.OK && msg.getRevision() != null) {
+                                    System.out.println("Response: " + msg.getCode().getDescription() + ", version "
+                                            + msg.getRevision());
+                                } else {
+                                    System.out.println("Response: " + msg.getCode().getDescription());
+                                }
 
                             }
 
                             break;
                         // RT <dm> - tenta obter as últimas medições de temperatura de cada dispositivo do domínio <dm> do servidor
                         case "RT":
-                            if (input.length != 2) {
+                            if (input.length < 2) {
                                 System.out.println("Wrong format for command RT");
-                                System.out.println("Right format -> RT <dm>");
+                                System.out.println("Right format -> RT <dm> [<dm> ...]");
                             } else {
+                                // os pedidos dos vários dominios são enviados sem esperar pelas
+                                // respostas (pipelining) e as respostas são associadas pelo id
+                                Map<Long, String> pending = new HashMap<>();
+                                for (int i = 1; i < input.length; i++) {
+                                    Message request = new Message();
+                                    request.setCommand(command);
+                                    request.setDomain(input[i]);
+                                    request.setVersion(knownVersion("RT:" + input[i],
+                                            "device/devicesData/" + input[i] + "_temp.txt"));
+                                    request.setRequestId(++lastRequestId);
+                                    pending.put(lastRequestId, input[i]);
+                                    MessageFrames.writeFrame(out, codec, request);
+                                }
+                                out.flush();
 
-                                msg.setCommand(command);
-                                msg.setDomain(input[1]);
-                                out.writeObject(msg);
-
-                                msg = (Message) in.readObject();
-
-                                if (msg.getCode() == MessageCode.OK) {
-
-                                    if (Utils.createDir("device/devicesData")) {
-                                        Utils.writeByteArrayToFile(msg.getData(),
-                                                "device/devicesData/" + input[1] + "_temp.txt");
-
-                                        System.out.println(
-                                                "Response: " + msg.getCode().getDescription() + ", " + msg.getSize()
-                                                        + " (long)." +
-                                                        "File was saved in /device/devicesData with the name "
-                                                        + input[1] + "_temp.txt");
+                                while (!pending.isEmpty()) {
+                                    msg = readReply();
+                                    String domain = pending.remove(msg.getRequestId());
+                                    if (domain == null) {
+                                        throw new IOException("Unexpected reply " + msg.getRequestId());
                                     }
-
-                                } else if (msg.getCode() == MessageCode.NO_PERM) {
-                                    System.out.println("Response: " + msg.getCode().getDescription() + " de leitura");
-                                } else if (msg.getCode() == MessageCode.NO_DATA) {
-                                    System.out.println("Response: " + msg.getCode().getDescription()
-                                            + " # dominio não tem dados de temperatura");
-                                } else {
-                                    System.out.println("Response: " + msg.getCode().getDescription());
+                                    printDomainTemperatures(domain, msg);
                                 }
-
                             }
                             break;
-                        // RI <user-id>:<dev_id> - tenta receber a última Imagem registada pelo dispositivo <userid>:<dev_id> no servidor.
+                        // RI <user-id>:<dev_id> [versão] - tenta receber a última Imagem (ou uma versão anterior) registada pelo dispositivo <userid>:<dev_id> no servidor.
                         case "RI":
-                            if (input.length != 2) {
+                            Long revision = null;
+                            if (input.length == 3) {
+                                try {
+                                    revision = Long.parseLong(input[2]);
+                                } catch (NumberFormatException e) {
+                                    revision = -1L;
+                                }
+                            }
+                            if ((input.length != 2 && input.length != 3) || (revision != null && revision < 1)) {
                                 System.out.println("Wrong format for command RI");
-                                System.out.println("Right format -> RI <user-id>:<dev_id>");
+                                System.out.println("Right format -> RI <user-id>:<dev_id> [version]");
                             } else {
 
                                 String[] parts = input[1].split(":");
 
                                 if (parts.length == 1) {
                                     System.out.println("Wrong format for command RI");
-                                    System.out.println("Right format -> RI <user-id>:<dev_id>");
+                                    System.out.println("Right format -> RI <user-id>:<dev_id> [version]");
                                     break;
                                 }
                                 if (parts[1] == "") {
                                     System.out.println("Wrong format for command RI");
-                                    System.out.println("Right format -> RI <user-id>:<dev_id>");
+                                    System.out.println("Right format -> RI <user-id>:<dev_id> [version]");
                                     break;
                                 }
 
+                                // as versões anteriores são guardadas com o número da versão no nome
+                                String filename = input[1].replace(":", "_") + (revision == null ? "" : "_v" + revision);
+                                String path = "device/devicesData/" + filename + ".jpg";
+                                String versionKey = "RI:" + input[1] + (revision == null ? "" : ":" + revision);
                                 msg.setCommand(command);
                                 msg.setUser(parts[0]);
                                 msg.setDevId(parts[1]);
-                                out.writeObject(msg);
+                                msg.setRevision(revision);
+                                msg.setVersion(knownVersion(versionKey, path));
+                                MessageFrames.write(out, codec, msg);
 
-                                msg = (Message) in.readObject();
+                                msg = readReply();
 
-                                if (msg.getCode() == MessageCode.OK) {
-                                    if (Utils.createDir("device/devicesData")) {
-                                        String filename = input[1].replace(":", "_");
-                                        String path = "device/devicesData/" + filename + ".jpg";
-                                        File received = new File(path);
-                                        FileOutputStream fos = new FileOutputStream(received);
-                                        fos.write(msg.getData(), 0, Integer.parseInt(Long.toString(msg.getSize())));
+                                if (msg.getCode() == MessageCode.NOT_MODIFIED) {
+                                    System.out.println("Response: " + msg.getCode().getDescription()
+                                            + ", the file in /device/devicesData is up to date");
+                                } else if (msg.getCode() == MessageCode.OK) {
+                                    // a imagem vem a seguir à resposta, com msg.getSize() bytes
+                                    if (receiveImage(path, msg.getSize())) {
+                                        versions.put(versionKey, msg.getVersion());
                                         System.out.println(
                                                 "Response: " + msg.getCode().getDescription() + ", " + msg.getSize()
-                                                        + " (long)." +
+                                                        + " (long), version " + msg.getRevision() + "." +
                                                         "File was saved in /device/devicesData with the name "
                                                         + filename + ".jpg");
-                                        fos.close();
                                     }
                                 } else if (msg.getCode() == MessageCode.NO_PERM) {
                                     System.out.println("Response: " + msg.getCode().getDescription() + " de leitura");
                                 } else if (msg.getCode() == MessageCode.NO_DATA) {
                                     System.out.println("Response: " + msg.getCode().getDescription()
-                                            + " # esse device id não publicou dados");
+                                            + " # esse device id não publicou dados"
+                                            + (revision == null ? "" : " ou a versão " + revision + " já não existe"));
                                 } else {
                                     System.out.println("Response: " + msg.getCode().getDescription());
                                 }
 
                             }
                             break;
+                        // SUBSCRIBE <dm> - tenta subscrever as alterações das temperaturas do domínio <dm>
+                        case "SUBSCRIBE":
+                            if (input.length != 2) {
+                                System.out.println("Wrong format for command SUBSCRIBE");
+                                System.out.println("Right format -> SUBSCRIBE <dm>");
+                            } else {
+                                msg.setCommand(command);
+                                msg.setDomain(input[1]);
+                                if (!subscribed.containsKey(input[1])) {
+                                    subscribing.put(input[1], new HashMap<>());
+                                }
+                                MessageFrames.write(out, codec, msg);
+
+                                msg = readReply();
+                                HashMap<String, Float> early = subscribing.remove(input[1]);
+                                if (msg.getCode() == MessageCode.OK) {
+                                    HashMap<String, Float> temps = msg.getData() == null ? new HashMap<>()
+                                            : Utils.byteArrayToHashMap(msg.getData());
+                                    if (temps == null) {
+                                        temps = new HashMap<>();
+                                    }
+                                    if (early != null) {
+                                        temps.putAll(early);
+                                    }
+                                    if (subscribed.isEmpty()) {
+                                        startPushReader();
+                                    }
+                                    subscribed.put(input[1], temps);
+                                    System.out.println("Response: " + msg.getCode().getDescription() + ", "
+                                            + subscribed.get(input[1]).size()
+                                            + " devices with temperatures, changes will be shown as they arrive");
+                                } else if (msg.getCode() == MessageCode.NO_PERM) {
+                                    System.out.println("Response: " + msg.getCode().getDescription() + " de leitura");
+                                } else {
+                                    System.out.println("Response: " + msg.getCode().getDescription());
+                                }
+                            }
+                            break;
+                        // UNSUBSCRIBE <dm> - cancela a subscrição do domínio <dm>
+                        case "UNSUBSCRIBE":
+                            if (input.length != 2) {
+                                System.out.println("Wrong format for command UNSUBSCRIBE");
+                                System.out.println("Right format -> UNSUBSCRIBE <dm>");
+                            } else {
+                                msg.setCommand(command);
+                                msg.setDomain(input[1]);
+                                MessageFrames.write(out, codec, msg);
+
+                                msg = readReply();
+                                if (msg.getCode() == MessageCode.OK) {
+                                    subscribed.remove(input[1]);
+                                }
+                                System.out.println("Response: " + msg.getCode().getDescription());
+                            }
+                            break;
+                        // RTS <dm> - tenta obter o resumo das temperaturas do domínio <dm>
+                        case "RTS":
+                            if (input.length != 2) {
+                                System.out.println("Wrong format for command RTS");
+                                System.out.println("Right format -> RTS <dm>");
+                            } else {
+                                msg.setCommand(command);
+                                msg.setDomain(input[1]);
+                                MessageFrames.write(out, codec, msg);
+
+                                msg = readReply();
+
+                                if (msg.getCode() == MessageCode.OK) {
+                                    DataInputStream summary = new DataInputStream(
+                                            new ByteArrayInputStream(msg.getData()));
+                                    System.out.println("Response: " + msg.getCode().getDescription());
+                                    System.out.println("Dispositivos com temperatura: " + summary.readInt());
+                                    System.out.println("Mínimo: " + summary.readFloat());
+                                    System.out.println("Máximo: " + summary.readFloat());
+                                    System.out.println("Média: " + summary.readFloat());
+                                    System.out.println("Média móvel (5 min): " + summary.readFloat());
+                                    System.out.println("Última medição: " + new Date(summary.readLong()));
+                                } else if (msg.getCode() == MessageCode.NO_PERM) {
+                                    System.out.println("Response: " + msg.getCode().getDescription() + " de leitura");
+                                } else if (msg.getCode() == MessageCode.NO_DATA) {
+                                    System.out.println("Response: " + msg.getCode().getDescription()
+                                            + " # dominio não tem dados de temperatura");
+                                } else {
+                                    System.out.println("Response: " + msg.getCode().getDescription());
+                                }
+                            }
+                            break;
+                        // RH <dm|user-id:dev_id> <from> <to> [interval] - tenta obter o histórico de temperaturas
+                        // de um dominio ou de um dispositivo, opcionalmente agregado em buckets de tamanho [interval]
+                        case "RH":
+                            if (input.length != 4 && input.length != 5) {
+                                System.out.println("Wrong format for command RH");
+                                System.out.println("Right format -> RH <dm|user-id:dev_id> <from> <to> [interval]");
+                                break;
+                            }
+                            try {
+                                long now = System.currentTimeMillis();
+                                msg.setFrom(parseTime(input[2], now));
+                                msg.setTo(parseTime(input[3], now));
+                                if (input.length == 5) {
+                                    msg.setInterval(parseDuration(input[4]));
+                                }
+                            } catch (NumberFormatException e) {
+                                System.out.println("Invalid time. Use epoch ms, now or -<n>[s|m|h|d] (e.g. -24h)");
+                                break;
+                            }
+
+                            String[] target = input[1].split(":");
+                            if (target.length == 2 && !target[1].isEmpty()) {
+                                msg.setUser(target[0]);
+                                msg.setDevId(target[1]);
+                            } else {
+                                msg.setDomain(input[1]);
+                            }
+                            msg.setCommand(command);
+                            MessageFrames.write(out, codec, msg);
+
+                            msg = readReply();
+
+                            if (msg.getCode() == MessageCode.OK) {
+                                if (Utils.createDir("device/devicesData")) {
+                                    String filename = input[1].replace(":", "_") + "_history.txt";
+                                    Files.write(Paths.get("device/devicesData/" + filename),
+                                            historyToText(msg.getData()).getBytes());
+                                    System.out.println(
+                                            "Response: " + msg.getCode().getDescription() + ", " + msg.getSize()
+                                                    + " (long)." +
+                                                    "File was saved in /device/devicesData with the name "
+                                                    + filename);
+                                }
+                            } else if (msg.getCode() == MessageCode.NO_PERM) {
+                                System.out.println("Response: " + msg.getCode().getDescription() + " de leitura");
+                            } else if (msg.getCode() == MessageCode.NO_DATA) {
+                                System.out.println("Response: " + msg.getCode().getDescription()
+                                        + " # não existem medições nesse intervalo");
+                            } else {
+                                System.out.println("Response: " + msg.getCode().getDescription());
+                            }
+                            break;
                         // HELP - imprime o menu
                         case "HELP":
                             printMenu();
@@ -341,6 +576,7 @@ public class IoTDevice {
 
                     }
 
+                    ioLock.unlock();
                     System.out.println("Command: ");
 
                 }
@@ -365,12 +601,444 @@ public class IoTDevice {
         System.out.println("- CREATE <dm> -> cria dominio");
         System.out.println("- ADD <user1> <dm> -> Adicionar utilizador <user1> ao domínio <dm>");
         System.out.println("- RD <dm> -> Registar o Dispositivo atual no domínio <dm>");
-        System.out.println("- ET <float> -> Enviar valor <float> de Temperatura para o servidor.");
+        System.out.println("- ET <float> -> Enviar valor <float> de Temperatura para o servidor"
+                + (batchSize > 0 ? " (em lotes de " + batchSize + " leituras ou " + batchDelay + " ms)." : "."));
         System.out.println("- EI <filename.jpg> -> Enviar Imagem <filename.jpg> para o servidor.");
         System.out.println(
-                "- RT <dm> -> Receber as últimas medições de Temperatura de cada dispositivo do domínio <dm>, desde que o utilizador tenha permissões.");
+                "- RT <dm> [<dm> ...] -> Receber as últimas medições de Temperatura de cada dispositivo do domínio <dm> (ou de vários domínios), desde que o utilizador tenha permissões.");
+        System.out.println(
+                "- RI <user-id>:<dev_id> [version] # Receber o ficheiro Imagem do dispositivo <userid>:<dev_id> do servidor (ou uma versão anterior), desde que o utilizador tenha permissões.");
+        System.out.println(
+                "- RTS <dm> -> Receber o resumo das Temperaturas do domínio <dm> (mínimo, máximo, média e média móvel), desde que o utilizador tenha permissões.");
         System.out.println(
-                "- RI <user-id>:<dev_id> # Receber o ficheiro Imagem do dispositivo <userid>:<dev_id> do servidor, desde que o utilizador tenha permissões.");
+                "- SUBSCRIBE <dm> -> Receber as alterações das Temperaturas do domínio <dm> à medida que acontecem, desde que o utilizador tenha permissões.");
+        System.out.println("- UNSUBSCRIBE <dm> -> Deixar de receber as alterações das Temperaturas do domínio <dm>.");
+        System.out.println(
+                "- RH <dm|user-id:dev_id> <from> <to> [interval] -> Receber o histórico de Temperaturas do domínio <dm> ou do dispositivo <user-id>:<dev_id> entre <from> e <to> (epoch ms, now ou -24h), agregado em buckets de [interval] (ex: 5m), desde que o utilizador tenha permissões.");
+    }
+
+    /**
+     * Método que guarda e imprime a resposta a um RT
+     * 
+     * @param domain dominio pedido
+     * @param msg    resposta do servidor
+     */
+    private static void printDomainTemperatures(String domain, Message msg) {
+        String rtFile = "device/devicesData/" + domain + "_temp.txt";
+        if (msg.getCode() == MessageCode.NOT_MODIFIED) {
+            System.out.println("Response (" + domain + "): " + msg.getCode().getDescription()
+                    + ", the file in /device/devicesData is up to date");
+        } else if (msg.getCode() == MessageCode.OK) {
+            versions.put("RT:" + domain, msg.getVersion());
+
+            if (Utils.createDir("device/devicesData")) {
+                Utils.writeByteArrayToFile(msg.getData(), rtFile);
+
+                System.out.println(
+                        "Response (" + domain + "): " + msg.getCode().getDescription() + ", " + msg.getSize()
+                                + " (long)." +
+                                "File was saved in /device/devicesData with the name "
+                                + domain + "_temp.txt");
+            }
+
+        } else if (msg.getCode() == MessageCode.NO_PERM) {
+            System.out.println("Response (" + domain + "): " + msg.getCode().getDescription() + " de leitura");
+        } else if (msg.getCode() == MessageCode.NO_DATA) {
+            System.out.println("Response (" + domain + "): " + msg.getCode().getDescription()
+                    + " # dominio não tem dados de temperatura");
+        } else {
+            System.out.println("Response (" + domain + "): " + msg.getCode().getDescription());
+        }
+    }
+
+    /**
+     * Método que envia uma imagem por partes de IMAGE_CHUNK_SIZE bytes, lidas do ficheiro à
+     * medida que são enviadas (EIB, EIC e EIE). Se o servidor tiver parte da mesma imagem de
+     * um envio interrompido, o envio continua a partir daí. Uma imagem que cabe numa parte
+     * é enviada numa única mensagem (EI), que o servidor pode escrever em segundo plano
+     * 
+     * @param image ficheiro da imagem
+     * @return Message com a resposta do servidor
+     * @throws IOException se ocorrer um erro de leitura ou na comunicação com o servidor
+     */
+    private static Message sendImage(File image) throws IOException {
+        long size = image.length();
+        Message msg = new Message();
+        if (size <= IMAGE_CHUNK_SIZE) {
+            msg.setCommand("EI");
+            msg.setData(Files.readAllBytes(image.toPath()));
+            msg.setSize(size);
+            MessageFrames.write(out, codec, msg);
+            return readReply();
+        }
+
+        msg.setCommand("EIB");
+        msg.setSize(size);
+        msg.setVersion(image.lastModified() * 31 + size);
+        MessageFrames.write(out, codec, msg);
+
+        msg = readReply();
+        if (msg.getCode() != MessageCode.OK) {
+            return msg;
+        }
+
+        long offset = msg.getSize();
+        if (offset > 0) {
+            System.out.println("Resuming upload at byte " + offset);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(image, "r")) {
+            file.seek(offset);
+            byte[] buffer = new byte[IMAGE_CHUNK_SIZE];
+            int n;
+            while (offset < size && (n = file.read(buffer, 0, (int) Math.min(buffer.length, size - offset))) > 0) {
+                msg.clear();
+                msg.setCommand("EIC");
+                msg.setSize(offset);
+                msg.setData(n == buffer.length ? buffer : Arrays.copyOf(buffer, n));
+                MessageFrames.write(out, codec, msg);
+                offset += n;
+            }
+        }
+
+        msg.clear();
+        msg.setCommand("EIE");
+        MessageFrames.write(out, codec, msg);
+        return readReply();
+    }
+
+    /**
+     * Método que recebe a imagem enviada pelo servidor a seguir à resposta de um RI e a
+     * guarda em disco. A imagem é sempre lida por completo, mesmo que não possa ser
+     * guardada, para a ligação continuar sincronizada com o servidor
+     * 
+     * @param path ficheiro onde guardar a imagem
+     * @param size tamanho da imagem em bytes
+     * @return true se a imagem foi guardada
+     * @throws IOException se ocorrer um erro de leitura do socket
+     */
+    private static boolean receiveImage(String path, long size) throws IOException {
+        byte[] buffer = new byte[IMAGE_CHUNK_SIZE];
+        OutputStream file = null;
+        if (Utils.createDir("device/devicesData")) {
+            try {
+                file = new BufferedOutputStream(new FileOutputStream(path));
+            } catch (IOException e) {
+                System.err.println("Error saving image: " + e.getMessage());
+            }
+        }
+        boolean saved = file != null;
+        long remaining = size;
+        while (remaining > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n < 0) {
+                throw new EOFException("Connection closed while receiving image");
+            }
+            if (saved) {
+                try {
+                    file.write(buffer, 0, n);
+                } catch (IOException e) {
+                    System.err.println("Error saving image: " + e.getMessage());
+                    saved = false;
+                }
+            }
+            remaining -= n;
+        }
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                saved = false;
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * Método que devolve a versão dos dados já recebidos, se o ficheiro onde foram guardados
+     * ainda existir
+     * 
+     * @param key  chave dos dados (RT:<dm> ou RI:<user-id>:<dev_id>)
+     * @param path ficheiro onde os dados foram guardados
+     * @return versão dos dados ou null se os dados tiverem de ser pedidos de novo
+     */
+    private static Long knownVersion(String key, String path) {
+        Long version = versions.get(key);
+        return version != null && new File(path).exists() ? version : null;
+    }
+
+    /**
+     * Método que converte um instante escrito pelo utilizador em milissegundos: epoch em ms,
+     * "now" ou uma duração negativa relativa ao instante atual (ex: -24h)
+     * 
+     * @param value instante escrito pelo utilizador
+     * @param now   instante atual em ms
+     * @return instante em ms
+     * @throws NumberFormatException se o instante for inválido
+     */
+    private static long parseTime(String value, long now) {
+        if (value.equalsIgnoreCase("now")) {
+            return now;
+        }
+        if (value.startsWith("-")) {
+            return now - parseDuration(value.substring(1));
+        }
+        return Long.parseLong(value);
+    }
+
+    /**
+     * Método que converte uma duração (ex: 30s, 5m, 24h, 7d ou ms sem unidade) em milissegundos
+     * 
+     * @param value duração escrita pelo utilizador
+     * @return duração em ms
+     * @throws NumberFormatException se a duração for inválida
+     */
+    private static long parseDuration(String value) {
+        if (value.isEmpty()) {
+            throw new NumberFormatException("Empty duration");
+        }
+        long unit;
+        switch (Character.toLowerCase(value.charAt(value.length() - 1))) {
+            case 's':
+                unit = 1000L;
+                break;
+            case 'm':
+                unit = 60 * 1000L;
+                break;
+            case 'h':
+                unit = 60 * 60 * 1000L;
+                break;
+            case 'd':
+                unit = 24 * 60 * 60 * 1000L;
+                break;
+            default:
+                return Long.parseLong(value);
+        }
+        return Long.parseLong(value.substring(0, value.length() - 1)) * unit;
+    }
+
+    /**
+     * Método que converte a resposta do comando RH em texto, com uma linha por entrada:
+     * "<dispositivo> <timestamp> <temperatura>" ou, quando agregada em buckets,
+     * "<dispositivo> <início do bucket> <mínimo> <máximo> <média> <número de medições>"
+     * 
+     * @param data resposta do servidor
+     * @return texto com o histórico
+     * @throws IOException se a resposta for inválida
+     */
+    private static String historyToText(byte[] data) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        DataInputStream history = new DataInputStream(new ByteArrayInputStream(data));
+        boolean buckets = history.readByte() != 0;
+        history.readLong();
+        int devices = history.readInt();
+        for (int i = 0; i < devices; i++) {
+            String name = history.readUTF();
+            int entries = history.readInt();
+            for (int j = 0; j < entries; j++) {
+                sb.append(name).append(' ').append(history.readLong()).append(' ').append(history.readFloat());
+                if (buckets) {
+                    sb.append(' ').append(history.readFloat()).append(' ').append(history.readFloat())
+                            .append(' ').append(history.readInt());
+                }
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Método que lê a opção de envio das temperaturas em lotes (--et-batch=N[:ms])
+     * 
+     * @param option opção passada na linha de comandos
+     */
+    private static void parseBatchOption(String option) {
+        if (!option.startsWith("--et-batch=")) {
+            System.out.println("Unknown option " + option);
+            System.exit(-1);
+        }
+        String[] values = option.substring("--et-batch=".length()).split(":");
+        try {
+            batchSize = Integer.parseInt(values[0]);
+            if (values.length > 1) {
+                batchDelay = Long.parseLong(values[1]);
+            }
+        } catch (NumberFormatException e) {
+            batchSize = 0;
+        }
+        if (batchSize <= 0 || batchDelay <= 0 || values.length > 2) {
+            System.out.println("Wrong format for option --et-batch");
+            System.out.println("Right format -> --et-batch=<readings>[:<ms>]");
+            System.exit(-1);
+        }
+        batch = ByteBuffer.allocate(batchSize * TEMPERATURE_SIZE);
+    }
+
+    /**
+     * Método que inicia a thread que envia o lote de temperaturas quando a leitura mais
+     * antiga está à espera há batchDelay ms, mesmo que não sejam lidos mais comandos
+     */
+    private static void startBatchTimer() {
+        long period = Math.max(1, batchDelay / 4);
+        timer().scheduleAtFixedRate(() -> {
+            ioLock.lock();
+            try {
+                if (batch.position() > 0 && System.currentTimeMillis() - batchStart >= batchDelay) {
+                    flushTemperatures();
+                }
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            } finally {
+                ioLock.unlock();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Método que devolve a thread das tarefas periódicas do cliente, criada no primeiro uso
+     * 
+     * @return executor das tarefas periódicas
+     */
+    private static synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "device-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timer;
+    }
+
+    /**
+     * Método que inicia a leitura das notificações dos dominios subscritos que chegam
+     * quando não está nenhum comando a correr (sem comandos, o que chega são notificações)
+     */
+    private static void startPushReader() {
+        timer().scheduleWithFixedDelay(() -> {
+            if (!ioLock.tryLock()) {
+                return;
+            }
+            try {
+                while (in.available() > 0) {
+                    handlePush(MessageFrames.read(in, codec, MessageFrames.MAX_REPLY_SIZE));
+                }
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            } finally {
+                ioLock.unlock();
+            }
+        }, PUSH_POLL_INTERVAL, PUSH_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Método que lê a resposta a um pedido. As notificações dos dominios subscritos que
+     * chegam antes da resposta são tratadas à medida que são lidas
+     * 
+     * @return resposta do servidor
+     * @throws IOException se ocorrer um erro na comunicação com o servidor
+     */
+    private static Message readReply() throws IOException {
+        Message msg = MessageFrames.read(in, codec, MessageFrames.MAX_REPLY_SIZE);
+        while ("PUSH".equals(msg.getCommand())) {
+            handlePush(msg);
+            msg = MessageFrames.read(in, codec, MessageFrames.MAX_REPLY_SIZE);
+        }
+        return msg;
+    }
+
+    /**
+     * Método que aplica uma notificação (PUSH) às temperaturas do dominio subscrito,
+     * guarda-as no ficheiro do dominio e imprime as alterações
+     * 
+     * @param msg notificação com as temperaturas dos dispositivos que mudaram
+     */
+    private static void handlePush(Message msg) {
+        HashMap<String, Float> temps = subscribed.get(msg.getDomain());
+        HashMap<String, Float> changes = msg.getData() == null ? null : Utils.byteArrayToHashMap(msg.getData());
+        if (!"PUSH".equals(msg.getCommand()) || changes == null) {
+            return;
+        }
+        if (temps == null) {
+            // notificação que chegou antes da resposta ao SUBSCRIBE
+            HashMap<String, Float> early = subscribing.get(msg.getDomain());
+            if (early != null) {
+                early.putAll(changes);
+            }
+            return;
+        }
+        temps.putAll(changes);
+        if (Utils.createDir("device/devicesData")) {
+            Utils.writeByteArrayToFile(Utils.hashMapToByteArray(temps),
+                    "device/devicesData/" + msg.getDomain() + "_temp.txt");
+        }
+        StringBuilder sb = new StringBuilder("Push (" + msg.getDomain() + "):");
+        Iterator<Map.Entry<String, Float>> it = changes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Float> entry = it.next();
+            sb.append(" ").append(entry.getKey()).append(" - ").append(entry.getValue());
+            if (it.hasNext()) {
+                sb.append(",");
+            }
+        }
+        System.out.println(sb);
+    }
+
+    /**
+     * Método que junta uma temperatura ao lote, com o instante atual, e envia o lote se
+     * ficar cheio
+     * 
+     * @param value temperatura lida
+     * @throws IOException se ocorrer um erro na comunicação com o servidor
+     */
+    private static void addTemperature(String value) throws IOException {
+        float temp;
+        try {
+            temp = Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Response: " + MessageCode.NOK.getDescription());
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (batch.position() == 0) {
+            batchStart = now;
+        }
+        lastReading = Math.max(now, lastReading + 1);
+        batch.putLong(lastReading).putFloat(temp);
+        if (!batch.hasRemaining()) {
+            flushTemperatures();
+        } else {
+            System.out.println("Response: " + MessageCode.OK.getDescription() + " (" + batch.position()
+                    / TEMPERATURE_SIZE + "/" + batchSize + " readings waiting)");
+        }
+    }
+
+    /**
+     * Método que envia as temperaturas do lote numa só mensagem (ETB), se houver alguma.
+     * Deve ser chamado com o ioLock
+     * 
+     * @throws IOException se ocorrer um erro na comunicação com o servidor
+     */
+    private static void flushTemperatures() throws IOException {
+        if (batch == null || batch.position() == 0) {
+            return;
+        }
+        Message msg = new Message();
+        msg.setCommand("ETB");
+        msg.setData(Arrays.copyOf(batch.array(), batch.position()));
+        int sent = batch.position() / TEMPERATURE_SIZE;
+        batch.clear();
+        MessageFrames.write(out, codec, msg);
+
+        msg = readReply();
+        if (msg.getCode() == MessageCode.OK && msg.getSize() != null && msg.getSize() < sent) {
+            System.out.println("Response: " + msg.getCode().getDescription() + ", " + msg.getSize()
+                    + " of " + sent + " readings registered (the others are out of order or in the future)");
+        } else if (msg.getCode() == MessageCode.OK) {
+            System.out.println("Response: " + msg.getCode().getDescription() + ", " + msg.getSize()
+                    + " readings sent");
+        } else {
+            System.out.println("Response: " + msg.getCode().getDescription());
+        }
     }
 
     /**
@@ -378,13 +1046,22 @@ public class IoTDevice {
      */
     private static void prepareCtrC() {
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                // as temperaturas ainda no lote são enviadas antes de terminar
+                if (ioLock.tryLock(1, TimeUnit.SECONDS)) {
+                    flushTemperatures();
+                }
+            } catch (IOException | InterruptedException e) {
+                System.out.println("Client closed!");
+                return;
+            }
             try {
                 Message msg = new Message();
                 msg.setCommand("EXIT");
-                out.writeObject(msg);
+                MessageFrames.write(out, codec, msg);
                 closed = true;
-                in.readObject();
-            } catch (ClassNotFoundException | IOException e) {
+                readReply();
+            } catch (IOException e) {
                 System.out.println("Client closed!");
             }
 
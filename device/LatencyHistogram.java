@@ -0,0 +1,111 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Classe que representa um histograma das latências dos pedidos, em nanossegundos.
+ *
+ * Os valores são contados em buckets log-lineares (como no HdrHistogram): cada potência de
+ * 2 é dividida em SUB_BUCKETS / 2 buckets do mesmo tamanho, por isso o erro de um percentil
+ * é inferior a 1% do valor, seja ele 50 µs ou 5 s, e o histograma ocupa sempre o mesmo
+ * espaço. Os valores podem ser registados por várias threads ao mesmo tempo, sem locks.
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_BUCKETS = SUB_BUCKETS / 2;
+    private static final int MAX_SHIFT = 62 - (SUB_BUCKET_BITS - 1);
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + (MAX_SHIFT - 1) * HALF_BUCKETS + HALF_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Método que regista um valor
+     *
+     * @param nanos latência em nanossegundos (os valores negativos contam como 0)
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Método que devolve o número de valores registados
+     *
+     * @return número de valores
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Método que devolve a média dos valores registados
+     *
+     * @return média em nanossegundos, 0 se não houver valores
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Método que devolve o maior valor registado
+     *
+     * @return máximo em nanossegundos
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Método que devolve o valor abaixo do qual está uma percentagem dos valores registados
+     *
+     * @param percentile percentagem (ex: 99.9)
+     * @return maior valor do bucket onde está o percentil (no máximo o maior valor
+     *         registado), 0 se não houver valores
+     */
+    public long getPercentile(double percentile) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // shift >= 1, (value >>> shift) entre HALF_BUCKETS e SUB_BUCKETS - 1
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        int sub = (int) (value >>> shift);
+        return SUB_BUCKETS + (shift - 1) * HALF_BUCKETS + (sub - HALF_BUCKETS);
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF_BUCKETS + 1;
+        long sub = (index - SUB_BUCKETS) % HALF_BUCKETS + HALF_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
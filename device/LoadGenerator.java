@@ -0,0 +1,450 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Classe que representa um gerador de carga: simula N dispositivos de M utilizadores,
+ * repartidos por K dominios, numa só JVM (uma thread virtual por dispositivo, ou de
+ * plataforma antes do Java 21) e mede o débito e as latências de cada comando.
+ *
+ * Cada dispositivo faz a autenticação completa (utilizador, device id e verificação do
+ * executável), tal como o IoTDevice, e depois envia pedidos escolhidos aleatoriamente de
+ * acordo com a mistura pedida (ET, EI, RT, RI e ADD). Com --rate os pedidos de cada dispositivo
+ * são marcados a um ritmo fixo e a latência é medida a partir do instante marcado (como no
+ * modo headless); com --rate=0 cada dispositivo envia o pedido seguinte logo que recebe a
+ * resposta. Os pedidos feitos durante o aquecimento (--warmup) não contam. Com
+ * --images=unique cada EI leva uma imagem diferente (como uma câmara), para que o servidor
+ * não a possa reconhecer como já guardada. Com ADD na mistura cada utilizador cria também
+ * um dominio seu, e cada ADD volta a adicionar um utilizador aleatório ao dominio do dono
+ * do dispositivo (já é membro, por isso o pedido só procura o utilizador e o dominio). Com
+ * --connect-rate os dispositivos ligam-se a
+ * esse ritmo (ligações por segundo) em vez de todos ao mesmo tempo.
+ *
+ * Formato: LoadGenerator <serverAddress> [--devices=N] [--users=M] [--domains=K]
+ *          [--mix=et:70,ei:5,rt:20,ri:5,add:0] [--rate=R] [--duration=S] [--warmup=S]
+ *          [--image-size=B] [--images=same|unique] [--password=PW] [--prefix=P]
+ *          [--threads=virtual|platform] [--connect-rate=C]
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class LoadGenerator {
+
+    private static final String[] COMMANDS = { "ET", "EI", "RT", "RI", "ADD" };
+
+    private String host;
+    private int port = 12345;
+    private int devices = 100;
+    private int users = 10;
+    private int domains = 5;
+    private final int[] weights = { 70, 5, 20, 5, 0 };
+    private double rate = 10;
+    private long duration = 30;
+    private long warmup = 5;
+    private int imageSize = 20_000;
+    private boolean uniqueImages = false;
+    private String password = "loadgen";
+    private String prefix = "lg";
+    private boolean virtual = true;
+    private double connectRate = 0;
+
+    private final CommandStats connectStats = new CommandStats();
+    private final CommandStats stats = new CommandStats();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * Método main do gerador de carga
+     * @param args argumentos passados na linha de comandos
+     */
+    public static void main(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parseArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println("Usage: LoadGenerator <serverAddress> [--devices=N] [--users=M] [--domains=K] "
+                    + "[--mix=et:70,ei:5,rt:20,ri:5,add:0] [--rate=R] [--duration=S] [--warmup=S] [--image-size=B] "
+                    + "[--images=same|unique] [--password=PW] [--prefix=P] [--threads=virtual|platform] "
+                    + "[--connect-rate=C]");
+            System.exit(-1);
+        }
+        System.exit(generator.run());
+    }
+
+    private void parseArgs(String[] args) {
+        if (args.length == 0 || args[0].startsWith("--")) {
+            throw new IllegalArgumentException("Missing server address");
+        }
+        String[] addr = args[0].split(":");
+        host = addr[0];
+        for (int i = 1; i < args.length; i++) {
+            String[] parts = args[i].split("=", 2);
+            if (parts.length != 2 || parts[1].isEmpty()) {
+                throw new IllegalArgumentException("Invalid option " + args[i]);
+            }
+            String value = parts[1];
+            try {
+                switch (parts[0]) {
+                    case "--devices":
+                        devices = Integer.parseInt(value);
+                        break;
+                    case "--users":
+                        users = Integer.parseInt(value);
+                        break;
+                    case "--domains":
+                        domains = Integer.parseInt(value);
+                        break;
+                    case "--mix":
+                        parseMix(value);
+                        break;
+                    case "--rate":
+                        rate = Double.parseDouble(value);
+                        break;
+                    case "--duration":
+                        duration = Long.parseLong(value);
+                        break;
+                    case "--warmup":
+                        warmup = Long.parseLong(value);
+                        break;
+                    case "--image-size":
+                        imageSize = Integer.parseInt(value);
+                        break;
+                    case "--images":
+                        if (!value.equals("same") && !value.equals("unique")) {
+                            throw new IllegalArgumentException("Invalid images: " + value);
+                        }
+                        uniqueImages = value.equals("unique");
+                        break;
+                    case "--password":
+                        password = value;
+                        break;
+                    case "--prefix":
+                        prefix = value;
+                        break;
+                    case "--threads":
+                        if (!value.equals("virtual") && !value.equals("platform")) {
+                            throw new IllegalArgumentException("Invalid threads: " + value);
+                        }
+                        virtual = value.equals("virtual");
+                        break;
+                    case "--connect-rate":
+                        connectRate = Double.parseDouble(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value in option " + args[i]);
+            }
+        }
+        try {
+            port = addr.length > 1 ? Integer.parseInt(addr[1]) : port;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port: " + addr[1]);
+        }
+        if (devices < 1 || users < 1 || users > devices || domains < 1 || rate < 0 || duration < 1
+                || warmup < 0 || imageSize < 1 || connectRate < 0) {
+            throw new IllegalArgumentException("Invalid load: devices >= users >= 1, domains >= 1, duration >= 1");
+        }
+    }
+
+    /**
+     * Método que lê a mistura dos comandos (ex: et:70,ei:5,rt:20,ri:5,add:0). Os comandos que
+     * não aparecem têm peso 0
+     */
+    private void parseMix(String value) {
+        int[] mix = new int[COMMANDS.length];
+        for (String entry : value.split(",")) {
+            String[] parts = entry.split(":");
+            int index = parts.length == 2 ? indexOf(parts[0].toUpperCase()) : -1;
+            if (index < 0) {
+                throw new IllegalArgumentException("Invalid mix entry: " + entry);
+            }
+            mix[index] = Integer.parseInt(parts[1]);
+            if (mix[index] < 0) {
+                throw new IllegalArgumentException("Invalid mix entry: " + entry);
+            }
+        }
+        int total = 0;
+        for (int weight : mix) {
+            total += weight;
+        }
+        if (total == 0) {
+            throw new IllegalArgumentException("The mix needs at least one command");
+        }
+        System.arraycopy(mix, 0, weights, 0, mix.length);
+    }
+
+    private static int indexOf(String command) {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (COMMANDS[i].equals(command)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Método que corre o teste: liga e autentica todos os dispositivos, cria os dominios,
+     * corre a carga durante o tempo pedido e imprime as estatísticas
+     *
+     * @return 0 se todos os dispositivos correram até ao fim, -1 caso contrário
+     */
+    private int run() {
+        System.out.printf("Load: %d devices, %d users, %d domains, mix %s, %s, %d s (+%d s warmup)%n",
+                devices, users, domains, mixToString(), rate > 0 ? rate + " req/s per device" : "closed loop",
+                duration, warmup);
+
+        ExecutorService executor = virtual ? newVirtualThreadExecutor() : Executors.newCachedThreadPool();
+        DeviceConnection[] conns = new DeviceConnection[devices];
+        try {
+            long start = System.nanoTime();
+            runAll(executor, i -> {
+                if (connectRate > 0) {
+                    long wait = start + (long) (i * 1e9 / connectRate) - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                long begin = System.nanoTime();
+                conns[i] = new DeviceConnection(host, port);
+                conns[i].authenticate(userOf(i), password, prefix + "d" + i);
+                connectStats.record("CONNECT", System.nanoTime() - begin, MessageCode.OK);
+            });
+            if (failed.get() > 0) {
+                System.out.println(failed.get() + " devices could not connect");
+                return -1;
+            }
+            connectStats.print(System.out, System.nanoTime() - start);
+            System.out.println();
+
+            setupDomains(conns);
+            byte[] image = new byte[imageSize];
+            new Random().nextBytes(image);
+            if (weights[indexOf("RI")] > 0) {
+                // cada dispositivo tem uma imagem para os RI encontrarem
+                runAll(executor, i -> conns[i].sendImage(image));
+            }
+
+            long measureStart = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmup);
+            long end = measureStart + TimeUnit.SECONDS.toNanos(duration);
+            runAll(executor, i -> drive(i, conns[i], image, measureStart, end));
+
+            stats.print(System.out, TimeUnit.SECONDS.toNanos(duration));
+            if (failed.get() > 0) {
+                System.out.println(failed.get() + " devices stopped with errors");
+            }
+            return failed.get() > 0 ? -1 : 0;
+        } catch (IOException e) {
+            System.out.println("Load test stopped: " + e.getMessage());
+            return -1;
+        } finally {
+            runAll(executor, i -> {
+                if (conns[i] != null) {
+                    conns[i].close();
+                }
+            });
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Método que cria os dominios (o dono é o primeiro utilizador), adiciona todos os
+     * utilizadores (incluindo o dono) a todos os dominios, para que todos possam ler os
+     * dados de todos os dispositivos, e regista cada dispositivo num dominio
+     */
+    private void setupDomains(DeviceConnection[] conns) throws IOException {
+        DeviceConnection owner = conns[0];
+        for (int k = 0; k < domains; k++) {
+            Message msg = new Message();
+            msg.setCommand("CREATE");
+            msg.setDomain(prefix + "dm" + k);
+            // NOK se o dominio já existir de um teste anterior
+            owner.request(msg);
+            // o dono também tem de ser adicionado para poder ler o dominio
+            for (int j = 0; j < users; j++) {
+                msg = new Message();
+                msg.setCommand("ADD");
+                msg.setUser(prefix + "u" + j);
+                msg.setDomain(prefix + "dm" + k);
+                MessageCode code = owner.request(msg).getCode();
+                if (code != MessageCode.OK && code != MessageCode.NOK) {
+                    throw new IOException("Could not add " + msg.getUser() + " to " + msg.getDomain() + ": "
+                            + code.getDescription());
+                }
+            }
+        }
+        for (int i = 0; i < devices; i++) {
+            Message msg = new Message();
+            msg.setCommand("RD");
+            msg.setDomain(domainOf(i));
+            conns[i].request(msg);
+        }
+        if (weights[indexOf("ADD")] > 0) {
+            // o dispositivo j é do utilizador j (j < users), que cria o seu dominio
+            for (int j = 0; j < users; j++) {
+                Message msg = new Message();
+                msg.setCommand("CREATE");
+                msg.setDomain(ownDomainOf(j));
+                conns[j].request(msg);
+            }
+        }
+    }
+
+    /**
+     * Método que envia os pedidos de um dispositivo até ao fim do teste
+     */
+    private void drive(int device, DeviceConnection conn, byte[] image, long measureStart, long end)
+            throws IOException {
+        long interval = rate > 0 ? (long) (1e9 / rate) : 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // com imagens diferentes cada dispositivo altera a sua cópia antes de cada EI
+        ByteBuffer ownImage = uniqueImages ? ByteBuffer.wrap(image.clone()) : null;
+        long sent = 0;
+        // os dispositivos começam em instantes diferentes para não enviarem todos ao mesmo tempo
+        long next = System.nanoTime() + (interval > 0 ? random.nextLong(interval) : 0);
+        while (next < end) {
+            if (interval > 0) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                    continue;
+                }
+            } else {
+                next = System.nanoTime();
+            }
+
+            String command = pickCommand(random);
+            Message reply;
+            if (command.equals("EI")) {
+                if (ownImage != null && imageSize >= Long.BYTES) {
+                    ownImage.putLong(0, ((long) device << 32) | ++sent);
+                }
+                reply = conn.sendImage(ownImage != null ? ownImage.array() : image);
+            } else {
+                Message msg = new Message();
+                msg.setCommand(command);
+                switch (command) {
+                    case "ET":
+                        msg.setTemp(Float.toString(Math.round((15 + random.nextDouble() * 15) * 10) / 10f));
+                        break;
+                    case "RT":
+                        msg.setDomain(domainOf(device));
+                        break;
+                    case "ADD":
+                        msg.setUser(userOf(random.nextInt(devices)));
+                        msg.setDomain(ownDomainOf(device));
+                        break;
+                    default:
+                        int other = random.nextInt(devices);
+                        msg.setUser(userOf(other));
+                        msg.setDevId(prefix + "d" + other);
+                        break;
+                }
+                reply = conn.request(msg);
+            }
+            if (next >= measureStart) {
+                stats.record(command, System.nanoTime() - next, reply.getCode());
+            }
+            next += interval;
+        }
+    }
+
+    private String pickCommand(Random random) {
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        int pick = random.nextInt(total);
+        for (int i = 0; i < weights.length; i++) {
+            pick -= weights[i];
+            if (pick < 0) {
+                return COMMANDS[i];
+            }
+        }
+        return COMMANDS[0];
+    }
+
+    private String userOf(int device) {
+        return prefix + "u" + (device % users);
+    }
+
+    private String domainOf(int device) {
+        return prefix + "dm" + (device % domains);
+    }
+
+    private String ownDomainOf(int device) {
+        return prefix + "own" + (device % users);
+    }
+
+    private String mixToString() {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (weights[i] > 0) {
+                mix.put(COMMANDS[i].toLowerCase(), weights[i]);
+            }
+        }
+        return mix.toString();
+    }
+
+    /**
+     * Tarefa de um dispositivo
+     */
+    private interface DeviceTask {
+        void run(int device) throws IOException;
+    }
+
+    /**
+     * Método que corre uma tarefa para cada dispositivo, em paralelo, e espera que terminem
+     * todas. Os dispositivos cuja tarefa falhou são contados em failed
+     */
+    private void runAll(ExecutorService executor, DeviceTask task) {
+        List<Future<?>> futures = new ArrayList<>(devices);
+        for (int i = 0; i < devices; i++) {
+            int device = i;
+            futures.add(executor.submit(() -> {
+                try {
+                    task.run(device);
+                } catch (IOException e) {
+                    if (failed.getAndIncrement() == 0) {
+                        System.err.println("Device " + device + ": " + e.getMessage());
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                System.err.println("Device task failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Método que cria um executor com uma thread virtual por tarefa (Java 21 ou superior,
+     * obtido por reflexão como no IoTServer) ou com threads de plataforma
+     *
+     * @return executor com uma thread por tarefa
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads require Java 21 or newer, using platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
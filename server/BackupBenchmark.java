@@ -0,0 +1,243 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classe que mede a latência dos pedidos enquanto o snapshot (backupInfo) é escrito, para
+ * mostrar que o backup não para os pedidos (ver SharedInfoSingleton.backupInfo):
+ *  - o registo é criado com muitos dispositivos, utilizadores e dominios
+ *  - várias threads fazem o trabalho de um pedido (procurar o dispositivo, verificar a
+ *    permissão de leitura, registar uma temperatura e, de vez em quando, um ADD), sem
+ *    esperar pelo write-ahead log (como o front end NIO)
+ *  - a medição é feita sem backups, com uma thread a escrever snapshots seguidos e, para
+ *    comparação, com os pedidos a usar o mesmo lock que o backup (o monitor do singleton,
+ *    como os métodos de procura e de escrita antes do snapshot sem locks)
+ *
+ * Um backup que parasse os pedidos levava a latência máxima para perto da duração de um
+ * backup. As pausas do GC também aparecem na latência máxima, por isso o tempo de GC de cada
+ * medição é indicado. Corre na diretoria atual e cria server/serverFiles, por isso recusa
+ * correr se esta já existir (ex: na diretoria do servidor).
+ *
+ * Formato: java -cp IoTServer.jar BackupBenchmark [devices] [threads] [seconds]
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class BackupBenchmark {
+
+    private static final int DEVICES_PER_USER = 100;
+    private static final int DEVICES_PER_DOMAIN = 1000;
+
+    /**
+     * Backups durante uma medição
+     */
+    private enum Backups {
+        /** sem backups */
+        NONE,
+        /** uma thread escreve snapshots seguidos */
+        RUNNING,
+        /** como RUNNING, mas cada pedido usa o lock do backup */
+        LOCKED
+    }
+
+    /**
+     * Método main do benchmark
+     * @param args número de dispositivos (100000), de threads (4) e segundos de cada
+     *             medição (5)
+     * @throws Exception se não for possível criar o registo ou uma thread for interrompida
+     */
+    public static void main(String[] args) throws Exception {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        long seconds = args.length > 2 ? Long.parseLong(args[2]) : 5;
+        if (new File("server/serverFiles").exists()) {
+            System.err.println("server/serverFiles already exists, run the benchmark in an empty directory");
+            System.exit(-1);
+        }
+
+        SharedInfoSingleton info = SharedInfoSingleton.getInstance();
+        int users = Math.max(1, devices / DEVICES_PER_USER);
+        int domains = Math.max(1, devices / DEVICES_PER_DOMAIN);
+        String[] names = populate(info, devices, users, domains);
+
+        long start = System.nanoTime();
+        info.backupInfo();
+        System.out.printf("Registry: %d devices, %d users, %d domains; full backup %.0f ms%n", devices, users,
+                domains, (System.nanoTime() - start) / 1e6);
+
+        long nanos = TimeUnit.SECONDS.toNanos(seconds);
+        // aquecimento do JIT
+        measure(info, names, users, domains, threads, TimeUnit.SECONDS.toNanos(1), Backups.NONE);
+        System.out.printf("%-8s %11s %9s %9s %10s %10s %7s  %s%n", "backups", "requests/s", "p50 (us)", "p99 (us)",
+                "p99.9 (us)", "max (us)", "GC (ms)", "backups written");
+        for (Backups backups : Backups.values()) {
+            System.out.println(measure(info, names, users, domains, threads, nanos, backups));
+        }
+        System.out.println(Runtime.getRuntime().availableProcessors() + " CPUs");
+
+        info.shutdown();
+        System.exit(0);
+    }
+
+    /**
+     * Método que cria o registo: cada utilizador tem DEVICES_PER_USER dispositivos e cada
+     * dominio DEVICES_PER_DOMAIN dispositivos e os seus donos
+     *
+     * @return nomes dos dispositivos
+     */
+    private static String[] populate(SharedInfoSingleton info, int devices, int users, int domains)
+            throws IOException {
+        // a criação não espera pelo disco a cada registo, só no fim
+        info.deferLogWrites();
+        User[] owners = new User[users];
+        for (int u = 0; u < users; u++) {
+            owners[u] = new User("bench" + u, "bench");
+            info.addUser(owners[u]);
+        }
+        Domain[] all = new Domain[domains];
+        for (int m = 0; m < domains; m++) {
+            all[m] = new Domain("benchdm" + m, owners[m % users]);
+            info.addDomain(all[m]);
+        }
+        String[] names = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            User owner = owners[i % users];
+            names[i] = owner.getUserId() + ":d" + i;
+            Device device = new Device(names[i], false);
+            info.addDevice(device);
+            Domain domain = all[i % domains];
+            info.addUserToDomain(domain, owner);
+            info.registerDeviceInDomain(domain, device);
+            info.registerTemperature(device, 15 + (i % 150) / 10f, System.currentTimeMillis());
+            if (i % 1000 == 999) {
+                waitForLog(info);
+            }
+        }
+        waitForLog(info);
+        return names;
+    }
+
+    private static void waitForLog(SharedInfoSingleton info) {
+        CompletableFuture<Void> pending = info.takeLogWrites();
+        if (pending != null) {
+            pending.join();
+        }
+    }
+
+    /**
+     * Método que faz pedidos em várias threads durante o tempo pedido, com ou sem uma
+     * thread a escrever snapshots
+     *
+     * @return linha com a latência dos pedidos e os backups escritos
+     */
+    private static String measure(SharedInfoSingleton info, String[] names, int users, int domains, int threads,
+            long nanos, Backups backups) throws InterruptedException {
+        long[][] latencies = new long[threads][];
+        int[] counts = new int[threads];
+        long gcStart = gcMillis();
+        long start = System.nanoTime();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                info.deferLogWrites();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long[] samples = new long[1 << 16];
+                int n = 0;
+                while (System.nanoTime() - start < nanos) {
+                    long t0 = System.nanoTime();
+                    if (backups == Backups.LOCKED) {
+                        synchronized (info) {
+                            request(info, names, users, domains, random, n);
+                        }
+                    } else {
+                        request(info, names, users, domains, random, n);
+                    }
+                    if (n == samples.length) {
+                        samples = Arrays.copyOf(samples, n * 2);
+                    }
+                    samples[n++] = System.nanoTime() - t0;
+                }
+                latencies[id] = samples;
+                counts[id] = n;
+            });
+            workers[t].start();
+        }
+
+        int written = 0;
+        long backupNanos = 0;
+        long longest = 0;
+        if (backups != Backups.NONE) {
+            while (System.nanoTime() - start < nanos) {
+                long t0 = System.nanoTime();
+                info.backupInfo();
+                long elapsed = System.nanoTime() - t0;
+                backupNanos += elapsed;
+                longest = Math.max(longest, elapsed);
+                written++;
+                // com o lock do singleton, dá tempo às threads dos pedidos para o obterem
+                // e alterarem o registo antes do próximo backup
+                Thread.sleep(1);
+            }
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long gc = gcMillis() - gcStart;
+
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        long[] all = new long[total];
+        int pos = 0;
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(latencies[t], 0, all, pos, counts[t]);
+            pos += counts[t];
+        }
+        Arrays.sort(all);
+        String summary = backups != Backups.NONE ? String.format("%d (avg %.0f ms, longest %.0f ms)", written,
+                backupNanos / 1e6 / Math.max(1, written), longest / 1e6) : "-";
+        return String.format("%-8s %,11.0f %9.1f %9.1f %,10.0f %,10.0f %,7d  %s", backups.name().toLowerCase(),
+                total / elapsed, all[total / 2] / 1e3, all[(int) (total * 0.99)] / 1e3,
+                all[(int) (total * 0.999)] / 1e3, all[total - 1] / 1e3, gc, summary);
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * Método que faz o trabalho de um pedido: procura o dispositivo, verifica se o dono pode
+     * ler os seus dados e regista uma temperatura; um em cada 64 pedidos é um ADD
+     */
+    private static void request(SharedInfoSingleton info, String[] names, int users, int domains,
+            ThreadLocalRandom random, int n) {
+        try {
+            Device device = info.getDeviceByName(names[random.nextInt(names.length)]);
+            String owner = device.getDevName().substring(0, device.getDevName().indexOf(':'));
+            if (info.canRead(owner, device.getDevName())) {
+                info.registerTemperature(device, 15 + random.nextInt(150) / 10f, System.currentTimeMillis());
+            }
+            if (n % 64 == 0) {
+                Domain domain = info.getDomain("benchdm" + random.nextInt(domains));
+                info.addUserToDomain(domain, info.getUserByName("bench" + random.nextInt(users)));
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing to write-ahead log: " + e.getMessage());
+        }
+        // como o front end NIO, a resposta não espera pelo log
+        info.takeLogWrites();
+    }
+}
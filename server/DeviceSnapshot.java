@@ -0,0 +1,143 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Collection;
+import java.util.function.BiConsumer;
+
+/**
+ * Classe com os metodos static de leitura e escrita do snapshot binário dos dispositivos.
+ *
+ * O ficheiro está organizado por colunas:
+ *  - cabeçalho: int MAGIC, int versão do formato, int número de dispositivos (n)
+ *  - coluna das temperaturas: n floats de 4 bytes (0 quando o dispositivo não tem temperatura)
+ *  - coluna das flags: n bytes (FLAG_HAS_TEMP quando o dispositivo tem temperatura)
+ *  - tabela de strings: os n nomes (user_id:dev_id), cada um com um int de tamanho seguido
+ *    do nome em UTF-8
+ *
+ * As colunas têm tamanho fixo, por isso a leitura é feita numa única passagem sobre o
+ * ficheiro mapeado em memória, sem parsing de texto.
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public final class DeviceSnapshot {
+
+    /**
+     * Número mágico que inicia o ficheiro ("IoTV")
+     */
+    public static final int MAGIC = 0x496F5456;
+
+    /**
+     * Versão atual do formato
+     */
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 12;
+    private static final byte FLAG_HAS_TEMP = 1;
+
+    /**
+     * Constructor vazio para impedir inicializacao
+     */
+    private DeviceSnapshot() {
+    }
+
+    /**
+     * Método que escreve o snapshot dos dispositivos
+     *
+     * @param path    ficheiro onde escrever
+     * @param devices dispositivos a guardar
+     * @throws IOException se ocorrer um erro de escrita
+     */
+    public static void write(Path path, Collection<Device> devices) throws IOException {
+        // copia o estado uma só vez, para que as colunas e a tabela de strings sejam coerentes
+        int n = devices.size();
+        String[] names = new String[n];
+        Float[] temps = new Float[n];
+        int count = 0;
+        for (Device d : devices) {
+            if (count == n) {
+                break;
+            }
+            names[count] = d.getDevName();
+            temps[count] = d.getTemp();
+            count++;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeFloat(temps[i] == null ? 0f : temps[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                out.writeByte(temps[i] == null ? 0 : FLAG_HAS_TEMP);
+            }
+            for (int i = 0; i < count; i++) {
+                byte[] name = names[i].getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+            }
+        }
+    }
+
+    /**
+     * Método que lê o snapshot dos dispositivos
+     *
+     * @param path     ficheiro de onde ler
+     * @param consumer função chamada com o nome e a temperatura (ou null) de cada dispositivo
+     * @return número de dispositivos lidos
+     * @throws IOException se o ficheiro não existir ou não for um snapshot válido
+     */
+    public static int read(Path path, BiConsumer<String, Float> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid device snapshot size: " + size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Invalid device snapshot");
+            }
+            int version = buffer.getInt(4);
+            if (version != VERSION) {
+                throw new IOException("Unsupported device snapshot version: " + version);
+            }
+            int count = buffer.getInt(8);
+            long stringsStart = HEADER_SIZE + (long) count * 5;
+            if (count < 0 || stringsStart > size) {
+                throw new IOException("Invalid device count: " + count);
+            }
+
+            int tempsAt = HEADER_SIZE;
+            int flagsAt = tempsAt + count * 4;
+            buffer.position((int) stringsStart);
+            byte[] scratch = new byte[64];
+            for (int i = 0; i < count; i++) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    throw new IOException("Truncated device snapshot");
+                }
+                if (length > scratch.length) {
+                    scratch = new byte[Math.max(length, scratch.length * 2)];
+                }
+                buffer.get(scratch, 0, length);
+                String name = new String(scratch, 0, length, StandardCharsets.UTF_8);
+
+                boolean hasTemp = (buffer.get(flagsAt + i) & FLAG_HAS_TEMP) != 0;
+                consumer.accept(name, hasTemp ? buffer.getFloat(tempsAt + i * 4) : null);
+            }
+            return count;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated device snapshot", e);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Classe que representa um bloco (chunk) de leituras de temperatura de um dispositivo,
+ * comprimido com o esquema do Gorilla (Facebook, VLDB 2015).
+ *
+ * O primeiro ponto é guardado por inteiro (timestamp de 64 bits e float de 32 bits). Para os
+ * pontos seguintes:
+ *  - timestamp: diferença entre o delta atual e o delta anterior (delta-of-delta), em ms
+ *      '0'                     delta-of-delta igual a 0
+ *      '10'   + 7 bits         entre -64 e 63
+ *      '110'  + 9 bits         entre -256 e 255
+ *      '1110' + 12 bits        entre -2048 e 2047
+ *      '1111' + 64 bits        restantes valores
+ *  - temperatura: XOR com os bits do float anterior
+ *      '0'                     valor igual ao anterior
+ *      '10'   + bits úteis     os bits diferentes cabem na janela (zeros à esquerda e à
+ *                              direita) do valor anterior
+ *      '11'   + 5 bits zeros à esquerda + 5 bits (tamanho - 1) + bits úteis
+ *
+ * Leituras periódicas com temperaturas estáveis ocupam poucos bits por ponto. Um chunk não
+ * é thread-safe, o acesso é sincronizado por quem o usa (ver TemperatureHistory).
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public final class GorillaChunk {
+
+    /**
+     * Função chamada com cada ponto lido de um chunk
+     */
+    public interface PointConsumer {
+        void accept(long timestamp, float value);
+    }
+
+    private byte[] bits = new byte[32];
+    private long bitCount;
+
+    private int count;
+    private long firstTimestamp;
+    private long lastTimestamp;
+    private long lastDelta;
+    private int lastValueBits;
+    private int lastLeading = -1;
+    private int lastTrailing;
+
+    /**
+     * Método que acrescenta um ponto ao chunk. Os timestamps devem ser crescentes
+     *
+     * @param timestamp instante da leitura, em ms
+     * @param value     temperatura lida
+     */
+    public void append(long timestamp, float value) {
+        int valueBits = Float.floatToRawIntBits(value);
+        if (count == 0) {
+            writeBits(timestamp, 64);
+            writeBits(valueBits, 32);
+            firstTimestamp = timestamp;
+        } else {
+            long delta = timestamp - lastTimestamp;
+            writeTimestamp(delta - lastDelta);
+            writeValue(valueBits ^ lastValueBits);
+            lastDelta = delta;
+        }
+        lastTimestamp = timestamp;
+        lastValueBits = valueBits;
+        count++;
+    }
+
+    private void writeTimestamp(long dod) {
+        if (dod == 0) {
+            writeBits(0, 1);
+        } else if (fits(dod, 7)) {
+            writeBits(0b10, 2);
+            writeBits(dod, 7);
+        } else if (fits(dod, 9)) {
+            writeBits(0b110, 3);
+            writeBits(dod, 9);
+        } else if (fits(dod, 12)) {
+            writeBits(0b1110, 4);
+            writeBits(dod, 12);
+        } else {
+            writeBits(0b1111, 4);
+            writeBits(dod, 64);
+        }
+    }
+
+    private void writeValue(int xor) {
+        if (xor == 0) {
+            writeBits(0, 1);
+            return;
+        }
+        int leading = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+        int trailing = Integer.numberOfTrailingZeros(xor);
+        if (lastLeading >= 0 && leading >= lastLeading && trailing >= lastTrailing) {
+            writeBits(0b10, 2);
+            writeBits(xor >>> lastTrailing, 32 - lastLeading - lastTrailing);
+        } else {
+            int meaningful = 32 - leading - trailing;
+            writeBits(0b11, 2);
+            writeBits(leading, 5);
+            writeBits(meaningful - 1, 5);
+            writeBits(xor >>> trailing, meaningful);
+            lastLeading = leading;
+            lastTrailing = trailing;
+        }
+    }
+
+    private static boolean fits(long value, int n) {
+        return value >= -(1L << (n - 1)) && value < (1L << (n - 1));
+    }
+
+    private void writeBits(long value, int n) {
+        int needed = (int) ((bitCount + n + 7) >>> 3);
+        if (needed > bits.length) {
+            bits = Arrays.copyOf(bits, Math.max(needed, bits.length * 2));
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            if (((value >>> i) & 1) != 0) {
+                bits[(int) (bitCount >>> 3)] |= (byte) (0x80 >>> (bitCount & 7));
+            }
+            bitCount++;
+        }
+    }
+
+    /**
+     * Método que devolve o número de pontos do chunk
+     *
+     * @return número de pontos
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Método que devolve o timestamp do primeiro ponto
+     *
+     * @return timestamp do primeiro ponto, em ms
+     */
+    public long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    /**
+     * Método que devolve o timestamp do último ponto
+     *
+     * @return timestamp do último ponto, em ms
+     */
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * Método que devolve uma cópia dos bytes codificados do chunk
+     *
+     * @return array de bytes com os pontos codificados
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bits, (int) ((bitCount + 7) >>> 3));
+    }
+
+    /**
+     * Método que lê os pontos de um chunk codificado
+     *
+     * @param data     buffer com o chunk, a partir da posição atual
+     * @param length   tamanho do chunk em bytes
+     * @param count    número de pontos do chunk
+     * @param consumer função chamada com cada ponto
+     */
+    public static void decode(ByteBuffer data, int length, int count, PointConsumer consumer) {
+        BitReader in = new BitReader(data, length);
+        if (count == 0) {
+            return;
+        }
+        long timestamp = in.read(64);
+        int valueBits = (int) in.read(32);
+        consumer.accept(timestamp, Float.intBitsToFloat(valueBits));
+
+        long delta = 0;
+        int leading = 0;
+        int trailing = 0;
+        for (int i = 1; i < count; i++) {
+            long dod;
+            if (in.read(1) == 0) {
+                dod = 0;
+            } else if (in.read(1) == 0) {
+                dod = in.readSigned(7);
+            } else if (in.read(1) == 0) {
+                dod = in.readSigned(9);
+            } else if (in.read(1) == 0) {
+                dod = in.readSigned(12);
+            } else {
+                dod = in.read(64);
+            }
+            delta += dod;
+            timestamp += delta;
+
+            if (in.read(1) != 0) {
+                if (in.read(1) != 0) {
+                    leading = (int) in.read(5);
+                    int meaningful = (int) in.read(5) + 1;
+                    trailing = 32 - leading - meaningful;
+                }
+                valueBits ^= (int) in.read(32 - leading - trailing) << trailing;
+            }
+            consumer.accept(timestamp, Float.intBitsToFloat(valueBits));
+        }
+    }
+
+    /**
+     * Leitor de bits de um chunk codificado
+     */
+    private static final class BitReader {
+        private final ByteBuffer data;
+        private final int start;
+        private final long limit;
+        private long position;
+
+        private BitReader(ByteBuffer data, int length) {
+            this.data = data;
+            this.start = data.position();
+            this.limit = (long) length << 3;
+        }
+
+        private long read(int n) {
+            if (position + n > limit) {
+                throw new IllegalArgumentException("Truncated chunk");
+            }
+            long value = 0;
+            for (int i = 0; i < n; i++) {
+                int b = data.get(start + (int) (position >>> 3));
+                value = (value << 1) | ((b >>> (7 - (position & 7))) & 1);
+                position++;
+            }
+            return value;
+        }
+
+        private long readSigned(int n) {
+            return (read(n) << (64 - n)) >> (64 - n);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.*;
+import java.util.Collection;
+
+/**
+ * Classe com os metodos static que executam as consultas ao histórico das temperaturas (RH)
+ * e codificam o resultado a enviar ao cliente.
+ *
+ * Formato da resposta (big-endian):
+ *  - byte com o modo (RAW ou BUCKETS), long com o tamanho dos buckets em ms (0 em RAW)
+ *  - int com o número de dispositivos com leituras no intervalo, e para cada um:
+ *      - nome do dispositivo (UTF), int com o número de entradas
+ *      - RAW: cada entrada é [long timestamp][float temperatura]
+ *      - BUCKETS: cada entrada é [long início do bucket][float mínimo][float máximo]
+ *        [float média][int número de leituras]. Os buckets sem leituras não são enviados
+ *
+ * A agregação é feita à medida que as leituras são lidas do histórico (que as devolve por
+ * ordem), por isso a memória usada depende só do número de entradas da resposta. A resposta
+ * tem no máximo MAX_REPLY_SIZE bytes, somando todos os dispositivos da consulta: uma
+ * consulta que ultrapasse esse tamanho falha e deve ser repetida com buckets maiores ou um
+ * intervalo mais curto.
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public final class HistoryQuery {
+
+    /**
+     * Modo em que são enviadas todas as leituras do intervalo
+     */
+    public static final byte RAW = 0;
+
+    /**
+     * Modo em que as leituras são agregadas em buckets de tamanho fixo
+     */
+    public static final byte BUCKETS = 1;
+
+    /**
+     * Número máximo de buckets do intervalo de uma consulta (por dispositivo)
+     */
+    public static final long MAX_BUCKETS = 100_000;
+
+    /**
+     * Tamanho máximo da resposta a uma consulta, para todos os dispositivos (cerca de um
+     * milhão de leituras ou 700 mil buckets)
+     */
+    public static final int MAX_REPLY_SIZE = 16 * 1024 * 1024;
+
+    private static final int RAW_ENTRY_SIZE = 12;
+    private static final int BUCKET_ENTRY_SIZE = 24;
+
+    /**
+     * Constructor vazio para impedir inicializacao
+     */
+    private HistoryQuery() {
+    }
+
+    /**
+     * Método que verifica o intervalo de uma consulta: from não pode ser depois de to e, com
+     * buckets, o intervalo não pode ter mais de MAX_BUCKETS buckets (sem overflow para
+     * valores extremos de from e to)
+     *
+     * @param from     início do intervalo, em ms
+     * @param to       fim do intervalo, em ms
+     * @param interval tamanho dos buckets em ms, ou 0 para todas as leituras
+     * @return true se o intervalo é válido
+     */
+    public static boolean isValidRange(long from, long to, long interval) {
+        if (from > to || interval < 0) {
+            return false;
+        }
+        if (interval == 0) {
+            return true;
+        }
+        try {
+            return Math.subtractExact(to, from) / interval < MAX_BUCKETS;
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Agregação das leituras do bucket atual de um dispositivo. As entradas são escritas
+     * enquanto couberem em maxBytes
+     */
+    private static final class Aggregator implements GorillaChunk.PointConsumer {
+        private final DataOutputStream out;
+        private final long from;
+        private final long interval;
+        private final long maxBytes;
+
+        private int entries;
+        private long bucket = -1;
+        private float min;
+        private float max;
+        private double sum;
+        private int count;
+        private IOException error;
+
+        private Aggregator(DataOutputStream out, long from, long interval, long maxBytes) {
+            this.out = out;
+            this.from = from;
+            this.interval = interval;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public void accept(long timestamp, float value) {
+            if (error != null) {
+                return;
+            }
+            try {
+                if (interval == 0) {
+                    reserve(RAW_ENTRY_SIZE);
+                    out.writeLong(timestamp);
+                    out.writeFloat(value);
+                    entries++;
+                    return;
+                }
+                long index = (timestamp - from) / interval;
+                if (index != bucket) {
+                    flush();
+                    bucket = index;
+                    min = value;
+                    max = value;
+                }
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+                count++;
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        private void flush() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            reserve(BUCKET_ENTRY_SIZE);
+            out.writeLong(from + bucket * interval);
+            out.writeFloat(min);
+            out.writeFloat(max);
+            out.writeFloat((float) (sum / count));
+            out.writeInt(count);
+            entries++;
+            sum = 0;
+            count = 0;
+        }
+
+        private void reserve(int size) throws IOException {
+            if (out.size() + (long) size > maxBytes) {
+                throw new IOException("Reply too large, use a larger bucket interval or a shorter range");
+            }
+        }
+    }
+
+    /**
+     * Método que executa uma consulta ao histórico de um conjunto de dispositivos
+     *
+     * @param history  histórico das temperaturas
+     * @param devices  nomes dos dispositivos a consultar
+     * @param from     início do intervalo, em ms (inclusive)
+     * @param to       fim do intervalo, em ms (inclusive)
+     * @param interval tamanho dos buckets em ms, ou 0 para enviar todas as leituras
+     * @return resposta codificada ou null se não houver leituras no intervalo
+     * @throws IOException se não for possível ler o histórico
+     */
+    public static byte[] run(TemperatureHistory history, Collection<String> devices, long from, long to,
+            long interval) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(interval == 0 ? RAW : BUCKETS);
+        out.writeLong(interval);
+        out.writeInt(0);
+
+        int withData = 0;
+        for (String name : devices) {
+            // nome (UTF, até 3 bytes por carácter) e número de entradas do dispositivo
+            long header = 2 + 3L * name.length() + 4;
+            ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            Aggregator aggregator = new Aggregator(new DataOutputStream(entries), from, interval,
+                    MAX_REPLY_SIZE - out.size() - header);
+            history.query(name, from, to, aggregator);
+            if (aggregator.error == null) {
+                aggregator.flush();
+            }
+            if (aggregator.error != null) {
+                throw aggregator.error;
+            }
+            if (aggregator.entries == 0) {
+                continue;
+            }
+            out.writeUTF(name);
+            out.writeInt(aggregator.entries);
+            entries.writeTo(out);
+            withData++;
+        }
+        out.flush();
+        if (withData == 0) {
+            return null;
+        }
+
+        byte[] data = bos.toByteArray();
+        // número de dispositivos, depois do modo (1 byte) e do tamanho dos buckets (8 bytes)
+        data[9] = (byte) (withData >>> 24);
+        data[10] = (byte) (withData >>> 16);
+        data[11] = (byte) (withData >>> 8);
+        data[12] = (byte) withData;
+        return data;
+    }
+}
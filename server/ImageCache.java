@@ -0,0 +1,129 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Classe que representa a cache das imagens mais pedidas (RI), limitada pelo total de bytes.
+ *
+ * As imagens são guardadas fora da heap (ByteBuffer direto), por ordem de acesso, e quando
+ * o total ultrapassa o limite são removidas as menos usadas recentemente (LRU). Uma imagem
+ * maior que um quarto do limite não entra na cache, para não a esvaziar.
+ *
+ * As entradas são identificadas pelo SHA-256 do conteúdo (ver ImageStore): uma nova imagem
+ * de um dispositivo tem outro SHA-256, por isso as entradas nunca ficam desatualizadas e
+ * não é preciso invalidá-las. As imagens que deixam de ser pedidas saem pela ordem LRU.
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class ImageCache {
+
+    /**
+     * Tamanho da cache por omissão, em MB
+     */
+    public static final int DEFAULT_SIZE_MB = 64;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Construtor de uma ImageCache
+     *
+     * @param maxBytes total de bytes das imagens guardadas, 0 para não guardar imagens
+     */
+    public ImageCache(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        this.maxEntryBytes = this.maxBytes / 4;
+    }
+
+    /**
+     * Método que devolve uma imagem guardada na cache
+     *
+     * @param hash SHA-256 da imagem
+     * @return buffer só de leitura com a imagem (posição própria de quem o pede) ou null
+     *         se a imagem não estiver na cache
+     */
+    public ByteBuffer get(String hash) {
+        ByteBuffer image;
+        synchronized (this) {
+            image = entries.get(hash);
+        }
+        if (image == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return image.asReadOnlyBuffer();
+    }
+
+    /**
+     * Método que lê uma imagem para a cache
+     *
+     * @param hash SHA-256 da imagem
+     * @param file ficheiro com a imagem (não é fechado)
+     * @param size tamanho da imagem
+     * @return buffer só de leitura com a imagem ou null se a imagem for demasiado grande
+     *         para a cache
+     * @throws IOException se não for possível ler a imagem
+     */
+    public ByteBuffer load(String hash, FileChannel file, long size) throws IOException {
+        if (size > maxEntryBytes) {
+            return null;
+        }
+        ByteBuffer image = ByteBuffer.allocateDirect((int) size);
+        while (image.hasRemaining()) {
+            if (file.read(image, image.position()) < 0) {
+                throw new IOException("Image truncated while reading");
+            }
+        }
+        image.flip();
+
+        synchronized (this) {
+            ByteBuffer old = entries.put(hash, image);
+            bytes += size - (old == null ? 0 : old.capacity());
+            Iterator<Map.Entry<String, ByteBuffer>> it = entries.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().getValue().capacity();
+                it.remove();
+            }
+        }
+        return image.asReadOnlyBuffer();
+    }
+
+    /**
+     * Método que devolve o número de pedidos servidos pela cache
+     *
+     * @return número de hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Método que devolve o número de pedidos de imagens que não estavam na cache
+     *
+     * @return número de misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Método que devolve o total de bytes das imagens guardadas
+     *
+     * @return bytes ocupados pela cache
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+}
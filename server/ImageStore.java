@@ -0,0 +1,462 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Classe que representa o armazenamento das imagens enviadas pelos dispositivos (EI).
+ *
+ * O conteúdo de cada imagem é guardado uma única vez, num blob cujo nome é o SHA-256 do
+ * conteúdo (blobs/<2 primeiros caracteres>/<sha-256>). Cada dispositivo tem uma lista das
+ * suas últimas versões (refs/<user>_<dev>.txt), em que cada versão aponta para um blob:
+ *  - uma imagem igual a um blob já guardado (ex: câmara estática) não volta a ser escrita,
+ *    apenas ganha mais uma referência
+ *  - são guardadas as últimas keptVersions versões de cada dispositivo, e o RI pode pedir
+ *    qualquer uma delas
+ *  - quando um blob deixa de ser referido por alguma versão é apagado
+ *
+ * O número de referências de cada blob não é guardado: é calculado no arranque a partir
+ * das listas de versões, e os blobs sem referências (ex: servidor terminado entre a
+ * escrita do blob e a da lista de versões) são apagados nesse momento.
+ *
+ * As listas de versões são imutáveis e substituídas a cada nova versão, por isso o get e o
+ * open não usam locks. Cada dispositivo tem o seu lock para as novas versões, e a gravação
+ * da lista de versões (fsync) é feita só com esse lock: uma imagem de um dispositivo não
+ * atrasa as imagens nem os RI dos outros. O lock partilhado (refCounts) só protege a
+ * contagem de referências, a criação e a remoção dos blobs. O RI usa pin e unpin à volta do
+ * open: a referência a mais impede que o blob seja apagado se a versão deixar de ser
+ * guardada (novas imagens do dispositivo) entre o get e o open.
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class ImageStore {
+
+    /**
+     * Número de versões guardadas por omissão para cada dispositivo
+     */
+    public static final int DEFAULT_KEPT_VERSIONS = 5;
+
+    /**
+     * Classe que representa uma versão guardada da imagem de um dispositivo
+     */
+    public static final class Version {
+        private final long number;
+        private final String hash;
+        private final long size;
+        private final long timestamp;
+
+        private Version(long number, String hash, long size, long timestamp) {
+            this.number = number;
+            this.hash = hash;
+            this.size = size;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * @return número da versão, crescente para cada dispositivo
+         */
+        public long getNumber() {
+            return number;
+        }
+
+        /**
+         * @return SHA-256 do conteúdo da imagem, em hexadecimal
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return tamanho da imagem em bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return instante em que a versão foi guardada, em ms
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Método que devolve a versão do conteúdo usada nos pedidos condicionais (RI): os
+         * primeiros 64 bits do SHA-256
+         *
+         * @return versão do conteúdo
+         */
+        public long getTag() {
+            return Long.parseUnsignedLong(hash.substring(0, 16), 16);
+        }
+
+        private String toLine() {
+            return number + ";" + hash + ";" + size + ";" + timestamp;
+        }
+
+        private static Version fromLine(String line) {
+            String[] parts = line.split(";");
+            return new Version(Long.parseLong(parts[0]), parts[1], Long.parseLong(parts[2]),
+                    Long.parseLong(parts[3]));
+        }
+    }
+
+    private final Path blobs;
+    private final Path refs;
+    private final Map<String, List<Version>> versionsByDevice = new ConcurrentHashMap<>();
+    private final Map<String, Object> deviceLocks = new ConcurrentHashMap<>();
+    private final Map<String, Integer> refCounts = new HashMap<>();
+    private volatile int keptVersions = DEFAULT_KEPT_VERSIONS;
+
+    private ImageStore(Path dir) {
+        this.blobs = dir.resolve("blobs");
+        this.refs = dir.resolve("refs");
+    }
+
+    /**
+     * Método que abre o armazenamento das imagens, carrega as versões de cada dispositivo e
+     * apaga os blobs sem referências
+     *
+     * @param dir diretório das imagens
+     * @return armazenamento aberto
+     * @throws IOException se não for possível criar ou ler os diretórios
+     */
+    public static ImageStore open(String dir) throws IOException {
+        ImageStore store = new ImageStore(Paths.get(dir));
+        Files.createDirectories(store.blobs);
+        Files.createDirectories(store.refs);
+        store.load();
+        store.sweep();
+        return store;
+    }
+
+    private void load() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(refs, "*.txt")) {
+            for (Path file : files) {
+                try {
+                    List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+                    if (lines.isEmpty()) {
+                        continue;
+                    }
+                    List<Version> versions = new ArrayList<>();
+                    for (String line : lines.subList(1, lines.size())) {
+                        if (!line.isEmpty()) {
+                            Version version = Version.fromLine(line);
+                            versions.add(version);
+                            refCounts.merge(version.getHash(), 1, Integer::sum);
+                        }
+                    }
+                    versionsByDevice.put(lines.get(0), Collections.unmodifiableList(versions));
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Error loading image versions " + file + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void sweep() throws IOException {
+        try (Stream<Path> files = Files.walk(blobs)) {
+            files.filter(Files::isRegularFile)
+                    .filter(f -> !refCounts.containsKey(f.getFileName().toString()))
+                    .forEach(ImageStore::deleteQuietly);
+        }
+    }
+
+    /**
+     * Método que define quantas versões são guardadas para cada dispositivo. As versões a
+     * mais só são removidas na próxima imagem guardada pelo dispositivo
+     *
+     * @param keptVersions número de versões guardadas, pelo menos 1
+     */
+    public void setKeptVersions(int keptVersions) {
+        this.keptVersions = Math.max(1, keptVersions);
+    }
+
+    /**
+     * Método que guarda uma nova imagem de um dispositivo
+     *
+     * @param devName nome do dispositivo (user_id:dev_id)
+     * @param data    conteúdo da imagem
+     * @return versão guardada
+     * @throws IOException se não for possível escrever a imagem
+     */
+    public Version put(String devName, byte[] data) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(data);
+        String hash = toHex(digest.digest());
+
+        Version version = commit(devName, hash, data.length, null);
+        if (version != null) {
+            return version;
+        }
+        Path temp = Files.createTempFile(blobs, hash, ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                out.force(true);
+            }
+            return commit(devName, hash, data.length, temp);
+        } finally {
+            deleteQuietly(temp);
+        }
+    }
+
+    /**
+     * Método que guarda uma nova imagem de um dispositivo a partir de um ficheiro completo
+     * (ex: envio por partes). O ficheiro é movido para o armazenamento ou apagado se o seu
+     * conteúdo já estiver guardado
+     *
+     * @param devName nome do dispositivo (user_id:dev_id)
+     * @param file    ficheiro com a imagem, já gravado em disco
+     * @param hash    SHA-256 do conteúdo do ficheiro, em hexadecimal
+     * @return versão guardada
+     * @throws IOException se não for possível guardar a imagem
+     */
+    public Version putFile(String devName, Path file, String hash) throws IOException {
+        try {
+            return commit(devName, hash, Files.size(file), file);
+        } finally {
+            deleteQuietly(file);
+        }
+    }
+
+    /**
+     * Método que guarda uma imagem existente noutro formato (ex: imagens guardadas antes de
+     * existir este armazenamento), calculando o seu SHA-256
+     *
+     * @param devName nome do dispositivo (user_id:dev_id)
+     * @param file    ficheiro com a imagem, que é movido para o armazenamento
+     * @return versão guardada
+     * @throws IOException se não for possível ler ou guardar a imagem
+     */
+    public Version importFile(String devName, Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return putFile(devName, file, toHex(digest.digest()));
+    }
+
+    /**
+     * Método que regista uma nova versão de um dispositivo a apontar para o blob indicado.
+     * As versões de um dispositivo são criadas uma de cada vez (lock do dispositivo); a
+     * lista de versões é gravada sem o lock partilhado
+     *
+     * @param source ficheiro com o conteúdo, usado se o blob ainda não existir, ou null
+     * @return versão guardada ou null se o blob não existir e source for null
+     */
+    private Version commit(String devName, String hash, long size, Path source) throws IOException {
+        synchronized (deviceLocks.computeIfAbsent(devName, k -> new Object())) {
+            List<Version> versions = versionsByDevice.getOrDefault(devName, Collections.emptyList());
+            Version latest = versions.isEmpty() ? null : versions.get(versions.size() - 1);
+            if (latest != null && latest.getHash().equals(hash)) {
+                // imagem igual à última do dispositivo, não é criada uma nova versão
+                return latest;
+            }
+            if (!acquire(hash, source)) {
+                return null;
+            }
+
+            Version version = new Version(latest == null ? 1 : latest.getNumber() + 1, hash, size,
+                    System.currentTimeMillis());
+            List<Version> updated = new ArrayList<>(versions);
+            updated.add(version);
+            List<Version> removed = new ArrayList<>();
+            while (updated.size() > keptVersions) {
+                removed.add(updated.remove(0));
+            }
+
+            try {
+                writeRefs(devName, updated);
+            } catch (IOException e) {
+                release(hash);
+                throw e;
+            }
+            versionsByDevice.put(devName, Collections.unmodifiableList(updated));
+            for (Version old : removed) {
+                release(old.getHash());
+            }
+            return version;
+        }
+    }
+
+    /**
+     * Método que acrescenta uma referência a um blob, criando-o a partir de source se ainda
+     * não existir. A referência impede que o blob seja apagado enquanto a lista de versões
+     * que o refere é gravada
+     *
+     * @return true se o blob existe e foi referenciado, false se não existir e source for null
+     */
+    private boolean acquire(String hash, Path source) throws IOException {
+        synchronized (refCounts) {
+            if (!refCounts.containsKey(hash)) {
+                if (source == null) {
+                    return false;
+                }
+                // o conteúdo já foi gravado (fsync) por quem criou source, aqui só é movido
+                Path blob = blobPath(hash);
+                Files.createDirectories(blob.getParent());
+                Files.move(source, blob, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            refCounts.merge(hash, 1, Integer::sum);
+            return true;
+        }
+    }
+
+    /**
+     * Método que retira uma referência a um blob e o apaga se já não for referido
+     */
+    private void release(String hash) {
+        synchronized (refCounts) {
+            Integer count = refCounts.computeIfPresent(hash, (h, n) -> n == 1 ? null : n - 1);
+            if (count == null) {
+                deleteQuietly(blobPath(hash));
+            }
+        }
+    }
+
+    /**
+     * Método que grava a lista de versões de um dispositivo (ficheiro temporário, fsync e
+     * rename atómico)
+     */
+    private void writeRefs(String devName, List<Version> versions) throws IOException {
+        StringBuilder sb = new StringBuilder(devName).append('\n');
+        for (Version version : versions) {
+            sb.append(version.toLine()).append('\n');
+        }
+        Path file = refs.resolve(devName.replace(':', '_') + ".txt");
+        Path temp = refs.resolve(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Método que devolve uma versão da imagem de um dispositivo
+     *
+     * @param devName nome do dispositivo (user_id:dev_id)
+     * @param number  número da versão ou null para a última
+     * @return versão pedida ou null se não existir (ou já não estiver guardada)
+     */
+    public Version get(String devName, Long number) {
+        List<Version> versions = versionsByDevice.get(devName);
+        if (versions == null || versions.isEmpty()) {
+            return null;
+        }
+        if (number == null) {
+            return versions.get(versions.size() - 1);
+        }
+        for (Version version : versions) {
+            if (version.getNumber() == number) {
+                return version;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Método que devolve uma versão da imagem de um dispositivo e acrescenta uma referência
+     * ao seu blob, que só é apagado depois do unpin. A versão é procurada com o lock
+     * partilhado: uma versão substituída só perde a sua referência (release) depois de a
+     * nova lista de versões ser publicada, por isso o blob da versão devolvida existe
+     *
+     * @param devName nome do dispositivo (user_id:dev_id)
+     * @param number  número da versão ou null para a última
+     * @return versão pedida ou null se não existir (ou já não estiver guardada)
+     */
+    public Version pin(String devName, Long number) {
+        synchronized (refCounts) {
+            Version version = get(devName, number);
+            if (version != null) {
+                refCounts.merge(version.getHash(), 1, Integer::sum);
+            }
+            return version;
+        }
+    }
+
+    /**
+     * Método que retira a referência acrescentada pelo pin, apagando o blob se a versão já
+     * não for guardada
+     *
+     * @param version versão devolvida pelo pin
+     */
+    public void unpin(Version version) {
+        release(version.getHash());
+    }
+
+    /**
+     * Método que abre o conteúdo de uma versão para leitura. O ficheiro aberto continua
+     * legível mesmo que o blob seja apagado entretanto
+     *
+     * @param version versão a abrir
+     * @return canal do blob
+     * @throws IOException se o blob já não existir
+     */
+    public FileChannel open(Version version) throws IOException {
+        return FileChannel.open(blobPath(version.getHash()), StandardOpenOption.READ);
+    }
+
+    private Path blobPath(String hash) {
+        return blobs.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.err.println("Error deleting " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Método que cria um MessageDigest de SHA-256
+     *
+     * @return MessageDigest de SHA-256
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Método que converte um hash para hexadecimal
+     *
+     * @param hash bytes do hash
+     * @return hash em hexadecimal
+     */
+    public static String toHex(byte[] hash) {
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,202 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+
+/**
+ * Classe que representa o envio de uma imagem por partes (EIB, EIC e EIE).
+ *
+ * As partes são escritas diretamente num ficheiro temporário (.part), por isso a memória
+ * usada não depende do tamanho da imagem. Junto do ficheiro temporário é guardado um
+ * ficheiro .info com o tamanho total e a versão da imagem indicados pelo cliente: se a
+ * ligação cair a meio, um novo envio da mesma imagem continua a partir do que já foi
+ * escrito. O SHA-256 da imagem é calculado à medida que as partes chegam (num envio
+ * retomado, só em finish, a partir do ficheiro), e no fim o ficheiro temporário é entregue
+ * ao ImageStore.
+ *
+ * O início do envio e as partes não leem o ficheiro temporário, porque no front end NIO
+ * são tratados pela thread de I/O; finish é chamado por uma thread de escrita.
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class ImageUpload {
+
+    /**
+     * Tamanho máximo de uma parte, que é também o tamanho máximo de uma imagem enviada num
+     * só EI (o tamanho dos frames aceites pelo servidor é limitado a partir deste valor)
+     */
+    public static final int MAX_CHUNK_SIZE = MessageFrames.MAX_IMAGE_DATA_SIZE;
+
+    private final Path part;
+    private final Path info;
+    private final long total;
+    private final FileChannel channel;
+    private final MessageDigest digest = ImageStore.newDigest();
+    // num envio retomado o SHA-256 é calculado em finish, a partir do ficheiro
+    private final boolean resumed;
+    private long offset;
+    private boolean failed;
+    private String hash;
+
+    private ImageUpload(Path target, long total, long tag) throws IOException {
+        this.part = Paths.get(target + ".part");
+        this.info = Paths.get(target + ".part.info");
+        this.total = total;
+
+        boolean resume = false;
+        if (Files.exists(part) && Files.exists(info)) {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(info))) {
+                resume = in.readLong() == total && in.readLong() == tag;
+            } catch (IOException e) {
+                resume = false;
+            }
+        }
+        if (!resume) {
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(info))) {
+                out.writeLong(total);
+                out.writeLong(tag);
+            }
+        }
+
+        this.channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (!resume || channel.size() > total) {
+            channel.truncate(0);
+        }
+        this.offset = channel.size();
+        this.resumed = offset > 0;
+    }
+
+    /**
+     * Método que inicia (ou retoma) o envio de uma imagem
+     *
+     * @param target caminho da imagem, usado como base dos nomes dos ficheiros temporários
+     * @param total  tamanho total da imagem em bytes
+     * @param tag    versão da imagem no cliente, usada para decidir se o envio pode ser retomado
+     * @return envio iniciado
+     * @throws IOException se não for possível criar o ficheiro temporário
+     */
+    public static ImageUpload begin(String target, long total, long tag) throws IOException {
+        return new ImageUpload(Paths.get(target), total, tag);
+    }
+
+    /**
+     * Método que devolve a posição a partir da qual o cliente deve enviar a imagem
+     *
+     * @return número de bytes já escritos
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Método que escreve uma parte da imagem. Uma parte fora de ordem, demasiado grande ou
+     * que ultrapasse o tamanho total faz falhar o envio
+     *
+     * @param position posição da parte na imagem
+     * @param data     conteúdo da parte
+     */
+    public void write(long position, byte[] data) {
+        if (failed) {
+            return;
+        }
+        if (data == null || position != offset || data.length > MAX_CHUNK_SIZE || offset + data.length > total) {
+            failed = true;
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                offset += channel.write(buffer, offset);
+            }
+            if (!resumed) {
+                digest.update(data);
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing image chunk: " + e.getMessage());
+            failed = true;
+        }
+    }
+
+    /**
+     * Método que termina o envio: se a imagem estiver completa, o ficheiro temporário
+     * é gravado em disco e fica pronto a ser guardado (ver getPath e getHash). Pode ler o
+     * ficheiro todo (envio retomado) e espera pelo disco, por isso não deve ser chamado
+     * pela thread de I/O do front end NIO
+     *
+     * @return true se a imagem foi recebida por completo
+     */
+    public boolean finish() {
+        try {
+            if (failed || offset != total) {
+                return false;
+            }
+            channel.force(true);
+            if (resumed) {
+                hashFile();
+            }
+            channel.close();
+            Files.deleteIfExists(info);
+            hash = ImageStore.toHex(digest.digest());
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error saving image: " + e.getMessage());
+            return false;
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Método que calcula o SHA-256 da imagem a partir do ficheiro temporário
+     */
+    private void hashFile() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        while (position < total) {
+            buffer.clear();
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Image truncated while hashing");
+            }
+            digest.update(buffer.array(), 0, n);
+            position += n;
+        }
+    }
+
+    /**
+     * Método que devolve o ficheiro com a imagem recebida
+     *
+     * @return ficheiro temporário com a imagem
+     */
+    public Path getPath() {
+        return part;
+    }
+
+    /**
+     * Método que devolve o SHA-256 da imagem recebida, depois de finish
+     *
+     * @return SHA-256 em hexadecimal ou null se o envio não terminou
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Método que fecha o ficheiro temporário. O que já foi escrito é mantido para que o
+     * envio possa ser retomado
+     */
+    public void close() {
+        try {
+            if (channel.isOpen()) {
+                channel.force(false);
+                channel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing image upload");
+        }
+    }
+}
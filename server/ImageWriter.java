@@ -0,0 +1,242 @@
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classe que representa a escrita em segundo plano (write-behind) das imagens enviadas
+ * numa única mensagem (EI), para que a resposta ao cliente não dependa da latência do disco.
+ *
+ * As imagens ficam numa fila limitada pelo total de bytes e são guardadas no ImageStore por
+ * um pequeno conjunto de threads de escrita:
+ *  - as imagens de um dispositivo são escritas pela ordem em que chegaram, uma de cada vez
+ *  - se chegar uma nova imagem de um dispositivo cuja imagem anterior ainda não começou a
+ *    ser escrita, a anterior é substituída e nunca chega a ser escrita (coalescing)
+ *  - se a fila estiver cheia, submit devolve null e a imagem deve ser escrita por quem a
+ *    recebeu, o que limita a memória usada sem bloquear as threads de I/O (exceto se
+ *    houver uma imagem do dispositivo a ser escrita, caso em que a fila pode ultrapassar o
+ *    limite em uma imagem por dispositivo)
+ *  - uma imagem guardada fora da fila (ex: envio por partes) deve esperar pelas imagens do
+ *    dispositivo que ainda estão na fila (ver await), para que as versões sigam a ordem dos
+ *    pedidos
+ *
+ * As mesmas threads fazem as escritas que o front end NIO não pode fazer na thread de I/O
+ * (ver execute): a imagem do modo sync ou com a fila cheia e o fim de um envio por partes.
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class ImageWriter {
+
+    /**
+     * Total de bytes das imagens à espera de serem escritas
+     */
+    public static final long MAX_PENDING_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Número de threads de escrita
+     */
+    public static final int WRITER_THREADS = 2;
+
+    /**
+     * Escrita de uma imagem no ImageStore
+     */
+    public interface StoreTask {
+
+        /**
+         * Método que guarda a imagem
+         *
+         * @return versão guardada ou null se não havia imagem para guardar
+         * @throws IOException se ocorrer um erro de escrita
+         * @throws InterruptedException se a thread for interrompida enquanto espera
+         */
+        ImageStore.Version store() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Imagem de um dispositivo à espera de ser escrita
+     */
+    private static final class Pending {
+        private byte[] data;
+        private final CompletableFuture<ImageStore.Version> done = new CompletableFuture<>();
+
+        private Pending(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    private final ImageStore store;
+    private final ServerConfig.ImageWriteMode mode;
+    private final ExecutorService writers = Executors.newFixedThreadPool(WRITER_THREADS);
+
+    private final Map<String, Pending> pending = new HashMap<>();
+    private final Set<String> writing = new HashSet<>();
+    private final Map<String, CompletableFuture<ImageStore.Version>> latest = new HashMap<>();
+    private long pendingBytes;
+
+    /**
+     * Construtor de um ImageWriter
+     *
+     * @param store armazenamento onde as imagens são guardadas
+     * @param mode  modo de escrita das imagens enviadas num único EI
+     */
+    public ImageWriter(ImageStore store, ServerConfig.ImageWriteMode mode) {
+        this.store = store;
+        this.mode = mode;
+    }
+
+    /**
+     * Método que indica se as imagens enviadas num único EI passam pela fila de escrita
+     *
+     * @return false no modo sync, em que a imagem é guardada antes da resposta
+     */
+    public boolean isQueued() {
+        return mode != ServerConfig.ImageWriteMode.SYNC;
+    }
+
+    /**
+     * Método que indica se a resposta ao cliente deve esperar que a imagem esteja em disco
+     *
+     * @return true se as escritas são confirmadas só depois de estarem em disco
+     */
+    public boolean isDurable() {
+        return mode == ServerConfig.ImageWriteMode.DURABLE;
+    }
+
+    /**
+     * Método que coloca uma imagem na fila de escrita
+     *
+     * @param devName nome do dispositivo (user_id:dev_id)
+     * @param data    conteúdo da imagem
+     * @return escrita da imagem, concluída com a versão guardada (a de uma imagem mais
+     *         recente se esta for substituída), ou null se a fila estiver cheia
+     */
+    public CompletableFuture<ImageStore.Version> submit(String devName, byte[] data) {
+        synchronized (this) {
+            Pending queued = pending.get(devName);
+            if (queued != null) {
+                pendingBytes += data.length - queued.data.length;
+                queued.data = data;
+                return queued.done;
+            }
+            if (pendingBytes + data.length > MAX_PENDING_BYTES && !writing.contains(devName)) {
+                // com uma imagem do dispositivo a ser escrita, esta tem de ficar na fila
+                // mesmo que a fila esteja cheia, para ser escrita depois da anterior
+                return null;
+            }
+            queued = new Pending(data);
+            pending.put(devName, queued);
+            latest.put(devName, queued.done);
+            pendingBytes += data.length;
+            if (!writing.add(devName)) {
+                // a thread que está a escrever a imagem anterior escreve esta a seguir
+                return queued.done;
+            }
+            try {
+                writers.execute(() -> drain(devName));
+            } catch (RejectedExecutionException e) {
+                // servidor a terminar, a imagem é escrita por quem a recebeu
+                pending.remove(devName);
+                writing.remove(devName);
+                latest.remove(devName);
+                pendingBytes -= data.length;
+                return null;
+            }
+            return queued.done;
+        }
+    }
+
+    /**
+     * Método que executa uma escrita numa das threads de escrita, fora da fila (não conta
+     * para o limite da fila nem é substituída por imagens mais recentes)
+     *
+     * @param task escrita a executar
+     * @return escrita da imagem, concluída com a versão guardada ou com o erro da escrita
+     */
+    public CompletableFuture<ImageStore.Version> execute(StoreTask task) {
+        CompletableFuture<ImageStore.Version> done = new CompletableFuture<>();
+        try {
+            writers.execute(() -> {
+                try {
+                    done.complete(task.store());
+                } catch (IOException | RuntimeException e) {
+                    done.completeExceptionally(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    done.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            done.completeExceptionally(new IOException("Image writer is closed"));
+        }
+        return done;
+    }
+
+    /**
+     * Método que escreve as imagens de um dispositivo até não haver mais na fila
+     */
+    private void drain(String devName) {
+        while (true) {
+            Pending next;
+            synchronized (this) {
+                next = pending.remove(devName);
+                if (next == null) {
+                    writing.remove(devName);
+                    latest.remove(devName);
+                    return;
+                }
+                pendingBytes -= next.data.length;
+            }
+            try {
+                next.done.complete(store.put(devName, next.data));
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error saving image of " + devName + ": " + e.getMessage());
+                next.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Método que espera que as imagens de um dispositivo que estão na fila ou a ser escritas
+     * fiquem guardadas. Um erro na escrita dessas imagens não é propagado (já foi registado
+     * por quem a escreveu)
+     *
+     * @param devName nome do dispositivo (user_id:dev_id)
+     * @throws InterruptedException se a thread for interrompida enquanto espera
+     */
+    public void await(String devName) throws InterruptedException {
+        CompletableFuture<ImageStore.Version> last;
+        synchronized (this) {
+            last = latest.get(devName);
+        }
+        if (last != null) {
+            try {
+                last.get();
+            } catch (ExecutionException e) {
+                // a imagem anterior não foi guardada, a seguinte pode ser
+            }
+        }
+    }
+
+    /**
+     * Método que escreve as imagens que ainda estão na fila e termina as threads de escrita
+     */
+    public void close() {
+        writers.shutdown();
+        try {
+            if (!writers.awaitTermination(60, TimeUnit.SECONDS)) {
+                System.err.println("Timed out writing pending images");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
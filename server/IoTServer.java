@@ -1,7 +1,14 @@
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -23,42 +30,59 @@ public class IoTServer {
      */
     public static void main(String[] args) {
 
-        
-        List<ServerThread> activeThreads = Collections.synchronizedList(new ArrayList<>());
+        ServerConfig config = null;
+        try {
+            config = ServerConfig.fromArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(-1);
+        }
         
         SharedInfoSingleton info = SharedInfoSingleton.getInstance();
+        info.setHistoryRetention(config.getRetentionDays());
+        info.setImageVersions(config.getImageVersions());
+        info.setImageCacheSize(config.getImageCacheMb());
+        info.setImageWriteMode(config.getImageWriteMode());
+        info.setPushInterval(config.getPushIntervalMs());
         scheduler.scheduleAtFixedRate(info::backupInfo, 10, 30, TimeUnit.SECONDS);
         
         Utils.prepareServer();
 
-        int port;
-
-        if (args.length > 1) {
-            System.out.println("Wrong amount of paramenters!");
-            System.exit(-1);
+        System.out.println("I/O mode: " + config.getIoMode().name().toLowerCase());
+        if (config.getIoMode() == ServerConfig.IoMode.NIO) {
+            runNio(config, info);
+        } else {
+            runThreaded(config, info);
         }
 
-        port = args.length == 0 ? 12345 : Integer.parseInt(args[0]);
+    }
+
+    /**
+     * Método que corre o servidor com uma thread (de plataforma ou virtual) por ligação
+     * 
+     * @param config configuração do servidor
+     * @param info   Informação partilhada entre os threads
+     */
+    private static void runThreaded(ServerConfig config, SharedInfoSingleton info) {
 
+        Set<ServerThread> activeThreads = ConcurrentHashMap.newKeySet();
+        // cada ligação (e a tarefa das suas notificações) corre numa thread nova, virtual ou de plataforma
+        Executor executor = config.getIoMode() == ServerConfig.IoMode.VIRTUAL
+                ? newVirtualThreadExecutor()
+                : task -> new Thread(task).start();
 
         try {
-            ServerSocket serverSocket = new ServerSocket(port);
+            // os sockets são obtidos a partir de um canal para que as imagens (RI) possam ser
+            // enviadas com FileChannel.transferTo
+            ServerSocketChannel serverSocket = ServerSocketChannel.open();
+            serverSocket.bind(new InetSocketAddress(config.getPort()), ServerConfig.ACCEPT_BACKLOG);
             System.out.println("Server running...");
             // Adiciona um hook para fechar os sockets e guardar a informação
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 for (ServerThread thread : activeThreads) {
                     thread.shutdown();
                 }
-                info.backupInfo();
-
-                scheduler.shutdown();
-                try {
-                    if (!scheduler.awaitTermination(60, TimeUnit.SECONDS)) {
-                        scheduler.shutdownNow();
-                    }
-                } catch (InterruptedException e) {
-                    scheduler.shutdownNow();
-                }
+                shutdownServer(info);
                 
                 try {
                     serverSocket.close();
@@ -70,10 +94,18 @@ public class IoTServer {
             while (true) {
                 Socket clientSocket = null;
                 try {
-                    clientSocket = serverSocket.accept();
-                    ServerThread newServerThread = new ServerThread(clientSocket, info);
+                    clientSocket = serverSocket.accept().socket();
+                    clientSocket.setTcpNoDelay(true);
+                    ServerThread newServerThread = new ServerThread(clientSocket, info, executor);
                     activeThreads.add(newServerThread);
-                    newServerThread.start();
+                    Runnable task = () -> {
+                        try {
+                            newServerThread.run();
+                        } finally {
+                            activeThreads.remove(newServerThread);
+                        }
+                    };
+                    executor.execute(task);
 
                 } catch (IOException e) {
                     System.err.println(e.getMessage());
@@ -87,7 +119,82 @@ public class IoTServer {
             System.exit(-1);
 
         }
+    }
+
+    /**
+     * Método que cria um executor com uma thread virtual por tarefa. O servidor é compilado
+     * para Java 17, por isso o executor é obtido por reflexão e só existe a partir do Java 21.
+     * Em versões anteriores é usado um executor com threads de plataforma.
+     * 
+     * @return executor com uma thread virtual por tarefa
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads require Java 21 or newer, using platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Método que corre o servidor com o front end não bloqueante (Selector + SocketChannel)
+     * 
+     * @param config configuração do servidor
+     * @param info   Informação partilhada entre os threads
+     */
+    private static void runNio(ServerConfig config, SharedInfoSingleton info) {
+        try {
+            NioServer nioServer = new NioServer(config.getPort(), config.getIoThreads(), info);
+            System.out.println("Server running (" + config.getIoThreads() + " io threads)...");
+            // Adiciona um hook para fechar as ligações e guardar a informação
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                nioServer.shutdown();
+                shutdownServer(info);
+            }));
+            nioServer.run();
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Método que guarda a informação e termina o scheduler de backups
+     * 
+     * @param info Informação partilhada entre os threads
+     */
+    private static void shutdownServer(SharedInfoSingleton info) {
+        info.shutdown();
+        printResourceUsage();
+
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(60, TimeUnit.SECONDS)) {
+                scheduler.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            scheduler.shutdownNow();
+        }
+    }
 
+    /**
+     * Método que imprime o pico de threads de plataforma e o pico da memória residente
+     * (VmHWM, só em Linux) do servidor, para comparar os modos de I/O (ver LoadGenerator)
+     */
+    private static void printResourceUsage() {
+        String rss = "unknown";
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    rss = line.substring("VmHWM:".length()).trim();
+                }
+            }
+        } catch (IOException e) {
+            // /proc só existe em Linux
+        }
+        System.out.println("Peak threads: " + ManagementFactory.getThreadMXBean().getPeakThreadCount()
+                + ", peak RSS: " + rss);
     }
 
 }
@@ -0,0 +1,538 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Classe que representa o estado de uma ligação de um cliente no front end NIO.
+ * Acumula os bytes recebidos até ter frames completos, descodifica-os e entrega-os
+ * ao ServerThreadHandler, seguindo as mesmas fases do ServerThread (negociação do formato,
+ * autenticação do utilizador, do device id, do executável e ciclo de comandos).
+ *
+ * As alterações feitas por um pedido são escritas no write-ahead log sem bloquear o worker:
+ * a resposta fica na fila de escrita até o log estar em disco e, entretanto, a ligação não
+ * processa mais pedidos (as respostas seguem a ordem dos pedidos). As outras ligações do
+ * worker continuam a ser servidas. O mesmo acontece com as imagens que têm de ser guardadas
+ * antes da resposta, que são escritas pelas threads do ImageWriter.
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class NioConnection {
+
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Fases de uma ligação
+     */
+    private enum State {
+        HELLO, USER, DEV_ID, EXEC, COMMANDS, CLOSING, CLOSED
+    }
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ServerThreadHandler handler;
+    private final NioWorker worker;
+    private boolean subscribed = false;
+
+    /**
+     * Dados à espera de serem escritos no canal: um frame ou uma imagem enviada diretamente
+     * do ficheiro
+     */
+    private interface PendingWrite {
+
+        /**
+         * Método que escreve o máximo possível sem bloquear
+         *
+         * @param channel canal do cliente
+         * @return true se já foi tudo escrito
+         * @throws IOException se ocorrer um erro de escrita ou de leitura do ficheiro
+         */
+        boolean writeTo(SocketChannel channel) throws IOException;
+
+        /**
+         * Método que indica se os dados já podem ser escritos
+         *
+         * @return false se os dados estão à espera de outro evento que não o canal
+         */
+        default boolean isReady() {
+            return true;
+        }
+
+        /**
+         * Método que liberta os recursos associados
+         */
+        default void release() {
+        }
+    }
+
+    /**
+     * Bytes em memória por escrever
+     */
+    private static final class BufferWrite implements PendingWrite {
+        private final ByteBuffer buffer;
+
+        private BufferWrite(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            channel.write(buffer);
+            return !buffer.hasRemaining();
+        }
+    }
+
+    /**
+     * Resposta que só pode ser escrita quando as alterações do pedido estiverem no
+     * write-ahead log. Se a escrita no log falhar é enviada a resposta de erro
+     */
+    private static final class DurableWrite implements PendingWrite {
+        private final CompletableFuture<Void> durable;
+        private ByteBuffer buffer;
+        private final ByteBuffer error;
+
+        private DurableWrite(CompletableFuture<Void> durable, ByteBuffer buffer, ByteBuffer error) {
+            this.durable = durable;
+            this.buffer = buffer;
+            this.error = error;
+        }
+
+        @Override
+        public boolean isReady() {
+            return durable.isDone();
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            if (!isReady()) {
+                return false;
+            }
+            if (durable.isCompletedExceptionally()) {
+                buffer = error;
+            }
+            channel.write(buffer);
+            return !buffer.hasRemaining();
+        }
+    }
+
+    /**
+     * Resposta que só é conhecida quando terminar uma escrita feita noutra thread (ex: imagem
+     * guardada pelo ImageWriter)
+     */
+    private static final class DeferredWrite implements PendingWrite {
+        private final CompletableFuture<Message> reply;
+        private final Long requestId;
+        private final MessageCodec codec;
+        private ByteBuffer buffer;
+
+        private DeferredWrite(CompletableFuture<Message> reply, Long requestId, MessageCodec codec) {
+            this.reply = reply;
+            this.requestId = requestId;
+            this.codec = codec;
+        }
+
+        @Override
+        public boolean isReady() {
+            return reply.isDone();
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            if (!isReady()) {
+                return false;
+            }
+            if (buffer == null) {
+                Message msg = reply.join();
+                msg.setRequestId(requestId);
+                buffer = frame(codec, msg);
+            }
+            channel.write(buffer);
+            return !buffer.hasRemaining();
+        }
+    }
+
+    /**
+     * Região de um ficheiro por escrever, enviada com FileChannel.transferTo (sendfile) sem
+     * passar pela heap
+     */
+    private static final class FileRegion implements PendingWrite {
+        private final FileChannel file;
+        private final long size;
+        private long position;
+
+        private FileRegion(FileChannel file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            while (position < size) {
+                long sent = file.transferTo(position, size - position, channel);
+                if (sent <= 0) {
+                    if (position >= file.size()) {
+                        throw new IOException("Image truncated while sending");
+                    }
+                    return false;
+                }
+                position += sent;
+            }
+            release();
+            return true;
+        }
+
+        @Override
+        public void release() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                System.err.println("Error closing image file");
+            }
+        }
+    }
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private final Deque<PendingWrite> writeQueue = new ArrayDeque<>();
+    private State state = State.HELLO;
+
+    /**
+     * Construtor de uma NioConnection
+     *
+     * @param channel canal do cliente
+     * @param key     chave do canal no Selector do worker
+     * @param handler handler que executa os pedidos do cliente
+     * @param worker  worker a que a ligação pertence
+     */
+    public NioConnection(SocketChannel channel, SelectionKey key, ServerThreadHandler handler, NioWorker worker) {
+        this.channel = channel;
+        this.key = key;
+        this.handler = handler;
+        this.worker = worker;
+    }
+
+    /**
+     * Método chamado quando o canal tem dados para ler
+     *
+     * @throws IOException se ocorrer um erro de leitura
+     */
+    public void onReadable() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            close();
+            return;
+        }
+        processFrames();
+        sendPushes();
+    }
+
+    /**
+     * Método chamado quando o canal pode voltar a ser escrito
+     *
+     * @throws IOException se ocorrer um erro de escrita
+     */
+    public void onWritable() throws IOException {
+        flush();
+        if (writeQueue.isEmpty() && state != State.CLOSED) {
+            // pode haver pedidos completos que ficaram à espera que a escrita terminasse
+            processFrames();
+            sendPushes();
+        }
+    }
+
+    /**
+     * Método chamado pelo worker quando terminou a escrita (no write-ahead log ou de uma
+     * imagem) de que depende uma resposta que está na fila de escrita
+     */
+    private void onReplyReady() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        try {
+            onWritable();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Método que envia as notificações dos dominios subscritos enquanto a fila de escrita
+     * estiver vazia. As que não forem enviadas ficam no subscritor, que só guarda as últimas
+     * temperaturas se o cliente não as ler
+     */
+    private void sendPushes() {
+        Subscriptions.Subscriber subscriber = handler.getSubscriber();
+        if (subscriber == null || state != State.COMMANDS) {
+            return;
+        }
+        try {
+            Message push;
+            while (writeQueue.isEmpty() && (push = subscriber.poll()) != null) {
+                send(push);
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Método que processa todos os frames completos presentes no buffer de leitura.
+     * Enquanto houver respostas por enviar não são processados mais pedidos, de modo a
+     * que um cliente que não lê as respostas não faça crescer a fila de escrita.
+     */
+    private void processFrames() throws IOException {
+        readBuffer.flip();
+        try {
+            if (state == State.HELLO && !processHello()) {
+                return;
+            }
+            while (state != State.CLOSING && state != State.CLOSED && writeQueue.isEmpty()
+                    && readBuffer.remaining() >= MessageFrames.HEADER_SIZE) {
+                int length = readBuffer.getInt(readBuffer.position());
+                // o tamanho é verificado antes de o buffer crescer para o frame
+                int maxLength = state == State.COMMANDS ? MessageFrames.MAX_FRAME_SIZE
+                        : MessageFrames.MAX_AUTH_FRAME_SIZE;
+                if (length < 0 || length > maxLength) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                if (readBuffer.remaining() < MessageFrames.HEADER_SIZE + length) {
+                    ensureCapacity(MessageFrames.HEADER_SIZE + length);
+                    return;
+                }
+                readBuffer.position(readBuffer.position() + MessageFrames.HEADER_SIZE);
+                byte[] payload = new byte[length];
+                readBuffer.get(payload);
+                handleMessage(handler.getCodec().decode(payload));
+            }
+        } finally {
+            if (state != State.CLOSED) {
+                readBuffer.compact();
+                shrinkIfIdle();
+            }
+        }
+    }
+
+    /**
+     * Método que processa o HELLO do cliente e responde com o formato escolhido
+     *
+     * @return true se o HELLO foi processado, false se ainda não chegou completo
+     */
+    private boolean processHello() throws IOException {
+        if (readBuffer.remaining() < MessageFrames.HELLO_HEADER_SIZE) {
+            return false;
+        }
+        int start = readBuffer.position();
+        int count = readBuffer.get(start + 4) & 0xFF;
+        if (readBuffer.remaining() < MessageFrames.HELLO_HEADER_SIZE + count) {
+            return false;
+        }
+        if (readBuffer.getInt() != MessageFrames.MAGIC) {
+            throw new IOException("Invalid protocol hello");
+        }
+        readBuffer.get();
+        byte[] offered = new byte[count];
+        readBuffer.get(offered);
+
+        MessageCodec codec = MessageFrames.selectCodec(offered);
+        if (codec == null) {
+            state = State.CLOSING;
+            enqueue(new BufferWrite(ByteBuffer.wrap(new byte[] { MessageFrames.NO_CODEC })));
+            return false;
+        }
+        handler.setCodec(codec);
+        state = State.USER;
+        enqueue(new BufferWrite(ByteBuffer.wrap(new byte[] { codec.getId() })));
+        return true;
+    }
+
+    /**
+     * Método que garante que o buffer de leitura (em modo de leitura) tem capacidade
+     * para um frame com o tamanho indicado
+     */
+    private void ensureCapacity(int frameSize) {
+        if (readBuffer.capacity() < frameSize) {
+            ByteBuffer bigger = ByteBuffer.allocate(frameSize);
+            bigger.put(readBuffer);
+            bigger.flip();
+            readBuffer = bigger;
+        }
+    }
+
+    /**
+     * Método que liberta o buffer aumentado para um frame grande (ex: imagem) quando
+     * os dados pendentes, incluindo o frame incompleto que esteja a ser recebido, já
+     * cabem no buffer inicial
+     */
+    private void shrinkIfIdle() {
+        int pending = readBuffer.position();
+        if (pending >= MessageFrames.HEADER_SIZE
+                && MessageFrames.HEADER_SIZE + (long) readBuffer.getInt(0) > INITIAL_BUFFER_SIZE) {
+            // o frame pendente precisa do buffer aumentado
+            return;
+        }
+        if (readBuffer.capacity() > INITIAL_BUFFER_SIZE && pending <= INITIAL_BUFFER_SIZE) {
+            ByteBuffer smaller = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            readBuffer.flip();
+            smaller.put(readBuffer);
+            readBuffer = smaller;
+        }
+    }
+
+    /**
+     * Método que trata uma mensagem recebida de acordo com a fase da ligação
+     *
+     * @param msg mensagem recebida
+     */
+    private void handleMessage(Message msg) throws IOException {
+        switch (state) {
+            case USER:
+                msg = handler.authenticateUser(msg);
+                if (msg.getCode() == MessageCode.ERROR) {
+                    state = State.CLOSING;
+                } else if (msg.getCode() != MessageCode.WRONG_PWD) {
+                    state = State.DEV_ID;
+                }
+                send(msg);
+                break;
+            case DEV_ID:
+                msg = handler.authenticateDevId(msg);
+                if (msg.getCode() == MessageCode.ERROR) {
+                    state = State.CLOSING;
+                } else if (msg.getCode() != MessageCode.NOK_DEVID) {
+                    state = State.EXEC;
+                }
+                send(msg);
+                break;
+            case EXEC:
+                state = State.COMMANDS;
+                send(handler.authenticateExec(msg));
+                break;
+            case COMMANDS:
+                if ("EXIT".equals(msg.getCommand())) {
+                    state = State.CLOSING;
+                    Message reply = new Message();
+                    reply.setRequestId(msg.getRequestId());
+                    send(reply);
+                } else {
+                    Message reply = handler.processCommand(msg);
+                    CompletableFuture<Message> deferred = handler.takeDeferredReply();
+                    if (deferred != null) {
+                        enqueue(new DeferredWrite(deferred, msg.getRequestId(), handler.getCodec()));
+                        deferred.whenComplete((m, e) -> worker.execute(this::onReplyReady));
+                    } else if (reply != null) {
+                        send(reply);
+                    }
+                    if (!subscribed && handler.getSubscriber() != null) {
+                        // as notificações são criadas noutra thread e enviadas pelo worker
+                        subscribed = true;
+                        handler.getSubscriber().setListener(() -> worker.execute(this::sendPushes));
+                    }
+                    // imagem do RI, enviada a seguir à resposta
+                    ByteBuffer cached = handler.takeReplyBuffer();
+                    if (cached != null) {
+                        enqueue(new BufferWrite(cached));
+                    }
+                    FileChannel body = handler.takeReplyFile();
+                    if (body != null) {
+                        enqueue(new FileRegion(body, reply.getSize()));
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Método que coloca uma mensagem na fila de escrita e tenta enviá-la. Se o pedido a
+     * que responde alterou o estado, a mensagem só é enviada quando a alteração estiver
+     * no write-ahead log, ou é trocada por uma resposta ERROR se a escrita falhar
+     *
+     * @param msg mensagem a enviar
+     */
+    private void send(Message msg) throws IOException {
+        ByteBuffer frame = frame(handler.getCodec(), msg);
+        CompletableFuture<Void> durable = handler.takeLogWrites();
+        if (durable == null) {
+            enqueue(new BufferWrite(frame));
+        } else {
+            Message error = new Message();
+            error.setRequestId(msg.getRequestId());
+            error.setCode(MessageCode.ERROR);
+            enqueue(new DurableWrite(durable, frame, frame(handler.getCodec(), error)));
+            durable.whenComplete((v, e) -> worker.execute(this::onReplyReady));
+        }
+    }
+
+    /**
+     * Método que cria o frame de uma mensagem
+     *
+     * @param codec formato das mensagens da ligação
+     * @param msg   mensagem
+     * @return buffer com o frame, pronto a ser escrito
+     */
+    private static ByteBuffer frame(MessageCodec codec, Message msg) throws IOException {
+        byte[] payload = codec.encode(msg);
+        ByteBuffer frame = ByteBuffer.allocate(MessageFrames.HEADER_SIZE + payload.length);
+        frame.putInt(payload.length);
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Método que coloca dados na fila de escrita e tenta enviá-los
+     *
+     * @param write dados a enviar
+     */
+    private void enqueue(PendingWrite write) throws IOException {
+        writeQueue.add(write);
+        flush();
+    }
+
+    /**
+     * Método que escreve o máximo possível da fila de escrita sem bloquear
+     */
+    private void flush() throws IOException {
+        while (!writeQueue.isEmpty()) {
+            PendingWrite next = writeQueue.peek();
+            if (!next.writeTo(channel)) {
+                // uma resposta à espera de uma escrita é retomada pelo worker (onReplyReady), não pelo canal
+                key.interestOps(next.isReady() ? SelectionKey.OP_WRITE : 0);
+                return;
+            }
+            writeQueue.poll();
+        }
+        if (state == State.CLOSING) {
+            close();
+        } else if (state != State.CLOSED) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Método que fecha a ligação e liberta os recursos associados (ver ServerThreadHandler.releaseConnection)
+     */
+    public void close() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.CLOSED;
+        handler.releaseConnection();
+        for (PendingWrite write : writeQueue) {
+            write.release();
+        }
+        writeQueue.clear();
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing client channel");
+        }
+    }
+}
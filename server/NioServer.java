@@ -0,0 +1,81 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Classe que representa o front end não bloqueante do servidor. As ligações são aceites
+ * nesta classe e distribuídas (round-robin) por um pequeno conjunto de NioWorkers, cada um
+ * com o seu Selector, que descodificam os pedidos e os entregam ao ServerThreadHandler.
+ * O número de ligações fica assim limitado pelos file descriptors e não pelas threads.
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class NioServer {
+
+    private final ServerSocketChannel serverChannel;
+    private final NioWorker[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    private volatile boolean running = true;
+
+    /**
+     * Construtor do NioServer
+     *
+     * @param port      porto onde aceitar ligações
+     * @param ioThreads número de threads de I/O
+     * @param info      Informação partilhada entre os threads
+     * @throws IOException se não for possível abrir o porto ou os selectors
+     */
+    public NioServer(int port, int ioThreads, SharedInfoSingleton info) throws IOException {
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port), ServerConfig.ACCEPT_BACKLOG);
+        this.workers = new NioWorker[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            workers[i] = new NioWorker(info);
+        }
+    }
+
+    /**
+     * Método que arranca as threads de I/O e fica a aceitar ligações até o servidor ser desligado
+     */
+    public void run() {
+        for (int i = 0; i < workers.length; i++) {
+            Thread t = new Thread(workers[i], "nio-worker-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                int index = Math.floorMod(nextWorker.getAndIncrement(), workers.length);
+                workers[index].register(channel);
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Método que desliga o front end, fechando todas as ligações ativas
+     */
+    public void shutdown() {
+        running = false;
+        for (NioWorker worker : workers) {
+            worker.shutdown();
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing server channel");
+        }
+    }
+}
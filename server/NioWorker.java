@@ -0,0 +1,136 @@
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Classe que representa uma thread de I/O do front end NIO. Cada worker tem o seu Selector
+ * e trata de todas as ligações que lhe foram atribuídas.
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class NioWorker implements Runnable {
+
+    private final SharedInfoSingleton info;
+    private final Selector selector;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running = true;
+
+    /**
+     * Construtor do NioWorker
+     *
+     * @param info Informação partilhada entre os threads
+     * @throws IOException se não for possível abrir o Selector
+     */
+    public NioWorker(SharedInfoSingleton info) throws IOException {
+        this.info = info;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Método que atribui uma nova ligação a este worker
+     *
+     * @param channel canal (não bloqueante) do cliente
+     */
+    public void register(SocketChannel channel) {
+        pending.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Método que executa uma tarefa na thread do worker (ex: enviar notificações), a única
+     * que pode usar as ligações que lhe foram atribuídas
+     *
+     * @param task tarefa a executar
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Método que corre o ciclo de seleção do worker
+     */
+    public void run() {
+        // as respostas às alterações são enviadas quando o write-ahead log as escrever,
+        // sem bloquear a thread (ver NioConnection)
+        info.deferLogWrites();
+        try {
+            while (running) {
+                selector.select();
+                registerPending();
+                runTasks();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection conn = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            conn.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            conn.onWritable();
+                        }
+                    } catch (IOException e) {
+                        conn.close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                System.err.println("Error in NIO worker: " + e.getMessage());
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pending.poll()) != null) {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(channel, key, new ServerThreadHandler(info), this));
+                System.out.println("Connection active...");
+            } catch (IOException e) {
+                System.err.println("Error registering connection: " + e.getMessage());
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException e) {
+            System.err.println("Error closing NIO worker");
+        }
+    }
+
+    /**
+     * Método que sinaliza que o worker deve terminar
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Classe que compara as duas formas de procurar um dispositivo pelo nome no registo do
+ * servidor (ver SharedInfoSingleton.getDeviceByName), que é feito em quase todos os pedidos:
+ *  - list: a lista com o read lock do registo, percorrida até encontrar o nome (a forma
+ *    usada antes dos indices)
+ *  - map: o ConcurrentHashMap indexado pelo nome, sem lock
+ *
+ * Para cada tamanho do registo são medidas as procuras por segundo com uma e com várias
+ * threads, procurando nomes aleatórios (todos existem).
+ *
+ * Formato: java -cp IoTServer.jar RegistryBenchmark [threads] [seconds] [size...]
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class RegistryBenchmark {
+
+    private static volatile long sink;
+
+    /**
+     * Procura de um dispositivo pelo nome
+     */
+    private interface Lookup {
+        Device find(String devName);
+    }
+
+    /**
+     * Método main do benchmark
+     * @param args número de threads (8), segundos de cada medição (3) e tamanhos do
+     *             registo (1000 10000 100000)
+     * @throws InterruptedException se a thread for interrompida enquanto espera pelas outras
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 3;
+        int[] sizes = { 1_000, 10_000, 100_000 };
+        if (args.length > 2) {
+            sizes = new int[args.length - 2];
+            for (int i = 2; i < args.length; i++) {
+                sizes[i - 2] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.printf("%-8s %9s %16s %16s%n", "lookup", "devices", "1 thread (/s)",
+                threads + " threads (/s)");
+        for (int size : sizes) {
+            String[] names = new String[size];
+            List<Device> list = new ArrayList<>(size);
+            ConcurrentHashMap<String, Device> map = new ConcurrentHashMap<>();
+            for (int i = 0; i < size; i++) {
+                names[i] = "user" + (i % 1000) + ":dev" + i;
+                Device device = new Device(names[i], false);
+                list.add(device);
+                map.put(names[i], device);
+            }
+            ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+            Lookup scan = devName -> {
+                lock.readLock().lock();
+                try {
+                    for (Device device : list) {
+                        if (device.getDevName().equals(devName)) {
+                            return device;
+                        }
+                    }
+                    return null;
+                } finally {
+                    lock.readLock().unlock();
+                }
+            };
+            Lookup index = map::get;
+
+            long nanos = TimeUnit.SECONDS.toNanos(seconds);
+            for (String kind : new String[] { "list", "map" }) {
+                Lookup lookup = kind.equals("list") ? scan : index;
+                // aquecimento do JIT
+                run(lookup, names, 1, TimeUnit.SECONDS.toNanos(1));
+                System.out.printf("%-8s %9d %,16.0f %,16.0f%n", kind, size, run(lookup, names, 1, nanos),
+                        run(lookup, names, threads, nanos));
+            }
+        }
+        System.out.println(Runtime.getRuntime().availableProcessors() + " CPUs");
+    }
+
+    /**
+     * Método que faz procuras em várias threads durante o tempo pedido
+     *
+     * @return procuras por segundo de todas as threads
+     */
+    private static double run(Lookup lookup, String[] names, int threads, long nanos)
+            throws InterruptedException {
+        AtomicLong total = new AtomicLong();
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long calls = 0;
+                long found = 0;
+                while (System.nanoTime() - start < nanos) {
+                    for (int i = 0; i < 16; i++) {
+                        found += lookup.find(names[random.nextInt(names.length)]) != null ? 1 : 0;
+                    }
+                    calls += 16;
+                }
+                sink += found;
+                total.addAndGet(calls);
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return total.get() * 1e9 / (System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Classe que representa a configuração de arranque do servidor, obtida a partir
+ * dos argumentos da linha de comando
+ *
+ * Formato: IoTServer [port] [--io=thread|virtual|nio] [--io-threads=N] [--retention-days=N]
+ *          [--image-versions=N] [--image-cache-mb=N] [--image-writes=sync|async|durable]
+ *          [--push-interval-ms=N]
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class ServerConfig {
+
+    /**
+     * Modos de tratamento das ligações dos clientes
+     */
+    public enum IoMode {
+        /** uma thread por ligação (modo original) */
+        THREAD,
+        /** uma thread virtual por ligação (requer Java 21 ou superior) */
+        VIRTUAL,
+        /** front end não bloqueante com Selector e um pequeno conjunto de threads de I/O */
+        NIO
+    }
+
+    /**
+     * Modos de escrita das imagens enviadas numa única mensagem (EI)
+     */
+    public enum ImageWriteMode {
+        /** a imagem é escrita antes da resposta ao cliente (modo original) */
+        SYNC,
+        /** a imagem é escrita em segundo plano e a resposta é enviada logo */
+        ASYNC,
+        /**
+         * a imagem é escrita em segundo plano e a resposta espera que esteja em disco (no
+         * modo nio a resposta fica na fila de escrita da ligação, sem bloquear a thread de I/O)
+         */
+        DURABLE
+    }
+
+    /**
+     * Número de ligações à espera de serem aceites. O valor por omissão do Java (50) faz
+     * com que, quando milhares de dispositivos se ligam ao mesmo tempo (ex: depois de o
+     * servidor reiniciar), parte das ligações seja recusada
+     */
+    public static final int ACCEPT_BACKLOG = 1024;
+
+    private int port = 12345;
+    private IoMode ioMode = IoMode.THREAD;
+    private int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private int retentionDays = 0;
+    private int imageVersions = ImageStore.DEFAULT_KEPT_VERSIONS;
+    private int imageCacheMb = ImageCache.DEFAULT_SIZE_MB;
+    private ImageWriteMode imageWriteMode = ImageWriteMode.SYNC;
+    private int pushIntervalMs = Subscriptions.DEFAULT_INTERVAL_MS;
+
+    /**
+     * Construtor privado, as configurações são criadas com fromArgs
+     */
+    private ServerConfig() {
+    }
+
+    /**
+     * Metodo que cria a configuração a partir dos argumentos da linha de comando
+     *
+     * @param args argumentos da linha de comando
+     * @return configuração do servidor
+     * @throws IllegalArgumentException se algum argumento for inválido
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        boolean portSet = false;
+
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                if (portSet) {
+                    throw new IllegalArgumentException("Wrong amount of paramenters!");
+                }
+                config.port = parseInt(arg, "port");
+                portSet = true;
+                continue;
+            }
+
+            String[] parts = arg.substring(2).split("=", 2);
+            String value = parts.length > 1 ? parts[1] : null;
+            switch (parts[0]) {
+                case "io":
+                    try {
+                        config.ioMode = IoMode.valueOf(requireValue(parts[0], value).toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Invalid io mode: " + value);
+                    }
+                    break;
+                case "io-threads":
+                    config.ioThreads = parseInt(requireValue(parts[0], value), parts[0]);
+                    if (config.ioThreads < 1) {
+                        throw new IllegalArgumentException("io-threads must be at least 1");
+                    }
+                    break;
+                case "retention-days":
+                    config.retentionDays = parseInt(requireValue(parts[0], value), parts[0]);
+                    if (config.retentionDays < 0) {
+                        throw new IllegalArgumentException("retention-days must not be negative");
+                    }
+                    break;
+                case "image-versions":
+                    config.imageVersions = parseInt(requireValue(parts[0], value), parts[0]);
+                    if (config.imageVersions < 1) {
+                        throw new IllegalArgumentException("image-versions must be at least 1");
+                    }
+                    break;
+                case "image-cache-mb":
+                    config.imageCacheMb = parseInt(requireValue(parts[0], value), parts[0]);
+                    if (config.imageCacheMb < 0) {
+                        throw new IllegalArgumentException("image-cache-mb must not be negative");
+                    }
+                    break;
+                case "image-writes":
+                    try {
+                        config.imageWriteMode = ImageWriteMode.valueOf(requireValue(parts[0], value).toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Invalid image write mode: " + value);
+                    }
+                    break;
+                case "push-interval-ms":
+                    config.pushIntervalMs = parseInt(requireValue(parts[0], value), parts[0]);
+                    if (config.pushIntervalMs < 1) {
+                        throw new IllegalArgumentException("push-interval-ms must be at least 1");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        return config;
+    }
+
+    private static String requireValue(String option, String value) {
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing value for option --" + option);
+        }
+        return value;
+    }
+
+    private static int parseInt(String value, String name) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    /**
+     * Metodo que retorna o porto onde o servidor aceita ligações
+     * @return porto do servidor
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Metodo que retorna o modo de tratamento das ligações
+     * @return modo de I/O
+     */
+    public IoMode getIoMode() {
+        return ioMode;
+    }
+
+    /**
+     * Metodo que retorna o número de threads de I/O usadas no modo NIO
+     * @return número de threads de I/O
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * Metodo que retorna o número de dias de histórico de temperaturas a guardar
+     * @return dias de retenção, 0 para guardar todo o histórico
+     */
+    public int getRetentionDays() {
+        return retentionDays;
+    }
+
+    /**
+     * Metodo que retorna o número de versões guardadas da imagem de cada dispositivo
+     * @return número de versões guardadas
+     */
+    public int getImageVersions() {
+        return imageVersions;
+    }
+
+    /**
+     * Metodo que retorna o tamanho da cache das imagens mais pedidas
+     * @return tamanho da cache em MB, 0 para não usar cache
+     */
+    public int getImageCacheMb() {
+        return imageCacheMb;
+    }
+
+    /**
+     * Metodo que retorna o modo de escrita das imagens
+     * @return modo de escrita das imagens
+     */
+    public ImageWriteMode getImageWriteMode() {
+        return imageWriteMode;
+    }
+
+    /**
+     * Metodo que retorna o intervalo entre as notificações dos dominios subscritos
+     * @return intervalo em ms
+     */
+    public int getPushIntervalMs() {
+        return pushIntervalMs;
+    }
+}
@@ -1,15 +1,16 @@
 
 import java.net.Socket;
+import java.util.concurrent.Executor;
 
 /**
- * Classe que representa um thread do servidor. Cada thread é responsável por
- * tratar um cliente.
+ * Classe que representa uma tarefa do servidor. Cada tarefa é responsável por
+ * tratar um cliente e pode correr numa thread de plataforma ou numa thread virtual.
  * 
  * @author Martim Pereira fc58223
  * @author João Pereira fc58189
  * @author Daniel Nunes fc58257
  */
-public class ServerThread extends Thread {
+public class ServerThread implements Runnable {
 
     private volatile boolean shutdown = false;
 
@@ -17,25 +18,29 @@ public class ServerThread extends Thread {
 
     private ServerThreadHandler handler;
 
+    private Long exitRequestId;
+
     /**
      * Construtor da classe ServerThread
      * 
-     * @param inSoc Socket do cliente
-     * @param info  Informação partilhada entre os threads
+     * @param inSoc    Socket do cliente
+     * @param info     Informação partilhada entre os threads
+     * @param executor executor onde a tarefa corre, usado também para as notificações (PUSH)
      */
-    public ServerThread(Socket inSoc, SharedInfoSingleton info) {
+    public ServerThread(Socket inSoc, SharedInfoSingleton info, Executor executor) {
         this.cliSocket = inSoc;
-        this.handler = new ServerThreadHandler(cliSocket, info);
+        this.handler = new ServerThreadHandler(cliSocket, info, executor);
         System.out.println("Thread active...");
     }
 
     /**
-     * Método que corre a thread com o ciclo de comandos
+     * Método que corre a tarefa com o ciclo de comandos
      */
     public void run() {
-        handler.processAuthentication();
-        startCommandCycle();      
-        handler.close();
+        if (handler.negotiateCodec() && handler.processAuthentication()) {
+            startCommandCycle();
+        }
+        handler.close(exitRequestId);
 
         try {
             
@@ -56,42 +61,22 @@ public class ServerThread extends Thread {
         while (!shutdown) {
             try {
                 Message msg = handler.readMessage();
+                if (msg == null) {
+                    // ligação fechada pelo cliente
+                    shutdown();
+                    return;
+                }
+
+                if ("EXIT".equals(msg.getCommand())) {
+                    // a resposta ao EXIT é enviada quando a ligação é fechada
+                    exitRequestId = msg.getRequestId();
+                    shutdown();
+                    return;
+                }
 
-                switch (msg.getCommand()) {
-                    case "CREATE" :
-                        msg = handler.createDomain(msg.getDomain());
-                        handler.writeMessage(msg);
-                        break;
-                    case "ADD":
-                        msg = handler.addUserToDomain(msg.getUser(), msg.getDomain());
-                        handler.writeMessage(msg);
-                        break;
-                    case "RD":
-                        msg = handler.registerDevice(msg.getDomain());
-                        handler.writeMessage(msg);
-                        break;
-                    case "ET":
-                        msg = handler.registerTemperature(msg.getTemp());
-                        handler.writeMessage(msg);
-                        break;
-                    case "EI":
-                        msg = handler.registerImage(msg.getData());
-                        handler.writeMessage(msg);
-                        break;
-                    case "RT":
-                        msg = handler.retriveDomainTemperatures(msg.getDomain());
-                        handler.writeMessage(msg);
-                        break;
-                    case "RI":
-                        msg = handler.retriveImage(msg.getUser() + ":" + msg.getDevId());
-                        handler.writeMessage(msg);
-                        break;
-                    case "EXIT":
-                        shutdown();
-                        return;
-                    default:
-                        System.err.println("Comando inválido");
-                        break;
+                Message reply = handler.processCommand(msg);
+                if (reply != null) {
+                    handler.writeMessage(reply);
                 }
             } catch (Exception e) {
                 System.err.println("Erro ao processar comando " + e.getMessage());
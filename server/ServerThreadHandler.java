@@ -1,6 +1,15 @@
 import java.io.*;
 import java.net.Socket;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Classe responsável pelo comportamento das ServerThreads 
@@ -12,26 +21,107 @@ import java.util.HashMap;
 public class ServerThreadHandler {
 
     private SharedInfoSingleton info;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private MessageCodec codec;
+    private WritableByteChannel channel;
 
     private User user = null;
     private Device device = null;
+
+    // tamanho de uma leitura de um lote de temperaturas (ETB) e número máximo de leituras
+    private static final int TEMPERATURE_SIZE = 12;
+    private static final int MAX_BATCH_TEMPERATURES = 10_000;
+
+    // envio de imagem por partes em curso nesta ligação
+    private ImageUpload upload = null;
+
+    // imagem a enviar a seguir à resposta do RI, a partir do ficheiro ou da cache
+    private FileChannel replyFile = null;
+    private ByteBuffer replyBuffer = null;
+
+    // a cache das imagens só é usada pelo front end NIO: com uma thread por ligação enviar
+    // o ficheiro com transferTo (sendfile) é mais rápido do que escrever a cópia em memória
+    private boolean cacheImages = false;
+
+    // no front end NIO a thread de I/O não pode esperar pelo disco: as imagens são guardadas
+    // pelas threads do ImageWriter e a resposta é enviada quando a escrita terminar
+    private boolean deferReplies = false;
+    private CompletableFuture<Message> deferredReply = null;
+
+    // dominios subscritos nesta ligação (SUBSCRIBE); as notificações são escritas por uma
+    // thread própria, criada como a da ligação (ex: thread virtual), por isso as escritas no
+    // socket são feitas com o writeLock. É um ReentrantLock e não um synchronized para que
+    // uma thread virtual bloqueada na escrita não prenda a thread de plataforma
+    private Subscriptions.Subscriber subscriber = null;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private Executor pushExecutor;
     
     /**
      * Construtor de um ServerThreadHandler
+     * 
+     * @param sock         socket do cliente
+     * @param info         Informação partilhada entre os threads
+     * @param pushExecutor executor onde a ligação corre, usado para a thread das notificações
      */
-    public ServerThreadHandler(Socket sock, SharedInfoSingleton info) {
+    public ServerThreadHandler(Socket sock, SharedInfoSingleton info, Executor pushExecutor) {
         this.info = info;
+        this.pushExecutor = pushExecutor;
         try {
-            this.out = new ObjectOutputStream(sock.getOutputStream());
-            this.in = new ObjectInputStream(sock.getInputStream());
+            this.out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+            this.in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+            this.channel = sock.getChannel() != null ? sock.getChannel() : Channels.newChannel(this.out);
         }
         catch (Exception e) {
             System.err.println("Error crating IO streams");
         }
     }
+
+    /**
+     * Construtor de um ServerThreadHandler sem streams associadas, usado pelo front end NIO
+     * que faz a leitura e escrita das mensagens por si
+     * 
+     * @param info Informação partilhada entre os threads
+     */
+    public ServerThreadHandler(SharedInfoSingleton info) {
+        this.info = info;
+        this.cacheImages = true;
+        this.deferReplies = true;
+    }
     
+    /**
+     * Método que negoceia com o cliente o formato das mensagens da ligação
+     * 
+     * @return true se foi escolhido um formato suportado
+     */
+    protected boolean negotiateCodec() {
+        try {
+            this.codec = MessageFrames.serverHandshake(in, out);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error negotiating codec: " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Método que define o formato das mensagens, quando a negociação é feita pelo front end NIO
+     * 
+     * @param codec formato escolhido
+     */
+    protected void setCodec(MessageCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Método que devolve o formato das mensagens da ligação
+     * 
+     * @return formato das mensagens
+     */
+    protected MessageCodec getCodec() {
+        return codec;
+    }
+
     /**
      * Método que processa a autenticação de um cliente
      *  - Autenticação do utilizador e password
@@ -54,80 +144,143 @@ public class ServerThreadHandler {
      *  Método que autentica o utilizador e a password
      * 
      * @throws IOException
-     * @throws ClassNotFoundException
      */
-    protected void userAuthentication() throws IOException, ClassNotFoundException {
+    protected void userAuthentication() throws IOException {
         Message msg;
         do {
-            msg = (Message) in.readObject();
+            msg = MessageFrames.read(in, codec, MessageFrames.MAX_AUTH_FRAME_SIZE);
+            msg = authenticateUser(msg);
+            MessageFrames.write(out, codec, msg);
 
-            this.user = info.getUserByName(msg.getUser());
+        } while (msg.getCode() == MessageCode.WRONG_PWD);
+        if (msg.getCode() == MessageCode.ERROR) {
+            throw new IOException("User not registered");
+        }
+    }
 
-            if (this.user == null) {
-                // nao havia user registado com user:password
-                this.user = new User(msg.getUser(), msg.getPassword());
-                msg.setCode(MessageCode.OK_NEW_USER);
-                info.addUser(this.user);
-            } else {
-                // user já existia
-                if (this.user.getPassword().equals(msg.getPassword())) {
-                    msg.setCode(MessageCode.OK_USER);
-                } else {
-                    msg.setCode(MessageCode.WRONG_PWD);
+    /**
+     * Método que processa um pedido de autenticação do utilizador
+     * 
+     * @param msg mensagem com o utilizador e a password
+     * @return a mesma mensagem com o código do resultado
+     *         - OK_NEW_USER se o utilizador foi criado
+     *         - OK_USER se a password está correta
+     *         - WRONG_PWD se a password está errada
+     *         - ERROR se o utilizador novo não ficou registado no write-ahead log
+     */
+    protected Message authenticateUser(Message msg) {
+        this.user = info.getUserByName(msg.getUser());
+
+        if (this.user == null) {
+            // nao havia user registado com user:password
+            User newUser = new User(msg.getUser(), msg.getPassword());
+            try {
+                if (info.addUser(newUser)) {
+                    this.user = newUser;
+                    msg.setCode(MessageCode.OK_NEW_USER);
+                    return msg;
                 }
+            } catch (IOException e) {
+                this.user = null;
+                msg.setCode(MessageCode.ERROR);
+                return msg;
             }
-            this.out.writeObject(msg);
+            // outra ligação registou o mesmo user entretanto
+            this.user = info.getUserByName(msg.getUser());
+        }
 
-        } while (msg.getCode() == MessageCode.WRONG_PWD);
-        this.user = new User(msg.getUser(), msg.getPassword());
+        // user já existia
+        if (this.user.getPassword().equals(msg.getPassword())) {
+            msg.setCode(MessageCode.OK_USER);
+        } else {
+            msg.setCode(MessageCode.WRONG_PWD);
+        }
+        return msg;
     }
 
     /**
      * Método que autentica o device id
      * 
      * @throws IOException
-     * @throws ClassNotFoundException
      */
-    protected void devIdAuthentication() throws IOException, ClassNotFoundException {
+    protected void devIdAuthentication() throws IOException {
         Message msg;
         do {
-            msg = (Message) in.readObject();
-            String user_DevId = this.user.getUserId() + ":" + msg.getDevId();
-            this.device = info.getDeviceByName(user_DevId);
-            if (this.device != null) {
-                if (this.device.isOn()) {
-                    msg.setCode(MessageCode.NOK_DEVID);
-                } else {
-                    msg.setCode(MessageCode.OK_DEVID);
-                    this.device.turnOn();
-                }
+            msg = MessageFrames.read(in, codec, MessageFrames.MAX_AUTH_FRAME_SIZE);
+            msg = authenticateDevId(msg);
+            MessageFrames.write(out, codec, msg);
+
+        } while (msg.getCode() == MessageCode.NOK_DEVID);
+        if (msg.getCode() == MessageCode.ERROR) {
+            throw new IOException("Device not registered");
+        }
+    }
+
+    /**
+     * Método que processa um pedido de autenticação do device id
+     * 
+     * @param msg mensagem com o device id
+     * @return a mesma mensagem com o código do resultado
+     *         - OK_DEVID se o dispositivo foi aceite
+     *         - NOK_DEVID se o dispositivo já estiver ligado
+     *         - ERROR se o dispositivo novo não ficou registado no write-ahead log
+     */
+    protected Message authenticateDevId(Message msg) {
+        String user_DevId = this.user.getUserId() + ":" + msg.getDevId();
+        this.device = info.getDeviceByName(user_DevId);
+        if (this.device != null) {
+            if (this.device.isOn()) {
+                msg.setCode(MessageCode.NOK_DEVID);
+                this.device = null;
             } else {
-                this.device = new Device(user_DevId, true);
-                info.addDevice(this.device);
                 msg.setCode(MessageCode.OK_DEVID);
+                this.device.turnOn();
             }
-            this.out.writeObject(msg);
-
-        } while (msg.getCode() == MessageCode.NOK_DEVID);
-        System.out.println("Device " + this.device.getDevName() + " created!");
+        } else {
+            Device newDevice = new Device(user_DevId, true);
+            try {
+                if (info.addDevice(newDevice)) {
+                    this.device = newDevice;
+                    msg.setCode(MessageCode.OK_DEVID);
+                } else {
+                    // outra ligação registou (e ligou) o mesmo dispositivo entretanto
+                    msg.setCode(MessageCode.NOK_DEVID);
+                }
+            } catch (IOException e) {
+                // o dispositivo fica registado mas desligado
+                newDevice.turnOff();
+                msg.setCode(MessageCode.ERROR);
+                return msg;
+            }
+        }
+        if (this.device != null) {
+            System.out.println("Device " + this.device.getDevName() + " created!");
+        }
+        return msg;
     }
 
     /**
      * Método que autentica o executável
      * 
      * @throws IOException
-     * @throws ClassNotFoundException
      */
-    protected void execAuthentication() throws IOException, ClassNotFoundException {
-
-        Message msg = (Message) in.readObject();
+    protected void execAuthentication() throws IOException {
+        Message msg = MessageFrames.read(in, codec, MessageFrames.MAX_AUTH_FRAME_SIZE);
+        MessageFrames.write(out, codec, authenticateExec(msg));
+    }
 
+    /**
+     * Método que processa um pedido de autenticação do executável
+     * 
+     * @param msg mensagem com o nome e o tamanho do executável
+     * @return a mesma mensagem com o código do resultado (OK_TESTED ou NOK_TESTED)
+     */
+    protected Message authenticateExec(Message msg) {
         String size = String.valueOf(msg.getSize());
         String exec = msg.getFileName();
 
         msg.setCode(Utils.checkExec(exec, size));
-
-        out.writeObject(msg);
+        return msg;
     }
     
     // ---------------------------------------
@@ -136,47 +289,313 @@ public class ServerThreadHandler {
     /**
      * Método que recebe uma mensagem
      * 
-     * @return Message enviada pela socket
+     * @return Message enviada pela socket ou null se a ligação foi fechada
      */
     protected Message readMessage() {
         try {
-            return ((Message) this.in.readObject());
-        } catch (ClassNotFoundException | IOException e) {
+            // as respostas só são enviadas quando não há mais pedidos recebidos por tratar,
+            // para que as respostas a pedidos em pipelining sigam juntas
+            if (this.in.available() == 0) {
+                writeLock.lock();
+                try {
+                    this.out.flush();
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+            return MessageFrames.read(this.in, codec);
+        } catch (IOException e) {
             System.err.println("Error reading Message");
         }
         return null;
     }
 
     /**
-     * Método que envia uma mensagem
+     * Método que envia uma mensagem, seguida da imagem pedida se for a resposta a um RI
      * 
      * @param msg Message a enviar
      */
     protected void writeMessage(Message msg) {
+        FileChannel body = takeReplyFile();
+        ByteBuffer cached = takeReplyBuffer();
+        writeLock.lock();
+        try {
+            writeMessage(msg, body, cached);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Método que envia uma mensagem, seguida da imagem do ficheiro ou da cache
+     */
+    private void writeMessage(Message msg, FileChannel body, ByteBuffer cached) {
         try {
-            this.out.writeObject(msg);
+            MessageFrames.writeFrame(this.out, codec, msg);
+            if (body != null || cached != null) {
+                this.out.flush();
+            }
+            if (body != null) {
+                sendFile(body, msg.getSize());
+            }
+            while (cached != null && cached.hasRemaining()) {
+                this.channel.write(cached);
+            }
         } catch (IOException e) {
             System.err.println("Error writing Message");
+        } finally {
+            if (body != null) {
+                closeQuietly(body);
+            }
+        }
+    }
+
+    /**
+     * Método que envia o conteúdo de um ficheiro diretamente para o socket, sem o copiar
+     * para a heap (FileChannel.transferTo usa o sendfile do sistema operativo)
+     * 
+     * @param file ficheiro a enviar
+     * @param size número de bytes a enviar
+     * @throws IOException se ocorrer um erro de escrita ou o ficheiro ficar mais pequeno
+     */
+    private void sendFile(FileChannel file, long size) throws IOException {
+        long position = 0;
+        while (position < size) {
+            long sent = file.transferTo(position, size - position, this.channel);
+            if (sent <= 0 && position >= file.size()) {
+                throw new IOException("Image truncated while sending");
+            }
+            position += sent;
+        }
+    }
+
+    /**
+     * Método que devolve (e deixa de guardar) o ficheiro da imagem a enviar a seguir à última
+     * resposta. Usado pelo front end NIO, que coloca a imagem na sua fila de escrita
+     * 
+     * @return ficheiro da imagem ou null se a imagem não for enviada a partir do ficheiro
+     */
+    protected FileChannel takeReplyFile() {
+        FileChannel body = replyFile;
+        replyFile = null;
+        return body;
+    }
+
+    /**
+     * Método que devolve (e deixa de guardar) a imagem em cache a enviar a seguir à última
+     * resposta. Usado pelo front end NIO, que coloca a imagem na sua fila de escrita
+     * 
+     * @return imagem ou null se a imagem não for enviada a partir da cache
+     */
+    protected ByteBuffer takeReplyBuffer() {
+        ByteBuffer body = replyBuffer;
+        replyBuffer = null;
+        return body;
+    }
+
+    private static void closeQuietly(FileChannel file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            System.err.println("Error closing image file");
+        }
+    }
+
+    /**
+     * Método que executa um comando do cliente já autenticado
+     * 
+     * @param msg Message com o comando a executar
+     * @return Message com a resposta a enviar ou null se o comando for inválido
+     */
+    protected Message processCommand(Message msg) {
+        Message reply = executeCommand(msg);
+        if (reply != null) {
+            // o cliente pode ter vários pedidos por responder e associa-os pelo id
+            reply.setRequestId(msg.getRequestId());
+        }
+        return reply;
+    }
+
+    /**
+     * Método que executa um comando
+     * 
+     * @param msg mensagem com o comando
+     * @return Message com a resposta ou null se o comando não tiver resposta ou se a resposta
+     *         for enviada mais tarde (ver takeDeferredReply)
+     */
+    private Message executeCommand(Message msg) {
+        switch (msg.getCommand()) {
+            case "CREATE":
+                return createDomain(msg.getDomain());
+            case "ADD":
+                return addUserToDomain(msg.getUser(), msg.getDomain());
+            case "RD":
+                return registerDevice(msg.getDomain());
+            case "ET":
+                return registerTemperature(msg.getTemp());
+            case "ETB":
+                return registerTemperatures(msg.getData());
+            case "EI":
+                return registerImage(msg.getData());
+            case "EIB":
+                return beginImageUpload(msg.getSize(), msg.getVersion());
+            case "EIC":
+                // as partes não têm resposta, o resultado é enviado no EIE
+                if (upload != null && msg.getSize() != null) {
+                    upload.write(msg.getSize(), msg.getData());
+                }
+                return null;
+            case "EIE":
+                return finishImageUpload();
+            case "RT":
+                return retriveDomainTemperatures(msg.getDomain(), msg.getVersion());
+            case "RI":
+                return retriveImage(msg.getUser() + ":" + msg.getDevId(), msg.getRevision(), msg.getVersion());
+            case "RH":
+                return retriveHistory(msg);
+            case "RTS":
+                return retriveDomainSummary(msg.getDomain());
+            case "SUBSCRIBE":
+                return subscribe(msg.getDomain());
+            case "UNSUBSCRIBE":
+                return unsubscribe(msg.getDomain());
+            default:
+                System.err.println("Comando inválido");
+                return null;
         }
     }
 
     
+    /**
+     * Método encarregue pela subscrição das alterações de temperatura de um dominio. A
+     * resposta tem as temperaturas atuais do dominio (como no RT) e, a partir daí, o cliente
+     * recebe notificações (PUSH) com as temperaturas dos dispositivos que mudaram
+     * 
+     * @param domainName nome do dominio
+     * @return Message com o resultado da operação
+     *         - OK se o dominio foi subscrito, com as temperaturas atuais (se houver)
+     *         - NO_DM se o dominio não existir
+     *         - NO_PERM se o utilizador não tiver permissões de leitura
+     */
+    protected Message subscribe(String domainName) {
+        Domain d = info.getDomain(domainName);
+        Message msg = new Message();
+        if (d == null) {
+            msg.setCode(MessageCode.NO_DM);
+        } else if (!d.hasUser(this.user.getUserId())) {
+            msg.setCode(MessageCode.NO_PERM);
+        } else {
+            if (subscriber == null) {
+                subscriber = new Subscriptions.Subscriber();
+                if (out != null) {
+                    startPushLoop(subscriber);
+                }
+            }
+            // as temperaturas são lidas depois de subscrever, para não se perder nenhuma
+            // alteração entre as duas
+            info.getSubscriptions().subscribe(domainName, subscriber);
+            msg.setData(d.getTemperatures().getData());
+            msg.setCode(MessageCode.OK);
+        }
+        return msg;
+    }
+
+    /**
+     * Método encarregue pelo cancelamento da subscrição de um dominio
+     * 
+     * @param domainName nome do dominio
+     * @return Message com o resultado da operação
+     *         - OK se a subscrição foi cancelada
+     *         - NOK se o dominio não estava subscrito
+     */
+    protected Message unsubscribe(String domainName) {
+        Message msg = new Message();
+        if (subscriber != null && info.getSubscriptions().unsubscribe(domainName, subscriber)) {
+            msg.setCode(MessageCode.OK);
+        } else {
+            msg.setCode(MessageCode.NOK);
+        }
+        return msg;
+    }
+
+    /**
+     * Método que inicia, no executor da ligação, a tarefa que escreve as notificações no
+     * socket. Se o cliente não as ler, a tarefa fica bloqueada na escrita e as notificações
+     * seguintes ficam na fila do subscritor, que só guarda as últimas temperaturas
+     * 
+     * @param subscriber subscritor da ligação
+     */
+    private void startPushLoop(Subscriptions.Subscriber subscriber) {
+        pushExecutor.execute(() -> {
+            try {
+                Message push;
+                while ((push = subscriber.take()) != null) {
+                    writeLock.lock();
+                    try {
+                        MessageFrames.write(this.out, codec, push);
+                    } finally {
+                        writeLock.unlock();
+                    }
+                }
+            } catch (InterruptedException | IOException e) {
+                // ligação fechada
+            }
+        });
+    }
+
+    /**
+     * Método que devolve a escrita no write-ahead log das alterações feitas pelo último
+     * pedido, quando a thread não espera pelo disco (front end NIO, ver
+     * SharedInfoSingleton.deferLogWrites). A resposta só pode ser enviada quando esta
+     * estiver concluída
+     * 
+     * @return CompletableFuture da escrita ou null se não houver nada por escrever
+     */
+    protected CompletableFuture<Void> takeLogWrites() {
+        return info.takeLogWrites();
+    }
+
+    /**
+     * Método que devolve (e esquece) a resposta do último pedido quando esta depende de uma
+     * escrita que ainda não terminou (front end NIO)
+     * 
+     * @return CompletableFuture concluída com a resposta (sem o id do pedido), ou null se a
+     *         resposta foi devolvida por processCommand
+     */
+    protected CompletableFuture<Message> takeDeferredReply() {
+        CompletableFuture<Message> reply = deferredReply;
+        deferredReply = null;
+        return reply;
+    }
+
+    /**
+     * Método que devolve os dominios subscritos nesta ligação
+     * 
+     * @return subscritor da ligação ou null se não subscreveu nenhum dominio
+     */
+    protected Subscriptions.Subscriber getSubscriber() {
+        return subscriber;
+    }
+
     /**
      * Método encarregue pela criação de um dominio
      * @param domainName nomde do dominio a criar
      * @return Message com o resultado da operação
      *         - OK se o dominio foi criado com sucesso
      *         - NOK se o dominio já existir
+     *         - ERROR se o dominio não ficou registado no write-ahead log
      */    
     protected Message createDomain(String domainName) {
         Domain domain = info.getDomain(domainName);
         Message msg = new Message();
-        if (domain != null) {
-            msg.setCode(MessageCode.NOK);
-        } else {
-            Domain newDomain = new Domain(domainName, this.user);
-            info.addDomain(newDomain);
-            msg.setCode(MessageCode.OK);
+        try {
+            if (domain != null || !info.addDomain(new Domain(domainName, this.user))) {
+                msg.setCode(MessageCode.NOK);
+            } else {
+                msg.setCode(MessageCode.OK);
+            }
+        } catch (IOException e) {
+            msg.setCode(MessageCode.ERROR);
         }
         return msg;
     }
@@ -191,6 +610,7 @@ public class ServerThreadHandler {
      *         - NO_DM se o dominio não existir
      *         - NO_USER se o utilizador não existir
      *         - NO_PERM se o utilizador não tiver permissões (não é o owner do dominio)
+     *         - ERROR se a alteração não ficou registada no write-ahead log
      */
     protected Message addUserToDomain(String userid, String domainName) {
         Domain domain = info.getDomain(domainName);
@@ -198,32 +618,18 @@ public class ServerThreadHandler {
         if (domain == null) {
             msg.setCode(MessageCode.NO_DM);
         } else {
-            User user = null;
-            synchronized (this) {
-                File file = new File("server/serverFiles/users.txt");
-                try {
-                    BufferedReader bf = new BufferedReader(new FileReader(file));
-                    String line;
-                    while ((line = bf.readLine()) != null) {
-                        String[] parts = line.split(":");
-                        String name = parts[0].trim();
-                        if (name.equals(userid)) {
-                            user = info.getUserByName(userid);
-                            break;
-                        }
-                    }
-                    bf.close();
-                } catch (IOException e) {
-                    System.err.println("Error reading from users.txt");
-                }
-            }
+            User user = info.getUserByName(userid);
             if (user == null) {
                 msg.setCode(MessageCode.NO_USER);
             } else if (!domain.isOwner(this.user)) {
                 msg.setCode(MessageCode.NO_PERM);
             } else {
-                domain.addUser(user);
-                msg.setCode(MessageCode.OK);
+                try {
+                    info.addUserToDomain(domain, user);
+                    msg.setCode(MessageCode.OK);
+                } catch (IOException e) {
+                    msg.setCode(MessageCode.ERROR);
+                }
             }
         }
         return msg;
@@ -238,6 +644,7 @@ public class ServerThreadHandler {
      *         - OK se o dispositivo foi adicionado com sucesso
      *         - NO_DM se o dominio não existir
      *         - NO_PERM se o utilizador não tiver permissões (não é o owner do dominio)
+     *         - ERROR se a alteração não ficou registada no write-ahead log
      */
     protected Message registerDevice(String domainName) {
         Domain domain = info.getDomain(domainName);
@@ -247,8 +654,12 @@ public class ServerThreadHandler {
         } else if (!domain.hasUser(this.user.getUserId())) {
             msg.setCode(MessageCode.NO_PERM);
         } else {
-            domain.getDevices().add(this.device);
-            msg.setCode(MessageCode.OK);
+            try {
+                info.registerDeviceInDomain(domain, this.device);
+                msg.setCode(MessageCode.OK);
+            } catch (IOException e) {
+                msg.setCode(MessageCode.ERROR);
+            }
         }
         return msg;
     }
@@ -260,81 +671,259 @@ public class ServerThreadHandler {
      * @return Message com o resultado da operação
      *         - OK se a temperatura foi registada com sucesso
      *         - NOK se a temperatura não for válida (string não é um número)
+     *         - ERROR se a temperatura não ficou registada no write-ahead log
      */    
     protected Message registerTemperature(String temp) {
         Message msg = new Message();
         try {
-            Float t = Float.parseFloat(temp);
-            this.device.setTemp(t);
+            float t = Float.parseFloat(temp);
+            info.registerTemperature(this.device, t, System.currentTimeMillis());
             msg.setCode(MessageCode.OK);
                         
         } catch (NumberFormatException e) {
             msg.setCode(MessageCode.NOK);
+        } catch (IOException e) {
+            msg.setCode(MessageCode.ERROR);
         }
         return msg;
     }
 
     /**
-     * Método encarregue pelo registo de uma imagem num dispositivo
+     * Método encarregue pelo registo de um lote de temperaturas no dispositivo (ETB). O lote
+     * é um array de leituras [long timestamp em ms][float temperatura] (big-endian, 12 bytes
+     * por leitura). Os timestamps de um dispositivo têm de ser estritamente crescentes e não
+     * podem estar no futuro: as leituras que não cumprem esta regra são descartadas (ver
+     * SharedInfoSingleton.registerTemperatures)
+     * 
+     * @param data leituras do lote
+     * @return Message com o resultado da operação, com o número de leituras registadas (size)
+     *         - OK se alguma leitura do lote foi registada
+     *         - NOK se o lote não for válido (vazio, tamanho errado ou com demasiadas leituras)
+     *           ou se todas as leituras foram descartadas
+     *         - ERROR se o lote não ficou registado no write-ahead log
+     */
+    protected Message registerTemperatures(byte[] data) {
+        Message msg = new Message();
+        if (data == null || data.length == 0 || data.length % TEMPERATURE_SIZE != 0
+                || data.length / TEMPERATURE_SIZE > MAX_BATCH_TEMPERATURES) {
+            msg.setCode(MessageCode.NOK);
+            return msg;
+        }
+        int count = data.length / TEMPERATURE_SIZE;
+        long[] timestamps = new long[count];
+        float[] temps = new float[count];
+        ByteBuffer batch = ByteBuffer.wrap(data);
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = batch.getLong();
+            temps[i] = batch.getFloat();
+        }
+        try {
+            int registered = info.registerTemperatures(this.device, timestamps, temps);
+            msg.setSize((long) registered);
+            msg.setCode(registered > 0 ? MessageCode.OK : MessageCode.NOK);
+        } catch (IOException e) {
+            msg.setCode(MessageCode.ERROR);
+        }
+        return msg;
+    }
+
+    /**
+     * Método encarregue pelo registo de uma imagem num dispositivo. Com a escrita em
+     * segundo plano (ver ImageWriter) a resposta é enviada quando a imagem entra na fila
+     * de escrita, ou quando fica em disco no modo durable. No modo sync ou com a fila cheia
+     * a imagem é guardada antes da resposta (ver storeImage)
      * 
      * @param data byte array com o contéudo da imagem a registar
-     * @return Message com o resultado da operação
+     * @return Message com o resultado da operação, com o número da versão guardada se já for conhecido
      *         - OK se a imagem foi registada com sucesso
-     *         - NOK se a imagem não for válida (data == null) ou se ocorrer um erro ao escrever a imagem
+     *         - NOK se a imagem não for válida (data == null ou maior do que uma parte, caso em
+     *           que tem de ser enviada por partes) ou se ocorrer um erro ao escrever a imagem
      */
     protected Message registerImage(byte[] data) {
-        boolean dir = Utils.createDir("server/serverImages");
-        if (!dir) {
-            Message msg = new Message();
+        Message msg = new Message();
+        ImageStore images = info.getImages();
+        if (data == null || data.length > ImageUpload.MAX_CHUNK_SIZE || images == null) {
             msg.setCode(MessageCode.NOK);
             return msg;
         }
-        
+
+        String devName = device.getDevName();
+        ImageWriter writer = info.getImageWriter();
+        CompletableFuture<ImageStore.Version> write = writer.isQueued() ? writer.submit(devName, data) : null;
+        if (write == null) {
+            // modo sync ou fila cheia
+            return storeImage(() -> images.put(devName, data));
+        }
+        if (writer.isDurable()) {
+            return replyWhenStored(write);
+        }
+        // em segundo plano sem esperar pelo disco, o número da versão ainda não é conhecido
+        msg.setCode(MessageCode.OK);
+        return msg;
+    }
+
+    /**
+     * Método que guarda uma imagem antes da resposta. No front end NIO a escrita é feita
+     * por uma thread do ImageWriter e a resposta fica à espera dela (ver takeDeferredReply),
+     * nos outros modos é feita por esta thread
+     * 
+     * @param task escrita da imagem
+     * @return Message com o resultado da escrita (ver imageStored) ou null se a resposta for
+     *         enviada quando a escrita terminar
+     */
+    private Message storeImage(ImageWriter.StoreTask task) {
+        if (deferReplies) {
+            return replyWhenStored(info.getImageWriter().execute(task));
+        }
+        try {
+            return imageStored(task.store(), null);
+        } catch (IOException e) {
+            return imageStored(null, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return imageStored(null, e);
+        }
+    }
+
+    /**
+     * Método que responde a um pedido quando a escrita de uma imagem terminar. No front end
+     * NIO a resposta fica à espera da escrita (ver takeDeferredReply), nos outros modos esta
+     * thread espera que a escrita termine
+     * 
+     * @param write escrita da imagem
+     * @return Message com o resultado da escrita (ver imageStored) ou null se a resposta for
+     *         enviada quando a escrita terminar
+     */
+    private Message replyWhenStored(CompletableFuture<ImageStore.Version> write) {
+        if (deferReplies) {
+            deferredReply = write.handle(ServerThreadHandler::imageStored);
+            return null;
+        }
+        try {
+            return imageStored(write.get(), null);
+        } catch (ExecutionException e) {
+            return imageStored(null, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return imageStored(null, e);
+        }
+    }
+
+    /**
+     * Método que cria a resposta a um pedido que guardou uma imagem
+     * 
+     * @param version versão guardada ou null se a imagem não foi guardada
+     * @param error   erro da escrita ou null
+     * @return Message com o resultado da operação, com o número da versão guardada
+     *         - OK se a imagem foi guardada
+     *         - NOK se não foi guardada
+     */
+    private static Message imageStored(ImageStore.Version version, Throwable error) {
         Message msg = new Message();
-        if (data == null) {
+        if (error != null) {
+            System.err.println("Error saving image: " + error.getMessage());
+        }
+        if (version == null || error != null) {
             msg.setCode(MessageCode.NOK);
         } else {
-            try {
-                synchronized (this) {
-                    String name = device.getDevName().replace(':', '_');
-                    File f = new File("server/serverImages/" + name + ".jpg");
-                    FileOutputStream fos = new FileOutputStream(f);
-                    fos.write(data, 0, data.length);
-                    fos.close();
-                }
-                msg.setCode(MessageCode.OK);
-            } catch (IOException e) {
-                msg.setCode(MessageCode.NOK);
-            }
+            msg.setRevision(version.getNumber());
+            msg.setCode(MessageCode.OK);
+        }
+        return msg;
+    }
+
+    /**
+     * Método encarregue por iniciar o envio de uma imagem por partes (EIB). Se já existir
+     * um envio interrompido da mesma imagem (mesmo tamanho e versão) este é retomado
+     * 
+     * @param size    tamanho da imagem em bytes
+     * @param version versão da imagem no cliente
+     * @return Message com o resultado da operação
+     *         - OK, com a posição a partir da qual o cliente deve enviar a imagem (size)
+     *         - NOK se o pedido for inválido ou não for possível criar o ficheiro temporário
+     */
+    protected Message beginImageUpload(Long size, Long version) {
+        Message msg = new Message();
+        if (upload != null) {
+            upload.close();
+            upload = null;
+        }
+        if (size == null || size < 0 || !Utils.createDir("server/serverImages")) {
+            msg.setCode(MessageCode.NOK);
+            return msg;
+        }
+        String name = device.getDevName().replace(':', '_');
+        try {
+            upload = ImageUpload.begin("server/serverImages/" + name + ".jpg", size,
+                    version == null ? 0 : version);
+            msg.setSize(upload.getOffset());
+            msg.setCode(MessageCode.OK);
+        } catch (IOException e) {
+            System.err.println("Error starting image upload: " + e.getMessage());
+            msg.setCode(MessageCode.NOK);
         }
         return msg;
     }
 
+    /**
+     * Método encarregue por terminar o envio de uma imagem por partes (EIE). Com a escrita
+     * em segundo plano, a imagem só é guardada depois das imagens do dispositivo que ainda
+     * estão na fila de escrita, para que fique como a última versão. No front end NIO o fim
+     * do envio é feito por uma thread do ImageWriter (ver storeImage)
+     * 
+     * @return Message com o resultado da operação, com o número da versão guardada
+     *         - OK se a imagem foi recebida por completo e guardada
+     *         - NOK se não existir um envio em curso, faltarem partes ou ocorrer um erro de escrita
+     */
+    protected Message finishImageUpload() {
+        ImageStore images = info.getImages();
+        ImageUpload finished = upload;
+        upload = null;
+        if (finished == null || images == null) {
+            if (finished != null) {
+                finished.close();
+            }
+            Message msg = new Message();
+            msg.setCode(MessageCode.NOK);
+            return msg;
+        }
+        String devName = device.getDevName();
+        ImageWriter writer = info.getImageWriter();
+        return storeImage(() -> {
+            if (!finished.finish()) {
+                return null;
+            }
+            writer.await(devName);
+            return images.putFile(devName, finished.getPath(), finished.getHash());
+        });
+    }
+
     /**
      * Método encarregue por retornar as temperaturas do dspositivos de um dominio
      * 
      * @param domainName nome do dominio a procurar
-     * @return Message com o resultado da operação
+     * @param version    versão das temperaturas que o cliente já tem ou null
+     * @return Message com o resultado da operação, com a versão das temperaturas
      *         - OK se as temperaturas foram retornadas com sucesso
+     *         - NOT_MODIFIED se as temperaturas não mudaram desde a versão do cliente
      *         - NO_DM se o dominio não existir
      *         - NO_PERM se o utilizador não tiver permissões (não é o owner do dominio)
      *         - NO_ID se o dispositivo não existir
      */
-    protected Message retriveDomainTemperatures(String domainName) {
+    protected Message retriveDomainTemperatures(String domainName, Long version) {
         Domain d = info.getDomain(domainName);
         Message msg = new Message();
         if (d != null) {
             if (d.hasUser(this.user.getUserId())) {
-                HashMap<String,Float> temps = new HashMap<>();
-                for (Device device : d.getDevices()) {
-                    if (device.getTemp() != null) {
-                        temps.put(device.getDevName(), device.getTemp());
-                    }  
-                }
-                if (temps.size() == 0) {
+                Domain.Temperatures temps = d.getTemperatures();
+                byte[] data = temps.getData();
+                if (data == null) {
                     msg.setCode(MessageCode.NO_DATA);                    
+                } else if (version != null && version == temps.getTag()) {
+                    msg.setVersion(version);
+                    msg.setCode(MessageCode.NOT_MODIFIED);
                 } else {
-                    byte[] data = Utils.hashMapToByteArray(temps);
+                    msg.setVersion(temps.getTag());
                     msg.setData(data);
                     msg.setSize(Long.valueOf(data.length));
                     msg.setCode(MessageCode.OK);
@@ -349,38 +938,143 @@ public class ServerThreadHandler {
     }
 
     /**
-     * Método encarregue por retornar a imagem de um dispositivo
+     * Método encarregue por retornar o resumo das temperaturas de um dominio, a partir
+     * dos agregados mantidos pelo dominio (ver DomainStats)
      * 
-     * @param user_devId nome do dispositivo a procurar
+     * @param domainName nome do dominio a procurar
+     * @return Message com o resultado da operação
+     *         - OK se o resumo foi retornado com sucesso
+     *         - NO_DM se o dominio não existir
+     *         - NO_PERM se o utilizador não pertencer ao dominio
+     *         - NO_DATA se nenhum dispositivo do dominio tiver temperatura
+     */
+    protected Message retriveDomainSummary(String domainName) {
+        Domain d = info.getDomain(domainName);
+        Message msg = new Message();
+        if (d == null) {
+            msg.setCode(MessageCode.NO_DM);
+        } else if (!d.hasUser(this.user.getUserId())) {
+            msg.setCode(MessageCode.NO_PERM);
+        } else {
+            byte[] data = d.getStats().toByteArray();
+            if (data == null) {
+                msg.setCode(MessageCode.NO_DATA);
+            } else {
+                msg.setData(data);
+                msg.setSize(Long.valueOf(data.length));
+                msg.setCode(MessageCode.OK);
+            }
+        }
+        return msg;
+    }
+
+    /**
+     * Método encarregue por retornar o histórico das temperaturas de um dispositivo
+     * (user e devId da mensagem) ou de todos os dispositivos de um dominio (domain),
+     * entre os instantes from e to. Se interval for indicado as leituras são agregadas
+     * em buckets desse tamanho (ver HistoryQuery)
+     * 
+     * @param request Message com o pedido
      * @return Message com o resultado da operação
-     *         - OK se a imagem foi retornada com sucesso
+     *         - OK se o histórico foi retornado com sucesso
+     *         - NO_DM se o dominio não existir
+     *         - NO_ID se o dispositivo não existir
+     *         - NO_PERM se o utilizador não tiver permissões de leitura
+     *         - NO_DATA se não existirem leituras no intervalo
+     *         - NOK se o intervalo for inválido ou a resposta for demasiado grande
+     */
+    protected Message retriveHistory(Message request) {
+        Message msg = new Message();
+        Long from = request.getFrom();
+        Long to = request.getTo();
+        long interval = request.getInterval() == null ? 0 : request.getInterval();
+        TemperatureHistory history = info.getHistory();
+        if (from == null || to == null || history == null
+                || !HistoryQuery.isValidRange(from, to, interval)) {
+            msg.setCode(MessageCode.NOK);
+            return msg;
+        }
+
+        List<String> devices = new ArrayList<>();
+        if (request.getDomain() != null) {
+            Domain d = info.getDomain(request.getDomain());
+            if (d == null) {
+                msg.setCode(MessageCode.NO_DM);
+                return msg;
+            }
+            if (!d.hasUser(this.user.getUserId())) {
+                msg.setCode(MessageCode.NO_PERM);
+                return msg;
+            }
+            for (Device device : d.getDevices()) {
+                devices.add(device.getDevName());
+            }
+        } else {
+            String devName = request.getUser() + ":" + request.getDevId();
+            if (info.getDeviceByName(devName) == null) {
+                msg.setCode(MessageCode.NO_ID);
+                return msg;
+            }
+            if (!info.canRead(this.user.getUserId(), devName)) {
+                msg.setCode(MessageCode.NO_PERM);
+                return msg;
+            }
+            devices.add(devName);
+        }
+
+        try {
+            byte[] data = HistoryQuery.run(history, devices, from, to, interval);
+            if (data == null) {
+                msg.setCode(MessageCode.NO_DATA);
+            } else {
+                msg.setData(data);
+                msg.setSize(Long.valueOf(data.length));
+                msg.setCode(MessageCode.OK);
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading temperature history: " + e.getMessage());
+            msg.setCode(MessageCode.NOK);
+        }
+        return msg;
+    }
+
+    /**
+     * Método encarregue por retornar a imagem de um dispositivo. A resposta não leva a
+     * imagem: leva o seu tamanho (size) e a imagem é enviada a seguir ao frame da resposta,
+     * diretamente do ficheiro ou, no front end NIO, da cache das imagens mais pedidas (ver
+     * writeMessage, takeReplyFile e takeReplyBuffer)
+     * 
+     * @param user_devId nome do dispositivo a procurar
+     * @param revision   número da versão guardada pedida ou null para a última
+     * @param version    versão da imagem que o cliente já tem ou null
+     * @return Message com o resultado da operação, com a versão e o número da versão da imagem
+     *         - OK se a imagem vai ser enviada a seguir à resposta
+     *         - NOT_MODIFIED se a imagem não mudou desde a versão do cliente
      *         - NO_ID se o dispositivo não existir
      *         - NO_PERM se o utilizador não tiver permissões (não é o owner do dominio)
-     *         - NO_DATA se a imagem não existir
+     *         - NO_DATA se a imagem (ou a versão pedida) não existir
      */    
-    protected Message retriveImage(String user_devId) {
+    protected Message retriveImage(String user_devId, Long revision, Long version) {
 
         Message msg = new Message();
 
         if (this.info.getDeviceByName(user_devId) == null) {
             msg.setCode(MessageCode.NO_ID);                      
+        } else if (!info.canRead(this.user.getUserId(), user_devId)) {
+            msg.setCode(MessageCode.NO_PERM); 
         } else {
-            for (Domain domain : info.getDomains()) {
-                if (domain.hasDevice(user_devId) && domain.hasUser(this.user.getUserId())) {
-                    String targetName = user_devId.replace(":", "_");
-                    File f = new File("server/serverImages/" + targetName + ".jpg");
-                    if (f.exists()) {
-                        msg.setCode(MessageCode.OK);                        
-                        byte[] data = Utils.getFileContents("server/serverImages/" + targetName + ".jpg");
-                        msg.setData(data);
-                        msg.setSize(Long.valueOf(data.length));
-                    } else {
-                        msg.setCode(MessageCode.NO_DATA);
-                    }
-                    return msg;
+            ImageStore images = info.getImages();
+            // o blob fica referenciado até ao fim do RI, mesmo que a versão deixe de ser guardada
+            ImageStore.Version stored = images == null ? null : images.pin(user_devId, revision);
+            if (stored == null) {
+                msg.setCode(MessageCode.NO_DATA);
+            } else {
+                try {
+                    imageReply(msg, images, stored, version);
+                } finally {
+                    images.unpin(stored);
                 }
             }
-            msg.setCode(MessageCode.NO_PERM); 
         }
 
         return msg;
@@ -388,22 +1082,101 @@ public class ServerThreadHandler {
     }
 
     /**
-     * Método encarregue por fechar a conexão com o cliente
+     * Método que prepara a resposta do RI com uma versão da imagem (ver retriveImage)
      */
-    protected void close() {
-        this.device.turnOff();
-        Message msg = new Message();
-        writeMessage(msg);
-        try {
-            if (in != null) {
-                in.close();
+    private void imageReply(Message msg, ImageStore images, ImageStore.Version stored, Long version) {
+        if (version != null && version == stored.getTag()) {
+            // a versão da imagem é o início do seu SHA-256, não é preciso ler a imagem
+            msg.setVersion(version);
+            msg.setRevision(stored.getNumber());
+            msg.setCode(MessageCode.NOT_MODIFIED);
+        } else {
+            try {
+                ImageCache cache = cacheImages ? info.getImageCache() : null;
+                replyBuffer = cache == null ? null : cache.get(stored.getHash());
+                if (replyBuffer == null) {
+                    // o blob aberto continua legível mesmo que seja apagado entretanto
+                    FileChannel file = images.open(stored);
+                    try {
+                        replyBuffer = cache == null ? null : cache.load(stored.getHash(), file, stored.getSize());
+                    } finally {
+                        if (replyBuffer == null) {
+                            replyFile = file;
+                        } else {
+                            closeQuietly(file);
+                        }
+                    }
+                }
+                msg.setCode(MessageCode.OK);
+                msg.setSize(stored.getSize());
+                msg.setVersion(stored.getTag());
+                msg.setRevision(stored.getNumber());
+            } catch (IOException e) {
+                FileChannel file = takeReplyFile();
+                if (file != null) {
+                    closeQuietly(file);
+                }
+                msg.setCode(MessageCode.NO_DATA);
             }
+        }
+    }
+
+    /**
+     * Método encarregue por fechar a conexão com o cliente. A última mensagem enviada ao
+     * cliente é a resposta ao EXIT, com o seu request id. Se o protocolo não chegou a ser
+     * negociado não é enviada nenhuma mensagem
+     *
+     * @param requestId request id do pedido EXIT, ou null se a ligação terminou de outra forma
+     */
+    protected void close(Long requestId) {
+        releaseConnection();
+        if (codec != null) {
+            Message msg = new Message();
+            msg.setRequestId(requestId);
+            writeMessage(msg);
+        }
+        try {
+            // out primeiro: fechar o in fecha o socket e perdia-se o que ainda está no buffer
             if (out != null) {
                 out.close();
             }
+            if (in != null) {
+                in.close();
+            }
         } catch (Exception e) {
             System.err.println("Error closing IO streams");
         }
     }
 
-}
\ No newline at end of file
+
+    /**
+     * Método que liberta os recursos associados à ligação: o dispositivo autenticado, o
+     * envio de imagem em curso (que pode ser retomado numa nova ligação), a imagem de um
+     * RI por enviar e as subscrições
+     */
+    protected void releaseConnection() {
+        releaseDevice();
+        if (subscriber != null) {
+            info.getSubscriptions().unsubscribeAll(subscriber);
+        }
+        if (upload != null) {
+            upload.close();
+            upload = null;
+        }
+        FileChannel body = takeReplyFile();
+        if (body != null) {
+            closeQuietly(body);
+        }
+        replyBuffer = null;
+    }
+
+    /**
+     * Método que marca o dispositivo autenticado nesta ligação como desligado
+     */
+    protected void releaseDevice() {
+        if (this.device != null) {
+            this.device.turnOff();
+        }
+    }
+
+}
@@ -1,5 +1,15 @@
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Classe que representa um Singleton que contem a informacao partilhada entre as diferentes threads 
@@ -11,22 +21,102 @@ import java.util.ArrayList;
 public class SharedInfoSingleton {
 
     private final String DOMAINS_PATH = "server/serverFiles/domains.txt";
-    private final String DEVICES_PATH = "server/serverFiles/devices.txt";
+    private final String DEVICES_PATH = "server/serverFiles/devices.bin";
+    private final String LEGACY_DEVICES_PATH = "server/serverFiles/devices.txt";
     private final String USERS_PATH = "server/serverFiles/users.txt";
+    private final String WAL_PATH = "server/serverFiles/wal";
+    private final String HISTORY_PATH = "server/serverFiles/history";
+    private final String IMAGES_PATH = "server/serverImages";
+
+    // tipos dos registos do write-ahead log
+    private static final byte LOG_USER = 1;
+    private static final byte LOG_DEVICE = 2;
+    private static final byte LOG_DOMAIN = 3;
+    private static final byte LOG_DOMAIN_USER = 4;
+    private static final byte LOG_DOMAIN_DEVICE = 5;
+    private static final byte LOG_TEMP = 6;
+    private static final byte LOG_TEMP_BATCH = 7;
 
     private static volatile SharedInfoSingleton domains = null;
 
-    private ArrayList<Domain> domainsList;
-    private ArrayList<Device> devicesList;
-    private ArrayList<User> usersList;
+    /**
+     * Indices da informação partilhada, por nome do dominio, nome do dispositivo (user:dev)
+     * e id do utilizador. As pesquisas são O(1) e não usam locks
+     */
+    private final ConcurrentHashMap<String, Domain> domainsByName;
+    private final ConcurrentHashMap<String, Device> devicesByName;
+    private final ConcurrentHashMap<String, User> usersById;
+
+    /**
+     * Indices inversos com os nomes dos dominios de cada dispositivo e de cada utilizador,
+     * usados nas verificações de permissões de leitura
+     */
+    private final ConcurrentHashMap<String, Set<String>> domainsByDevice;
+    private final ConcurrentHashMap<String, Set<String>> domainsByUser;
+
+    /**
+     * Log onde é registada cada alteração ao estado entre snapshots. É null enquanto a
+     * informação é carregada, para que a reaplicação do log não volte a ser registada
+     */
+    private volatile WriteAheadLog wal;
+
+    /**
+     * Último registo no log de cada thread que não espera pelo disco (threads de I/O do
+     * front end NIO, ver deferLogWrites). Vale NO_LOG_WRITES se a thread não registou nada
+     * desde a última vez que foi consultado, e é null nas threads que esperam pelo disco
+     */
+    private static final CompletableFuture<Void> NO_LOG_WRITES = CompletableFuture.completedFuture(null);
+    private final ThreadLocal<CompletableFuture<Void>> deferredLogWrites = new ThreadLocal<>();
+
+    /**
+     * Histórico das temperaturas registadas pelos dispositivos. É null se não tiver sido
+     * possível abrir os ficheiros do histórico
+     */
+    private TemperatureHistory history;
+
+    /**
+     * Imagens enviadas pelos dispositivos. É null se não tiver sido possível abrir o
+     * diretório das imagens
+     */
+    private ImageStore images;
+
+    /**
+     * Cache das imagens mais pedidas (RI)
+     */
+    private volatile ImageCache imageCache = new ImageCache(ImageCache.DEFAULT_SIZE_MB * 1024L * 1024);
+
+    /**
+     * Escrita em segundo plano das imagens (EI). É null quando as imagens são escritas
+     * antes da resposta ao cliente
+     */
+    private volatile ImageWriter imageWriter;
+
+    /**
+     * Subscrições das alterações de temperatura dos dominios (SUBSCRIBE)
+     */
+    private volatile Subscriptions subscriptions = new Subscriptions(Subscriptions.DEFAULT_INTERVAL_MS);
+
+    /**
+     * Contadores de alterações dos utilizadores, dos dominios e dos dispositivos, e os valores
+     * que tinham no último snapshot guardado. Um ficheiro só é reescrito quando o seu contador
+     * mudou, por isso um backup sem alterações não faz I/O
+     */
+    private final AtomicLong usersVersion = new AtomicLong();
+    private final AtomicLong domainsVersion = new AtomicLong();
+    private final AtomicLong devicesVersion = new AtomicLong();
+    private long usersSaved = -1;
+    private long domainsSaved = -1;
+    private long devicesSaved = -1;
 
     /**
      * Construtor privado para impedir inicializacao
      */
     private SharedInfoSingleton() {
-        domainsList = new ArrayList<>();
-        devicesList = new ArrayList<>();
-        usersList = new ArrayList<>();
+        domainsByName = new ConcurrentHashMap<>();
+        devicesByName = new ConcurrentHashMap<>();
+        usersById = new ConcurrentHashMap<>();
+        domainsByDevice = new ConcurrentHashMap<>();
+        domainsByUser = new ConcurrentHashMap<>();
     }
 
     /**
@@ -40,6 +130,7 @@ public class SharedInfoSingleton {
                 if (domains == null) {
                     domains = new SharedInfoSingleton();
                     domains.loadInfo();
+                    domains.openLog();
                 }
             }
         }
@@ -47,15 +138,169 @@ public class SharedInfoSingleton {
     }
 
     /**
-     * Metodo que carrega a informacao dos ficheiros
+     * Metodo que carrega a informacao dos ficheiros: o ultimo snapshot seguido das
+     * alterações registadas no write-ahead log depois desse snapshot
      */
     public void loadInfo() {
         loadUsers();
         loadDomain();
         loadDevices();
+        try {
+            history = TemperatureHistory.open(HISTORY_PATH);
+        } catch (IOException e) {
+            System.err.println("Error opening temperature history: " + e.getMessage());
+        }
+        try {
+            images = ImageStore.open(IMAGES_PATH);
+            importLegacyImages();
+        } catch (IOException e) {
+            System.err.println("Error opening image store: " + e.getMessage());
+        }
+        long replayed = WriteAheadLog.replay(WAL_PATH, this::replayRecord);
+        if (replayed > 0) {
+            System.out.println("Replayed " + replayed + " log records");
+        }
+        loadStats();
+    }
+
+    /**
+     * Metodo que calcula os agregados das temperaturas de cada dominio a partir da
+     * última temperatura dos seus dispositivos
+     */
+    private void loadStats() {
+        for (Domain domain : domainsByName.values()) {
+            for (Device device : domain.getDevices()) {
+                Float temp = device.getTemp();
+                if (temp != null) {
+                    domain.getStats().setCurrent(device.getDevName(), temp);
+                }
+            }
+        }
+    }
+
+    /**
+     * Metodo que define durante quantos dias é guardado o histórico das temperaturas
+     * 
+     * @param days dias de retenção, 0 para guardar todo o histórico
+     */
+    public void setHistoryRetention(int days) {
+        if (history != null) {
+            history.setRetention(days * 24L * 60 * 60 * 1000);
+        }
+    }
+
+    /**
+     * Metodo que move as imagens guardadas antes do ImageStore (<user>_<dev>.jpg) para o
+     * armazenamento, como primeira versão da imagem de cada dispositivo
+     */
+    private void importLegacyImages() {
+        for (Device device : devicesByName.values()) {
+            Path legacy = Paths.get(IMAGES_PATH, device.getDevName().replace(':', '_') + ".jpg");
+            if (Files.isRegularFile(legacy)) {
+                try {
+                    images.importFile(device.getDevName(), legacy);
+                } catch (IOException e) {
+                    System.err.println("Error importing image " + legacy + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Metodo que define quantas versões da imagem de cada dispositivo são guardadas
+     * 
+     * @param versions número de versões guardadas
+     */
+    public void setImageVersions(int versions) {
+        if (images != null) {
+            images.setKeptVersions(versions);
+        }
+    }
+
+    /**
+     * Metodo que define o tamanho da cache das imagens mais pedidas
+     * 
+     * @param megabytes tamanho da cache em MB, 0 para não usar cache
+     */
+    public void setImageCacheSize(int megabytes) {
+        imageCache = new ImageCache(megabytes * 1024L * 1024);
+    }
+
+    /**
+     * Metodo que define o intervalo entre as notificações enviadas aos clientes que
+     * subscreveram dominios
+     * 
+     * @param millis intervalo em ms
+     */
+    public void setPushInterval(int millis) {
+        Subscriptions old = subscriptions;
+        subscriptions = new Subscriptions(millis);
+        old.close();
+    }
+
+    /**
+     * Metodo que retorna as subscrições das alterações de temperatura dos dominios
+     * @return subscrições dos dominios
+     */
+    public Subscriptions getSubscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * Metodo que define como são escritas as imagens enviadas numa única mensagem (EI)
+     * 
+     * @param mode modo de escrita das imagens
+     */
+    public void setImageWriteMode(ServerConfig.ImageWriteMode mode) {
+        if (images != null) {
+            imageWriter = new ImageWriter(images, mode);
+        }
+    }
+
+    /**
+     * Metodo que retorna a escrita em segundo plano das imagens
+     * @return escrita em segundo plano ou null se não houver armazenamento de imagens
+     */
+    public ImageWriter getImageWriter() {
+        return imageWriter;
+    }
+
+    /**
+     * Metodo que retorna a cache das imagens mais pedidas
+     * @return cache das imagens
+     */
+    public ImageCache getImageCache() {
+        return imageCache;
+    }
+
+    /**
+     * Metodo que retorna as imagens enviadas pelos dispositivos
+     * @return armazenamento das imagens ou null se não estiver disponível
+     */
+    public ImageStore getImages() {
+        return images;
+    }
+
+    /**
+     * Metodo que retorna o histórico das temperaturas dos dispositivos
+     * @return histórico das temperaturas ou null se não estiver disponível
+     */
+    public TemperatureHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Metodo que abre o write-ahead log para registar as alterações seguintes
+     */
+    private void openLog() {
+        try {
+            wal = new WriteAheadLog(WAL_PATH);
+        } catch (IOException e) {
+            System.err.println("Error opening write-ahead log: " + e.getMessage());
+        }
     }
 
-    private synchronized void loadUsers() {
+    private void loadUsers() {
         File file = new File(USERS_PATH);
         if (!file.exists()) {
             return;
@@ -70,7 +315,7 @@ public class SharedInfoSingleton {
                 String password = parts[1].trim();
 
                 User u = new User(user_id, password);
-                usersList.add(u);
+                usersById.put(user_id, u);
             }
             bf.close();
         } catch (IOException e) {
@@ -83,7 +328,7 @@ public class SharedInfoSingleton {
      * Metodo que faz o load dos dominios a partir das informações 
      * presentes no ficheiro dos dominios de modo a garantir persistência
      */
-    private synchronized void loadDomain() {
+    private void loadDomain() {
         File file = new File(DOMAINS_PATH);
         if (!file.exists()) {
             return;
@@ -103,19 +348,19 @@ public class SharedInfoSingleton {
 
                 Domain domain = new Domain(name, owner);
                 for (String device : devices) {
-                    if (device != "") {
-                        Device d = new Device(device, false);
-                        domain.registerDevice(d);
-                        devicesList.add(d);
+                    if (!device.isEmpty()) {
+                        // um dispositivo pode pertencer a varios dominios, mas existe um só objeto
+                        Device d = devicesByName.computeIfAbsent(device, n -> new Device(n, false));
+                        registerDeviceInDomain(domain, d);
                     }
                 }
                 for (String user : users) {
-                    if (user != "") {
-                        User u = getUserByName(user);
-                        domain.addUser(u);
+                    User u = getUserByName(user);
+                    if (u != null) {
+                        addUserToDomain(domain, u);
                     }
                 }
-                domainsList.add(domain);
+                domainsByName.put(name, domain);
             }
             bf.close();
         } catch (IOException e) {
@@ -124,12 +369,21 @@ public class SharedInfoSingleton {
     }
     
     /**
-     * Metodo que faz o load dos dispositivos a partir das informações 
-     * presentes no ficheiro dos dispositivos  de modo a garantir persistência
+     * Metodo que faz o load dos dispositivos a partir do snapshot binário dos dispositivos
+     * de modo a garantir persistência. Se só existir o ficheiro de texto de versões anteriores,
+     * este é lido e convertido para o formato binário no próximo backup
      */
-    private synchronized void loadDevices() {
+    private void loadDevices() {
+        if (Files.exists(Paths.get(DEVICES_PATH))) {
+            try {
+                DeviceSnapshot.read(Paths.get(DEVICES_PATH), this::loadDevice);
+            } catch (IOException e) {
+                System.err.println("Error loading devices from file: " + e.getMessage());
+            }
+            return;
+        }
 
-        File file = new File(DEVICES_PATH);
+        File file = new File(LEGACY_DEVICES_PATH);
         if (!file.exists()) {
             return;
         }
@@ -141,113 +395,543 @@ public class SharedInfoSingleton {
                 String[] parts = line.split("_");
                 String devName = parts[0].trim();
                 Float temp = parts[1].equals("null") ? null : Float.parseFloat(parts[1]);
-                Device d = getDeviceByName(devName);
-                if (d != null) {
-                    d.setTemp(temp);
-                } else {
-                    devicesList.add(new Device(devName, false, temp));
-                }
+                loadDevice(devName, temp);
 
             }
             bf.close();
+            devicesVersion.incrementAndGet();
         } catch (IOException e) {
             System.err.println("Error loading devices from file");
         }
     }
+
+    private void loadDevice(String devName, Float temp) {
+        Device d = getDeviceByName(devName);
+        if (d != null) {
+            d.setTemp(temp);
+        } else {
+            devicesByName.put(devName, new Device(devName, false, temp));
+        }
+    }
     
     /**
-     * Metodo que faz o backup da informacao antes de desligar o server de modo a garantir persistência
+     * Metodo que reaplica um registo do write-ahead log. Os registos cujos dados
+     * já fazem parte do snapshot não têm efeito
+     * 
+     * @param body corpo do registo
+     */
+    private void replayRecord(byte[] body) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+            byte type = in.readByte();
+            switch (type) {
+                case LOG_USER:
+                    addUser(new User(in.readUTF(), in.readUTF()));
+                    break;
+                case LOG_DEVICE:
+                    addDevice(new Device(in.readUTF(), false));
+                    break;
+                case LOG_DOMAIN: {
+                    String name = in.readUTF();
+                    User owner = getUserByName(in.readUTF());
+                    if (owner != null) {
+                        addDomain(new Domain(name, owner));
+                    }
+                    break;
+                }
+                case LOG_DOMAIN_USER: {
+                    Domain domain = getDomain(in.readUTF());
+                    User user = getUserByName(in.readUTF());
+                    if (domain != null && user != null) {
+                        addUserToDomain(domain, user);
+                    }
+                    break;
+                }
+                case LOG_DOMAIN_DEVICE: {
+                    Domain domain = getDomain(in.readUTF());
+                    Device device = getDeviceByName(in.readUTF());
+                    if (domain != null && device != null) {
+                        registerDeviceInDomain(domain, device);
+                    }
+                    break;
+                }
+                case LOG_TEMP: {
+                    Device device = getDeviceByName(in.readUTF());
+                    long timestamp = in.readLong();
+                    float temp = in.readFloat();
+                    if (device != null) {
+                        device.setTemp(temp);
+                        devicesVersion.incrementAndGet();
+                        if (history != null) {
+                            history.restore(device.getDevName(), timestamp, temp);
+                        }
+                    }
+                    break;
+                }
+                case LOG_TEMP_BATCH: {
+                    Device device = getDeviceByName(in.readUTF());
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        long timestamp = in.readLong();
+                        float temp = in.readFloat();
+                        if (device != null) {
+                            device.setTemp(temp);
+                            if (history != null) {
+                                history.restore(device.getDevName(), timestamp, temp);
+                            }
+                        }
+                    }
+                    devicesVersion.incrementAndGet();
+                    break;
+                }
+                default:
+                    System.err.println("Unknown log record type " + type);
+            }
+        } catch (IOException e) {
+            System.err.println("Error replaying log record: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Metodo que faz com que as alterações feitas pela thread atual deixem de esperar pelo
+     * write-ahead log: quem a usa tem de obter a escrita pendente com takeLogWrites e só
+     * responder ao cliente depois de esta estar concluída
+     */
+    public void deferLogWrites() {
+        deferredLogWrites.set(NO_LOG_WRITES);
+    }
+
+    /**
+     * Metodo que devolve (e esquece) a escrita no write-ahead log das alterações feitas pela
+     * thread atual desde a última chamada, numa thread marcada com deferLogWrites
+     * 
+     * @return CompletableFuture concluída quando essas alterações estiverem em disco (com ou
+     *         sem erro), ou null se não houver nenhuma por escrever
      */
-    public void backupInfo() {
-        backupUsers();
-        backupDomains();
-        backupDeviceInfo();
+    public CompletableFuture<Void> takeLogWrites() {
+        CompletableFuture<Void> pending = deferredLogWrites.get();
+        if (pending == null || (pending.isDone() && !pending.isCompletedExceptionally())) {
+            return null;
+        }
+        deferredLogWrites.set(NO_LOG_WRITES);
+        return pending;
+    }
 
+    /**
+     * Metodo que regista uma alteração no write-ahead log e espera que esta esteja em disco,
+     * exceto numa thread marcada com deferLogWrites (ver takeLogWrites), em que o erro só
+     * é conhecido quando a CompletableFuture devolvida por takeLogWrites terminar
+     * 
+     * @param type   tipo do registo
+     * @param fields campos do registo (String, Integer, Long ou Float)
+     * @throws IOException se o registo não puder ser escrito (a alteração já foi feita em
+     *                     memória, mas o cliente não pode receber OK)
+     */
+    private void log(byte type, Object... fields) throws IOException {
+        WriteAheadLog log = wal;
+        if (log == null) {
+            return;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(type);
+        for (Object field : fields) {
+            if (field instanceof String) {
+                out.writeUTF((String) field);
+            } else if (field instanceof Integer) {
+                out.writeInt((Integer) field);
+            } else if (field instanceof Long) {
+                out.writeLong((Long) field);
+            } else {
+                out.writeFloat((Float) field);
+            }
+        }
+        out.flush();
+        CompletableFuture<Void> pending = deferredLogWrites.get();
+        if (pending != null) {
+            CompletableFuture<Void> write = log.appendAsync(bos.toByteArray()).whenComplete((v, e) -> {
+                if (e != null) {
+                    System.err.println("Error writing to write-ahead log: " + e.getMessage());
+                }
+            });
+            // o pedido só teve sucesso se todos os seus registos forem escritos
+            deferredLogWrites.set(pending == NO_LOG_WRITES ? write : CompletableFuture.allOf(pending, write));
+        } else {
+            try {
+                log.append(bos.toByteArray());
+            } catch (IOException e) {
+                System.err.println("Error writing to write-ahead log: " + e.getCause().getMessage());
+                throw e;
+            }
+        }
     }
 
-    private synchronized void backupUsers() {
+    /**
+     * Metodo que guarda um snapshot da informacao de modo a garantir persistência.
+     * Só são reescritos os ficheiros cuja informação mudou desde o último snapshot.
+     * Os segmentos do write-ahead log anteriores ao snapshot são apagados quando este
+     * fica guardado com sucesso
+     */
+    public synchronized void backupInfo() {
+        if (usersVersion.get() == usersSaved && domainsVersion.get() == domainsSaved
+                && devicesVersion.get() == devicesSaved) {
+            return;
+        }
 
-        File file = new File("server/serverFiles");
-        if (!file.exists()) {
-            Utils.createDir("server/serverFiles");
+        long sealedSegment = -1;
+        WriteAheadLog log = wal;
+        if (log != null) {
+            try {
+                sealedSegment = log.rotate();
+            } catch (IOException e) {
+                System.err.println("Error rotating write-ahead log: " + e.getMessage());
+            }
+        }
+
+        if (!Utils.createDir("server/serverFiles")) {
+            System.err.println("Error creating backup directory");
+            return;
+        }
+
+        // os contadores são lidos antes da escrita, uma alteração feita durante a escrita
+        // faz com que o ficheiro volte a ser escrito no próximo backup
+        boolean saved = true;
+        long users = usersVersion.get();
+        if (users != usersSaved) {
+            if (backupUsers()) {
+                usersSaved = users;
+            } else {
+                saved = false;
+            }
+        }
+        long domainsV = domainsVersion.get();
+        if (domainsV != domainsSaved) {
+            if (backupDomains()) {
+                domainsSaved = domainsV;
+            } else {
+                saved = false;
+            }
+        }
+        long devices = devicesVersion.get();
+        if (devices != devicesSaved) {
+            if (backupDeviceInfo() && (history == null || history.checkpoint())) {
+                devicesSaved = devices;
+            } else {
+                saved = false;
+            }
+        }
+
+        if (saved && sealedSegment >= 0) {
+            log.deleteSegmentsUpTo(sealedSegment);
         }
+    }
+
+    /**
+     * Metodo que guarda a informacao e fecha o write-ahead log antes de desligar o servidor
+     */
+    public void shutdown() {
+        backupInfo();
+        WriteAheadLog log = wal;
+        if (log != null) {
+            log.close();
+        }
+        if (history != null) {
+            history.close();
+        }
+        ImageWriter writer = imageWriter;
+        if (writer != null) {
+            writer.close();
+        }
+        subscriptions.close();
+        ImageCache cache = imageCache;
+        System.out.println("Image cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses");
+    }
 
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(USERS_PATH))) {;
-            for (User u : usersList) {
+    private boolean backupUsers() {
+        try (BufferedWriter writer = Files.newBufferedWriter(tempPath(USERS_PATH))) {
+            for (User u : usersById.values()) {
                 String s = u.getUserId() + ":" + u.getPassword() + "\n";
                 writer.write(s, 0, s.length());
             }
         } catch (IOException e) {
-            System.err.println("Error creating backup of domains");
+            System.err.println("Error creating backup of users");
+            return false;
         }
-
+        return commitFile(USERS_PATH);
     }
     
     /**
      * Metodo que faz o backup dos dominios para o ficheiro de dominios de modo a garantir persistência
      */
-    private synchronized void backupDomains() {
-
-        File file = new File("server/serverFiles");
-        if (!file.exists()) {
-            Utils.createDir("server/serverFiles");
-        }
-
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(DOMAINS_PATH))) {
-            for (Domain d : domainsList) {
+    private boolean backupDomains() {
+        try (BufferedWriter writer = Files.newBufferedWriter(tempPath(DOMAINS_PATH))) {
+            for (Domain d : domainsByName.values()) {
                 String s = d.toString() + "\n";
                 writer.write(s, 0, s.length());
             }
         } catch (IOException e) {
             System.err.println("Error creating backup of domains");
+            return false;
         }
-
+        return commitFile(DOMAINS_PATH);
     }
 
     /**
      * Metodo que faz o backup dos dispositivos para o ficheiro de dispositivos de modo a assegurar persistência
      */
-    private synchronized void backupDeviceInfo() {
-
+    private boolean backupDeviceInfo() {
         try {
-            BufferedWriter writer = new BufferedWriter(new FileWriter(DEVICES_PATH));
-            for (Device d : devicesList) {
-                String s = d.toString() + "_" + (d.getTemp() == null ? "null" : Float.toString(d.getTemp())) + "\n";
-                writer.write(s, 0, s.length());
-            }
-            writer.close();
+            DeviceSnapshot.write(tempPath(DEVICES_PATH), devicesByName.values());
         } catch (IOException e) {
             System.err.println("Error creating backup of devices");
+            return false;
+        }
+        if (!commitFile(DEVICES_PATH)) {
+            return false;
         }
+        try {
+            // o ficheiro de texto antigo já foi convertido
+            Files.deleteIfExists(Paths.get(LEGACY_DEVICES_PATH));
+        } catch (IOException e) {
+            System.err.println("Error deleting " + LEGACY_DEVICES_PATH);
+        }
+        return true;
+    }
 
+    private static Path tempPath(String path) {
+        return Paths.get(path + ".tmp");
+    }
+
+    /**
+     * Metodo que torna definitivo um ficheiro de backup: faz fsync da versão temporária e
+     * substitui o ficheiro com um rename atómico, de modo a que uma falha a meio da escrita
+     * nunca deixe um ficheiro incompleto
+     * 
+     * @param path caminho do ficheiro
+     * @return true se o ficheiro foi substituído
+     */
+    private static boolean commitFile(String path) {
+        Path tmp = tempPath(path);
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(tmp, Paths.get(path), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error saving " + path + ": " + e.getMessage());
+            return false;
+        }
     }
 
     /**
-     * Metodo que retorna a lista de dominios
-     * @return Lista de dominios
+     * Metodo que retorna os dominios
+     * @return Vista (não modificável) dos dominios
      */
-    public synchronized ArrayList<Domain> getDomains() {
-        return domainsList;
+    public Collection<Domain> getDomains() {
+        return Collections.unmodifiableCollection(domainsByName.values());
     }
 
     /**
-     * Metodo que adiciona um dominio à lista de dominios
+     * Metodo que adiciona um dominio, caso ainda não exista um dominio com o mesmo nome
      * 
      * @param domain Dominio a adicionar
-     * @return true (as specified by Collection.add(E))
+     * @return true se o dominio foi adicionado, false se já existia um com o mesmo nome
+     * @throws IOException se a alteração não puder ser registada no write-ahead log
      */
-    public synchronized boolean addDomain(Domain domain) {
-        return domainsList.add(domain);
+    public boolean addDomain(Domain domain) throws IOException {
+        if (domainsByName.putIfAbsent(domain.getName(), domain) != null) {
+            return false;
+        }
+        domainsVersion.incrementAndGet();
+        log(LOG_DOMAIN, domain.getName(), domain.getOwner().getUserId());
+        return true;
     }
 
     /**
-     * Metodo que remove um dominio da lista de dominios
+     * Metodo que remove um dominio
      * 
      * @param domain Dominio a remover
-     * @return true se a lista continha o elemento a remover
+     * @return true se o dominio existia e foi removido
+     */
+    public boolean removeDomain(Domain domain) {
+        if (!domainsByName.remove(domain.getName(), domain)) {
+            return false;
+        }
+        for (Device d : domain.getDevices()) {
+            unindex(domainsByDevice, d.getDevName(), domain.getName());
+        }
+        for (User u : domain.getUsers()) {
+            unindex(domainsByUser, u.getUserId(), domain.getName());
+        }
+        return true;
+    }
+
+    /**
+     * Metodo que adiciona um utilizador a um dominio e atualiza o indice inverso
+     * 
+     * @param domain Dominio onde adicionar o utilizador
+     * @param user   Utilizador a adicionar
+     * @return true se o utilizador ainda não era membro do dominio
+     * @throws IOException se a alteração não puder ser registada no write-ahead log
+     */
+    public boolean addUserToDomain(Domain domain, User user) throws IOException {
+        index(domainsByUser, user.getUserId(), domain.getName());
+        if (!domain.addUser(user)) {
+            return false;
+        }
+        domainsVersion.incrementAndGet();
+        log(LOG_DOMAIN_USER, domain.getName(), user.getUserId());
+        return true;
+    }
+
+    /**
+     * Metodo que regista um dispositivo num dominio e atualiza o indice inverso
+     * 
+     * @param domain Dominio onde registar o dispositivo
+     * @param device Dispositivo a registar
+     * @return true se o dispositivo ainda não estava no dominio
+     * @throws IOException se a alteração não puder ser registada no write-ahead log
+     */
+    public boolean registerDeviceInDomain(Domain domain, Device device) throws IOException {
+        index(domainsByDevice, device.getDevName(), domain.getName());
+        if (!domain.registerDevice(device)) {
+            return false;
+        }
+        Float temp = device.getTemp();
+        if (temp != null) {
+            domain.getStats().setCurrent(device.getDevName(), temp);
+        }
+        domainsVersion.incrementAndGet();
+        log(LOG_DOMAIN_DEVICE, domain.getName(), device.getDevName());
+        return true;
+    }
+
+    /**
+     * Metodo que regista uma nova temperatura de um dispositivo
+     * 
+     * @param device    Dispositivo que enviou a temperatura
+     * @param temp      temperatura registada
+     * @param timestamp instante (em milissegundos) em que o servidor recebeu a temperatura
+     * @throws IOException se a alteração não puder ser registada no write-ahead log
+     */
+    public void registerTemperature(Device device, float temp, long timestamp) throws IOException {
+        device.setTemp(temp);
+        if (history != null) {
+            timestamp = history.appendReceived(device.getDevName(), timestamp, temp);
+        }
+        for (String domainName : domainsByDevice.getOrDefault(device.getDevName(), Collections.emptySet())) {
+            Domain domain = getDomain(domainName);
+            if (domain != null) {
+                domain.getStats().update(device.getDevName(), temp, timestamp);
+                domain.temperatureChanged();
+                subscriptions.temperatureChanged(domainName, device.getDevName(), temp);
+            }
+        }
+        devicesVersion.incrementAndGet();
+        log(LOG_TEMP, device.getDevName(), timestamp, temp);
+    }
+
+    /**
+     * Metodo que regista um lote de temperaturas de um dispositivo (ETB). As leituras são
+     * aplicadas pela ordem do lote, como se fossem enviadas uma a uma, mas os dominios do
+     * dispositivo são procurados uma só vez e o lote é registado no write-ahead log num único
+     * registo (um só fsync).
+     *
+     * Os timestamps das leituras de um dispositivo têm de ser estritamente crescentes e não
+     * podem ser posteriores ao instante atual do servidor. Uma leitura que não cumpra esta
+     * regra (relógio do dispositivo adiantado, leitura repetida ou fora de ordem) é descartada
+     * e não entra no histórico nem nos agregados: o timestamp nunca é alterado
+     * 
+     * @param device     dispositivo
+     * @param timestamps instantes das leituras, em ms
+     * @param temps      temperaturas lidas
+     * @return número de leituras registadas
+     * @throws IOException se a alteração não puder ser registada no write-ahead log
+     */
+    public int registerTemperatures(Device device, long[] timestamps, float[] temps) throws IOException {
+        if (temps.length == 0) {
+            return 0;
+        }
+        String devName = device.getDevName();
+        List<Domain> domains = new ArrayList<>();
+        for (String domainName : domainsByDevice.getOrDefault(devName, Collections.emptySet())) {
+            Domain domain = getDomain(domainName);
+            if (domain != null) {
+                domains.add(domain);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        long last = Long.MIN_VALUE;
+        int registered = 0;
+        Object[] fields = new Object[2 + 2 * temps.length];
+        fields[0] = devName;
+        for (int i = 0; i < temps.length; i++) {
+            long timestamp = timestamps[i];
+            if (timestamp > now || timestamp <= last) {
+                continue;
+            }
+            if (history != null && !history.append(devName, timestamp, temps[i])) {
+                continue;
+            }
+            last = timestamp;
+            for (Domain domain : domains) {
+                domain.getStats().update(devName, temps[i], timestamp);
+            }
+            fields[2 + 2 * registered] = timestamp;
+            fields[3 + 2 * registered] = temps[i];
+            registered++;
+        }
+        if (registered == 0) {
+            return 0;
+        }
+        float latest = (Float) fields[1 + 2 * registered];
+        device.setTemp(latest);
+        for (Domain domain : domains) {
+            domain.temperatureChanged();
+            // os subscritores só recebem a última temperatura do lote
+            subscriptions.temperatureChanged(domain.getName(), devName, latest);
+        }
+        devicesVersion.incrementAndGet();
+        fields[1] = registered;
+        log(LOG_TEMP_BATCH, registered == temps.length ? fields : Arrays.copyOf(fields, 2 + 2 * registered));
+        return registered;
+    }
+
+    /**
+     * Metodo que verifica se um utilizador tem permissão de leitura dos dados de um dispositivo,
+     * isto é, se existe um dominio que contenha ambos
+     * 
+     * @param userId  id do utilizador
+     * @param devName nome do dispositivo (user_id:dev_id)
+     * @return true se o utilizador e o dispositivo partilham algum dominio
      */
-    public synchronized boolean removeDomain(Domain domain) {
-        return domainsList.remove(domain);
+    public boolean canRead(String userId, String devName) {
+        Set<String> userDomains = domainsByUser.getOrDefault(userId, Collections.emptySet());
+        Set<String> deviceDomains = domainsByDevice.getOrDefault(devName, Collections.emptySet());
+        // percorre o conjunto mais pequeno e procura no maior
+        if (userDomains.size() > deviceDomains.size()) {
+            Set<String> tmp = userDomains;
+            userDomains = deviceDomains;
+            deviceDomains = tmp;
+        }
+        for (String domainName : userDomains) {
+            if (deviceDomains.contains(domainName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void index(ConcurrentHashMap<String, Set<String>> index, String key, String domainName) {
+        index.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(domainName);
+    }
+
+    private static void unindex(ConcurrentHashMap<String, Set<String>> index, String key, String domainName) {
+        Set<String> domainNames = index.get(key);
+        if (domainNames != null) {
+            domainNames.remove(domainName);
+        }
     }
 
     /**
@@ -256,49 +940,56 @@ public class SharedInfoSingleton {
      * @param domainName Nome do dominio a procurar
      * @return Dominio com o nome procurado ou null caso nao exista
      */
-    public synchronized Domain getDomain(String domainName) {
-        for (Domain domain : domainsList) {
-            if (domain.getName().equals(domainName)) {
-                return domain;
-            }
-        }
-        return null;
+    public Domain getDomain(String domainName) {
+        return domainName == null ? null : domainsByName.get(domainName);
     }
 
     /**
-     * Metodo que adiciona um dispositivo à lista de dispositivos
+     * Metodo que adiciona um dispositivo, caso ainda não exista um dispositivo com o mesmo nome
      * 
      * @param device Dispositivo a adicionar
-     * @return true (as specified by Collection.add(E))
+     * @return true se o dispositivo foi adicionado, false se já existia um com o mesmo nome
+     * @throws IOException se a alteração não puder ser registada no write-ahead log
      */
-    public synchronized boolean addDevice(Device device) {
-        return devicesList.add(device);
+    public boolean addDevice(Device device) throws IOException {
+        if (devicesByName.putIfAbsent(device.getDevName(), device) != null) {
+            return false;
+        }
+        devicesVersion.incrementAndGet();
+        log(LOG_DEVICE, device.getDevName());
+        return true;
     }
 
     /**
      * Metodo que retorna um dispositivo pelo seu nome
-     * @param devName nome do dispositivo a procurar
+     * @param devName nome do dispositivo a procurar (user_id:dev_id)
      * @return Dispositivo com o nome procurado ou null caso nao exista
      */
-    public synchronized Device getDeviceByName(String devName) {
-        for (Device actDevice : devicesList) {
-            if (actDevice.getDevName().equals(devName)) {
-                return actDevice;
-            }
-        }
-        return null;
+    public Device getDeviceByName(String devName) {
+        return devName == null ? null : devicesByName.get(devName);
     }
 
+    /**
+     * Metodo que retorna um utilizador pelo seu id
+     * @param userid id do utilizador a procurar
+     * @return Utilizador com o id procurado ou null caso nao exista
+     */
     public User getUserByName(String userid) {
-        for (User user : usersList) {
-            if (user.getUserId().equals(userid)) {
-                return user;
-            }
-        }
-        return null;
+        return userid == null ? null : usersById.get(userid);
     }
 
-    public synchronized boolean addUser(User user) {
-        return usersList.add(user);
+    /**
+     * Metodo que adiciona um utilizador, caso ainda não exista um utilizador com o mesmo id
+     * @param user Utilizador a adicionar
+     * @return true se o utilizador foi adicionado, false se já existia um com o mesmo id
+     * @throws IOException se a alteração não puder ser registada no write-ahead log
+     */
+    public boolean addUser(User user) throws IOException {
+        if (usersById.putIfAbsent(user.getUserId(), user) != null) {
+            return false;
+        }
+        usersVersion.incrementAndGet();
+        log(LOG_USER, user.getUserId(), user.getPassword());
+        return true;
     }
-}
\ No newline at end of file
+}
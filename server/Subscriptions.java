@@ -0,0 +1,332 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Classe que representa as subscrições das alterações de temperatura dos dominios
+ * (SUBSCRIBE), para que os clientes recebam as alterações sem repetir o RT.
+ *
+ * Cada alteração de temperatura de um dispositivo é registada nos subscritores dos seus
+ * dominios e, a cada intervalo, as alterações acumuladas são enviadas numa notificação
+ * (PUSH) por dominio, apenas com a última temperatura de cada dispositivo (coalescing).
+ * As notificações de cada subscritor ficam numa fila limitada: se o cliente não as ler e a
+ * fila encher, as notificações em espera são juntas numa só por dominio, com as últimas
+ * temperaturas, por isso a memória usada por um cliente lento não cresce com o tempo.
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class Subscriptions {
+
+    /**
+     * Intervalo por omissão entre notificações, em ms
+     */
+    public static final int DEFAULT_INTERVAL_MS = 1000;
+
+    /**
+     * Número de notificações em espera a partir do qual só são mantidas as últimas
+     * temperaturas de cada dominio
+     */
+    public static final int MAX_QUEUED_PUSHES = 16;
+
+    /**
+     * Notificação das alterações de temperatura de um dominio
+     */
+    private static final class Push {
+        private final String domain;
+        private final HashMap<String, Float> temps;
+
+        private Push(String domain, HashMap<String, Float> temps) {
+            this.domain = domain;
+            this.temps = temps;
+        }
+    }
+
+    /**
+     * Classe que representa os dominios subscritos numa ligação e as notificações que
+     * lhe falta enviar. O estado das notificações é protegido por um ReentrantLock (e não
+     * pelo monitor) porque a tarefa que espera em take pode ser uma thread virtual
+     */
+    public static final class Subscriber {
+        private final Set<String> domains = new HashSet<>();
+        private final Map<String, HashMap<String, Float>> changes = new HashMap<>();
+        private final Deque<Push> queue = new ArrayDeque<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private Runnable listener;
+        private boolean closed;
+        private long collapsed;
+
+        /**
+         * Método que define o que fazer quando há notificações por enviar (front end NIO,
+         * que não pode ficar à espera em take)
+         *
+         * @param listener ação chamada pela thread das notificações
+         */
+        public void setListener(Runnable listener) {
+            lock.lock();
+            try {
+                this.listener = listener;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void changed(String domain, String devName, float temp) {
+            lock.lock();
+            try {
+                if (!closed) {
+                    changes.computeIfAbsent(domain, k -> new HashMap<>()).put(devName, temp);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Método que passa as alterações acumuladas para a fila de notificações
+         */
+        private void flush() {
+            Runnable ready;
+            lock.lock();
+            try {
+                if (closed || changes.isEmpty()) {
+                    return;
+                }
+                for (Map.Entry<String, HashMap<String, Float>> entry : changes.entrySet()) {
+                    queue.add(new Push(entry.getKey(), entry.getValue()));
+                }
+                changes.clear();
+                if (queue.size() > MAX_QUEUED_PUSHES) {
+                    // o cliente não está a ler: ficam só as últimas temperaturas de cada dominio
+                    Map<String, HashMap<String, Float>> latest = new HashMap<>();
+                    for (Push push : queue) {
+                        latest.computeIfAbsent(push.domain, k -> new HashMap<>()).putAll(push.temps);
+                    }
+                    queue.clear();
+                    for (Map.Entry<String, HashMap<String, Float>> entry : latest.entrySet()) {
+                        queue.add(new Push(entry.getKey(), entry.getValue()));
+                    }
+                    collapsed++;
+                }
+                notEmpty.signalAll();
+                ready = listener;
+            } finally {
+                lock.unlock();
+            }
+            if (ready != null) {
+                ready.run();
+            }
+        }
+
+        /**
+         * Método que devolve a próxima notificação, se houver
+         *
+         * @return notificação (PUSH) ou null se não houver notificações por enviar
+         */
+        public Message poll() {
+            lock.lock();
+            try {
+                Push push = queue.poll();
+                return push == null ? null : toMessage(push);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Método que espera pela próxima notificação
+         *
+         * @return notificação (PUSH) ou null se o subscritor foi fechado
+         * @throws InterruptedException se a thread for interrompida
+         */
+        public Message take() throws InterruptedException {
+            lock.lock();
+            try {
+                while (queue.isEmpty() && !closed) {
+                    notEmpty.await();
+                }
+                return closed ? null : toMessage(queue.poll());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Método que devolve quantas vezes a fila encheu e as notificações foram juntas
+         *
+         * @return número de vezes que só foram mantidas as últimas temperaturas
+         */
+        public long getCollapsed() {
+            lock.lock();
+            try {
+                return collapsed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void close() {
+            lock.lock();
+            try {
+                closed = true;
+                queue.clear();
+                changes.clear();
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private static Message toMessage(Push push) {
+            Message msg = new Message();
+            msg.setCommand("PUSH");
+            msg.setDomain(push.domain);
+            msg.setData(Utils.hashMapToByteArray(push.temps));
+            return msg;
+        }
+    }
+
+    private final long intervalMs;
+    private final Map<String, Set<Subscriber>> byDomain = new ConcurrentHashMap<>();
+    private final Set<Subscriber> dirty = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService timer;
+
+    /**
+     * Construtor de Subscriptions
+     *
+     * @param intervalMs intervalo entre notificações, em ms
+     */
+    public Subscriptions(long intervalMs) {
+        this.intervalMs = Math.max(1, intervalMs);
+    }
+
+    /**
+     * Método que subscreve as alterações de um dominio. A thread das notificações só é
+     * criada na primeira subscrição
+     *
+     * @param domain     nome do dominio
+     * @param subscriber subscritor da ligação
+     */
+    public void subscribe(String domain, Subscriber subscriber) {
+        synchronized (this) {
+            if (timer == null) {
+                timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "subscriptions");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                timer.scheduleAtFixedRate(this::flushChanges, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        subscriber.lock.lock();
+        try {
+            if (subscriber.closed) {
+                return;
+            }
+            subscriber.domains.add(domain);
+        } finally {
+            subscriber.lock.unlock();
+        }
+        byDomain.computeIfAbsent(domain, k -> ConcurrentHashMap.newKeySet()).add(subscriber);
+    }
+
+    /**
+     * Método que cancela a subscrição de um dominio
+     *
+     * @param domain     nome do dominio
+     * @param subscriber subscritor da ligação
+     * @return true se o dominio estava subscrito
+     */
+    public boolean unsubscribe(String domain, Subscriber subscriber) {
+        subscriber.lock.lock();
+        try {
+            if (!subscriber.domains.remove(domain)) {
+                return false;
+            }
+            subscriber.changes.remove(domain);
+        } finally {
+            subscriber.lock.unlock();
+        }
+        Set<Subscriber> subscribers = byDomain.get(domain);
+        if (subscribers != null) {
+            subscribers.remove(subscriber);
+        }
+        return true;
+    }
+
+    /**
+     * Método que cancela todas as subscrições de uma ligação que foi fechada
+     *
+     * @param subscriber subscritor da ligação
+     */
+    public void unsubscribeAll(Subscriber subscriber) {
+        Set<String> domains;
+        subscriber.lock.lock();
+        try {
+            domains = new HashSet<>(subscriber.domains);
+            subscriber.domains.clear();
+        } finally {
+            subscriber.lock.unlock();
+        }
+        subscriber.close();
+        for (String domain : domains) {
+            Set<Subscriber> subscribers = byDomain.get(domain);
+            if (subscribers != null) {
+                subscribers.remove(subscriber);
+            }
+        }
+        dirty.remove(subscriber);
+    }
+
+    /**
+     * Método que regista a alteração da temperatura de um dispositivo de um dominio
+     *
+     * @param domain  nome do dominio
+     * @param devName nome do dispositivo
+     * @param temp    nova temperatura
+     */
+    public void temperatureChanged(String domain, String devName, float temp) {
+        Set<Subscriber> subscribers = byDomain.get(domain);
+        if (subscribers == null) {
+            return;
+        }
+        for (Subscriber subscriber : subscribers) {
+            subscriber.changed(domain, devName, temp);
+            dirty.add(subscriber);
+        }
+    }
+
+    /**
+     * Método que cria as notificações das alterações acumuladas desde o último intervalo
+     */
+    private void flushChanges() {
+        for (Subscriber subscriber : dirty) {
+            dirty.remove(subscriber);
+            try {
+                subscriber.flush();
+            } catch (RuntimeException e) {
+                System.err.println("Error sending notifications: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Método que termina a thread das notificações
+     */
+    public synchronized void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+}
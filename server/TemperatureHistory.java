@@ -0,0 +1,616 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Classe que representa o histórico das temperaturas registadas pelos dispositivos (ET).
+ *
+ * Cada dispositivo tem um chunk aberto em memória (GorillaChunk) onde são acrescentadas as
+ * leituras. Quando o chunk atinge CHUNK_MAX_POINTS pontos ou cobre CHUNK_SPAN ms é fechado e
+ * acrescentado ao segmento ativo, um ficheiro append-only em que cada registo tem o formato
+ * [int tamanho][int crc32][nome do dispositivo][long primeiro ts][long último ts]
+ * [int número de pontos][bytes do chunk].
+ * Os segmentos são lidos através de MappedByteBuffers e o índice dos chunks de cada
+ * dispositivo é reconstruído no arranque.
+ *
+ * Os chunks abertos são guardados no ficheiro OPEN_CHUNKS em cada snapshot do servidor
+ * (checkpoint). O ficheiro é append-only: cada checkpoint acrescenta (com o mesmo formato de
+ * registo dos segmentos) só os chunks abertos dos dispositivos com leituras novas desde o
+ * checkpoint anterior, e o ficheiro só é reescrito com todos os chunks abertos quando o que foi
+ * acrescentado ultrapassa o tamanho da última reescrita. No arranque os registos são lidos por
+ * ordem e reaplicados com restore, que ignora os pontos que já fazem parte do histórico, tal
+ * como as leituras posteriores ao snapshot, que estão no write-ahead log.
+ *
+ * Os segmentos cujas leituras são todas mais antigas que o período de retenção são apagados
+ * no checkpoint.
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class TemperatureHistory {
+
+    private static final String SEGMENT_PREFIX = "history-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String OPEN_CHUNKS = "open.bin";
+    private static final int OPEN_CHUNKS_MAGIC = 0x496F5448;
+    private static final int OPEN_CHUNKS_LOG_MAGIC = 0x496F5449;
+    private static final long OPEN_CHUNKS_MIN_REWRITE = 1024 * 1024;
+
+    private static final int CHUNK_MAX_POINTS = 3600;
+    private static final long CHUNK_SPAN = 60 * 60 * 1000L;
+    private static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * Ficheiro de segmento do histórico
+     */
+    private static final class Segment {
+        private final long id;
+        private final Path path;
+        private volatile long size;
+        private volatile long maxTimestamp = Long.MIN_VALUE;
+        private MappedByteBuffer mapped;
+
+        private Segment(long id, Path path, long size) {
+            this.id = id;
+            this.path = path;
+            this.size = size;
+        }
+
+        /**
+         * Devolve o conteúdo do segmento mapeado em memória, pelo menos até ao byte end
+         */
+        private synchronized ByteBuffer map(long end) throws IOException {
+            if (mapped == null || mapped.capacity() < end) {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.max(end, channel.size()));
+                }
+            }
+            return mapped.duplicate();
+        }
+    }
+
+    /**
+     * Referência para um chunk fechado dentro de um segmento
+     */
+    private static final class ChunkRef {
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+        private final int count;
+        private final long firstTimestamp;
+        private final long lastTimestamp;
+
+        private ChunkRef(Segment segment, long offset, int length, int count, long firstTimestamp,
+                long lastTimestamp) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.count = count;
+            this.firstTimestamp = firstTimestamp;
+            this.lastTimestamp = lastTimestamp;
+        }
+    }
+
+    /**
+     * Histórico de um dispositivo. O acesso é sincronizado no próprio objeto
+     */
+    private static final class Series {
+        private final List<ChunkRef> sealed = new ArrayList<>();
+        private GorillaChunk open;
+        private long lastTimestamp = Long.MIN_VALUE;
+        // leituras novas desde o último checkpoint
+        private boolean changed;
+    }
+
+    private final Path dir;
+    private final ConcurrentHashMap<String, Series> series = new ConcurrentHashMap<>();
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private volatile long retention;
+
+    private Segment active;
+    private FileChannel activeChannel;
+
+    // estado do ficheiro OPEN_CHUNKS, só usado pelo checkpoint (uma thread de cada vez)
+    private boolean rewriteOpenChunks = true;
+    private long openChunksSize;
+    private long openChunksRewritten;
+
+    /**
+     * Construtor privado, o histórico é aberto com open
+     */
+    private TemperatureHistory(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Método que abre o histórico guardado na diretoria indicada, reconstruindo o índice
+     * a partir dos segmentos e carregando os chunks abertos do último checkpoint
+     *
+     * @param dir diretoria do histórico
+     * @return histórico aberto
+     * @throws IOException se não for possível ler ou criar os segmentos
+     */
+    public static TemperatureHistory open(String dir) throws IOException {
+        TemperatureHistory history = new TemperatureHistory(Paths.get(dir));
+        Files.createDirectories(history.dir);
+        for (long id : listSegments(history.dir)) {
+            history.loadSegment(id);
+        }
+        history.openActiveSegment();
+        history.loadOpenChunks();
+        return history;
+    }
+
+    /**
+     * Lê os registos de um segmento para o índice. Um registo incompleto ou com o crc errado
+     * (escrita interrompida por uma falha) termina o segmento, que é truncado nesse ponto
+     */
+    private void loadSegment(long id) throws IOException {
+        Path path = segmentPath(dir, id);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            Segment segment = new Segment(id, path, size);
+            ByteBuffer buffer = segment.map(size);
+            long valid = 0;
+            while (valid + RECORD_HEADER_SIZE <= size) {
+                int length = buffer.getInt((int) valid);
+                int crc = buffer.getInt((int) valid + 4);
+                long bodyAt = valid + RECORD_HEADER_SIZE;
+                if (length <= 0 || bodyAt + length > size) {
+                    break;
+                }
+                ByteBuffer body = buffer.duplicate();
+                body.position((int) bodyAt).limit((int) (bodyAt + length));
+                CRC32 crc32 = new CRC32();
+                crc32.update(body.duplicate());
+                if ((int) crc32.getValue() != crc) {
+                    break;
+                }
+                indexRecord(segment, body);
+                valid = bodyAt + length;
+            }
+            if (valid < size) {
+                System.err.println("Truncating damaged history segment " + path.getFileName());
+                channel.truncate(valid);
+                segment.mapped = null;
+                segment.size = valid;
+            }
+            segments.add(segment);
+        }
+    }
+
+    private void indexRecord(Segment segment, ByteBuffer body) {
+        byte[] name = new byte[body.getInt()];
+        body.get(name);
+        long first = body.getLong();
+        long last = body.getLong();
+        int count = body.getInt();
+        int length = body.getInt();
+        ChunkRef ref = new ChunkRef(segment, body.position(), length, count, first, last);
+
+        Series s = series.computeIfAbsent(new String(name, StandardCharsets.UTF_8), n -> new Series());
+        s.sealed.add(ref);
+        s.lastTimestamp = Math.max(s.lastTimestamp, last);
+        segment.maxTimestamp = Math.max(segment.maxTimestamp, last);
+    }
+
+    private void openActiveSegment() throws IOException {
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last == null || last.size >= MAX_SEGMENT_SIZE) {
+            last = new Segment(last == null ? 1 : last.id + 1, segmentPath(dir, last == null ? 1 : last.id + 1), 0);
+            segments.add(last);
+        }
+        active = last;
+        activeChannel = FileChannel.open(last.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Carrega os chunks abertos. O primeiro checkpoint reescreve o ficheiro, por isso um
+     * registo incompleto no fim (checkpoint interrompido por uma falha) é só ignorado
+     */
+    private void loadOpenChunks() {
+        Path path = dir.resolve(OPEN_CHUNKS);
+        if (!Files.exists(path)) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            int magic = buffer.remaining() >= 4 ? buffer.getInt() : 0;
+            if (magic == OPEN_CHUNKS_MAGIC) {
+                // formato antigo, todos os chunks abertos num único bloco
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array(), 4,
+                        buffer.remaining()));
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) {
+                    String name = in.readUTF();
+                    int count = in.readInt();
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    GorillaChunk.decode(ByteBuffer.wrap(data), data.length, count,
+                            (timestamp, value) -> restore(name, timestamp, value));
+                }
+                return;
+            }
+            if (magic != OPEN_CHUNKS_LOG_MAGIC) {
+                System.err.println("Invalid open chunks file");
+                return;
+            }
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                int length = buffer.getInt();
+                int crc = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                ByteBuffer body = buffer.slice();
+                body.limit(length);
+                buffer.position(buffer.position() + length);
+                CRC32 crc32 = new CRC32();
+                crc32.update(body.duplicate());
+                if ((int) crc32.getValue() != crc) {
+                    break;
+                }
+                byte[] name = new byte[body.getInt()];
+                body.get(name);
+                String devName = new String(name, StandardCharsets.UTF_8);
+                int count = body.getInt();
+                int dataLength = body.getInt();
+                GorillaChunk.decode(body, dataLength, count, (timestamp, value) -> restore(devName, timestamp, value));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error loading open history chunks: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Método que define o período de retenção do histórico
+     *
+     * @param retention período de retenção em ms, 0 para guardar todo o histórico
+     */
+    public void setRetention(long retention) {
+        this.retention = retention;
+    }
+
+    /**
+     * Método que acrescenta uma leitura com o instante em que foi feita (ETB) ao histórico de
+     * um dispositivo. Os timestamps de cada dispositivo são estritamente crescentes, por isso
+     * uma leitura que não seja posterior à última leitura do dispositivo não é registada
+     *
+     * @param devName   nome do dispositivo (user_id:dev_id)
+     * @param timestamp instante da leitura, em ms
+     * @param value     temperatura lida
+     * @return true se a leitura foi registada
+     */
+    public boolean append(String devName, long timestamp, float value) {
+        Series s = series.computeIfAbsent(devName, n -> new Series());
+        synchronized (s) {
+            if (timestamp <= s.lastTimestamp) {
+                return false;
+            }
+            add(devName, s, timestamp, value);
+            return true;
+        }
+    }
+
+    /**
+     * Método que acrescenta uma leitura com o instante em que o servidor a recebeu (ET) ao
+     * histórico de um dispositivo. Se houver uma leitura do dispositivo no mesmo ms (ou
+     * depois), a leitura fica registada no ms seguinte a essa
+     *
+     * @param devName   nome do dispositivo (user_id:dev_id)
+     * @param timestamp instante em que a leitura foi recebida, em ms
+     * @param value     temperatura lida
+     * @return timestamp com que a leitura ficou registada
+     */
+    public long appendReceived(String devName, long timestamp, float value) {
+        Series s = series.computeIfAbsent(devName, n -> new Series());
+        synchronized (s) {
+            if (s.lastTimestamp != Long.MIN_VALUE && timestamp <= s.lastTimestamp) {
+                timestamp = s.lastTimestamp + 1;
+            }
+            add(devName, s, timestamp, value);
+            return timestamp;
+        }
+    }
+
+    /**
+     * Método que reaplica uma leitura já registada (write-ahead log ou checkpoint). As leituras
+     * que já fazem parte do histórico não têm efeito
+     *
+     * @param devName   nome do dispositivo (user_id:dev_id)
+     * @param timestamp instante da leitura, em ms
+     * @param value     temperatura lida
+     */
+    public void restore(String devName, long timestamp, float value) {
+        Series s = series.computeIfAbsent(devName, n -> new Series());
+        synchronized (s) {
+            if (timestamp > s.lastTimestamp) {
+                add(devName, s, timestamp, value);
+            }
+        }
+    }
+
+    private void add(String devName, Series s, long timestamp, float value) {
+        if (s.open != null && (s.open.getCount() >= CHUNK_MAX_POINTS
+                || timestamp - s.open.getFirstTimestamp() >= CHUNK_SPAN)) {
+            seal(devName, s);
+        }
+        if (s.open == null) {
+            s.open = new GorillaChunk();
+        }
+        s.open.append(timestamp, value);
+        s.lastTimestamp = timestamp;
+        s.changed = true;
+    }
+
+    /**
+     * Fecha o chunk aberto de um dispositivo e escreve-o no segmento ativo. Se a escrita
+     * falhar o chunk continua aberto e é guardado no próximo checkpoint
+     */
+    private void seal(String devName, Series s) {
+        GorillaChunk chunk = s.open;
+        byte[] name = devName.getBytes(StandardCharsets.UTF_8);
+        byte[] data = chunk.toByteArray();
+        int length = 4 + name.length + 8 + 8 + 4 + 4 + data.length;
+
+        ByteBuffer body = ByteBuffer.allocate(length);
+        body.putInt(name.length).put(name).putLong(chunk.getFirstTimestamp()).putLong(chunk.getLastTimestamp())
+                .putInt(chunk.getCount()).putInt(data.length).put(data).flip();
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(length).putInt((int) crc.getValue()).flip();
+
+        try {
+            ChunkRef ref = writeRecord(header, body, length - data.length, data.length, chunk);
+            s.sealed.add(ref);
+            s.open = null;
+        } catch (IOException e) {
+            System.err.println("Error writing history chunk: " + e.getMessage());
+        }
+    }
+
+    private synchronized ChunkRef writeRecord(ByteBuffer header, ByteBuffer body, int dataOffset, int dataLength,
+            GorillaChunk chunk) throws IOException {
+        if (active.size >= MAX_SEGMENT_SIZE) {
+            rollSegment();
+        }
+        Segment segment = active;
+        long offset = segment.size;
+        ByteBuffer[] buffers = { header, body };
+        long remaining = header.remaining() + body.remaining();
+        while (remaining > 0) {
+            remaining -= activeChannel.write(buffers);
+        }
+        segment.size = offset + RECORD_HEADER_SIZE + dataOffset + dataLength;
+        segment.maxTimestamp = Math.max(segment.maxTimestamp, chunk.getLastTimestamp());
+        return new ChunkRef(segment, offset + RECORD_HEADER_SIZE + dataOffset, dataLength, chunk.getCount(),
+                chunk.getFirstTimestamp(), chunk.getLastTimestamp());
+    }
+
+    private void rollSegment() throws IOException {
+        activeChannel.force(false);
+        activeChannel.close();
+        long id = active.id + 1;
+        Segment next = new Segment(id, segmentPath(dir, id), 0);
+        activeChannel = FileChannel.open(next.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        segments.add(next);
+        active = next;
+    }
+
+    /**
+     * Método que lê as leituras de um dispositivo num intervalo de tempo, por ordem
+     *
+     * @param devName  nome do dispositivo (user_id:dev_id)
+     * @param from     início do intervalo, em ms (inclusive)
+     * @param to       fim do intervalo, em ms (inclusive)
+     * @param consumer função chamada com cada leitura
+     * @throws IOException se não for possível ler um segmento
+     */
+    public void query(String devName, long from, long to, GorillaChunk.PointConsumer consumer) throws IOException {
+        Series s = series.get(devName);
+        if (s == null) {
+            return;
+        }
+        List<ChunkRef> refs = new ArrayList<>();
+        byte[] openData = null;
+        int openCount = 0;
+        synchronized (s) {
+            for (ChunkRef ref : s.sealed) {
+                if (ref.lastTimestamp >= from && ref.firstTimestamp <= to) {
+                    refs.add(ref);
+                }
+            }
+            if (s.open != null && s.open.getLastTimestamp() >= from && s.open.getFirstTimestamp() <= to) {
+                openData = s.open.toByteArray();
+                openCount = s.open.getCount();
+            }
+        }
+
+        GorillaChunk.PointConsumer filter = (timestamp, value) -> {
+            if (timestamp >= from && timestamp <= to) {
+                consumer.accept(timestamp, value);
+            }
+        };
+        for (ChunkRef ref : refs) {
+            ByteBuffer buffer = ref.segment.map(ref.offset + ref.length);
+            buffer.position((int) ref.offset);
+            GorillaChunk.decode(buffer, ref.length, ref.count, filter);
+        }
+        if (openData != null) {
+            GorillaChunk.decode(ByteBuffer.wrap(openData), openData.length, openCount, filter);
+        }
+    }
+
+    /**
+     * Método que torna o histórico durável até ao momento: faz fsync do segmento ativo,
+     * guarda os chunks abertos e apaga os segmentos fora do período de retenção
+     *
+     * @return true se o checkpoint foi guardado
+     */
+    public boolean checkpoint() {
+        try {
+            synchronized (this) {
+                activeChannel.force(false);
+            }
+        } catch (IOException e) {
+            System.err.println("Error syncing history segment: " + e.getMessage());
+            return false;
+        }
+        if (!saveOpenChunks()) {
+            return false;
+        }
+        applyRetention();
+        return true;
+    }
+
+    /**
+     * Guarda os chunks abertos alterados desde o último checkpoint, acrescentando-os ao
+     * ficheiro OPEN_CHUNKS, ou reescreve o ficheiro com todos os chunks abertos (no primeiro
+     * checkpoint, depois de uma falha ou quando o ficheiro cresceu demasiado)
+     */
+    private boolean saveOpenChunks() {
+        boolean rewrite = rewriteOpenChunks
+                || openChunksSize - openChunksRewritten > Math.max(openChunksRewritten, OPEN_CHUNKS_MIN_REWRITE);
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (Map.Entry<String, Series> entry : series.entrySet()) {
+            Series s = entry.getValue();
+            synchronized (s) {
+                if (s.open != null && (rewrite || s.changed)) {
+                    writeOpenChunk(records, entry.getKey(), s.open);
+                }
+                s.changed = false;
+            }
+        }
+
+        Path path = dir.resolve(OPEN_CHUNKS);
+        try {
+            if (rewrite) {
+                Path tmp = dir.resolve(OPEN_CHUNKS + ".tmp");
+                ByteBuffer header = ByteBuffer.allocate(4);
+                header.putInt(OPEN_CHUNKS_LOG_MAGIC).flip();
+                writeFully(tmp, header, ByteBuffer.wrap(records.toByteArray()), StandardOpenOption.TRUNCATE_EXISTING);
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                openChunksSize = 4 + records.size();
+                openChunksRewritten = openChunksSize;
+                rewriteOpenChunks = false;
+            } else if (records.size() > 0) {
+                writeFully(path, ByteBuffer.allocate(0), ByteBuffer.wrap(records.toByteArray()),
+                        StandardOpenOption.APPEND);
+                openChunksSize += records.size();
+            }
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error saving open history chunks: " + e.getMessage());
+            // os dispositivos alterados já foram marcados como guardados e o fim do ficheiro
+            // pode ter ficado incompleto, o próximo checkpoint reescreve-o
+            rewriteOpenChunks = true;
+            return false;
+        }
+    }
+
+    private static void writeOpenChunk(ByteArrayOutputStream records, String devName, GorillaChunk chunk) {
+        byte[] name = devName.getBytes(StandardCharsets.UTF_8);
+        byte[] data = chunk.toByteArray();
+        int length = 4 + name.length + 4 + 4 + data.length;
+        ByteBuffer body = ByteBuffer.allocate(length);
+        body.putInt(name.length).put(name).putInt(chunk.getCount()).putInt(data.length).put(data).flip();
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(length).putInt((int) crc.getValue());
+        records.write(header.array(), 0, RECORD_HEADER_SIZE);
+        records.write(body.array(), 0, length);
+    }
+
+    private static void writeFully(Path path, ByteBuffer header, ByteBuffer data, OpenOption mode)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                mode)) {
+            ByteBuffer[] buffers = { header, data };
+            long remaining = header.remaining() + data.remaining();
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Apaga os segmentos (exceto o ativo) cujas leituras são todas anteriores ao período de retenção
+     */
+    private void applyRetention() {
+        long keep = retention;
+        if (keep <= 0) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - keep;
+        for (Segment segment : segments) {
+            if (segment == active || segment.maxTimestamp >= cutoff) {
+                continue;
+            }
+            for (Series s : series.values()) {
+                synchronized (s) {
+                    Iterator<ChunkRef> it = s.sealed.iterator();
+                    while (it.hasNext()) {
+                        if (it.next().segment == segment) {
+                            it.remove();
+                        }
+                    }
+                }
+            }
+            segments.remove(segment);
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                System.err.println("Error deleting history segment " + segment.path.getFileName());
+            }
+        }
+    }
+
+    /**
+     * Método que fecha o segmento ativo
+     */
+    public synchronized void close() {
+        try {
+            activeChannel.force(false);
+            activeChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing history segment");
+        }
+    }
+
+    private static Path segmentPath(Path dir, long id) {
+        return dir.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private static List<Long> listSegments(Path dir) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path p : stream) {
+                String name = p.getFileName().toString();
+                try {
+                    ids.add(Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // ficheiro que não é um segmento
+                }
+            }
+        }
+        ids.sort(null);
+        return ids;
+    }
+}
@@ -0,0 +1,300 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Classe que representa um log append-only (write-ahead log) dividido em segmentos.
+ *
+ * Os registos são escritos por uma thread dedicada que junta todos os registos pendentes
+ * num só lote e faz um único fsync por lote (group commit). Com append quem regista fica à
+ * espera que o seu lote esteja em disco; com appendAsync recebe uma CompletableFuture
+ * concluída nesse momento (front end NIO, que não pode bloquear). Em ambos os casos a
+ * resposta ao cliente só é enviada quando a alteração já é durável. Os lotes são escritos
+ * pela ordem dos registos, por isso quando um registo está em disco também estão todos os
+ * registados antes dele.
+ *
+ * Cada registo tem o formato [int tamanho][int crc32][corpo]. Um registo incompleto ou
+ * com o crc errado (escrita interrompida por uma falha) termina a leitura do segmento.
+ * O conteúdo do corpo é definido por quem usa o log (ver SharedInfoSingleton).
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class WriteAheadLog {
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MAX_BATCH = 4096;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Registo à espera de ser escrito
+     */
+    private static final class PendingRecord {
+        private final byte[] body;
+        private final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        private PendingRecord(byte[] body) {
+            this.body = body;
+        }
+    }
+
+    private final Path dir;
+    private final LinkedBlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>();
+    private final ReentrantLock segmentLock = new ReentrantLock();
+    private final Thread writer;
+
+    private FileChannel channel;
+    private long segment;
+    private volatile boolean running = true;
+
+    /**
+     * Construtor do WriteAheadLog. Abre um segmento novo, a seguir aos segmentos existentes
+     * (que devem ter sido lidos antes com replay)
+     *
+     * @param dir diretoria dos segmentos
+     * @throws IOException se não for possível criar o segmento
+     */
+    public WriteAheadLog(String dir) throws IOException {
+        this.dir = Paths.get(dir);
+        Files.createDirectories(this.dir);
+        List<Long> existing = listSegments(this.dir);
+        this.segment = existing.isEmpty() ? 1 : existing.get(existing.size() - 1) + 1;
+        this.channel = openSegment(segment);
+
+        this.writer = new Thread(this::writeLoop, "wal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Método que lê, por ordem, todos os registos dos segmentos existentes
+     *
+     * @param dir      diretoria dos segmentos
+     * @param consumer função chamada com o corpo de cada registo
+     * @return número de registos lidos
+     */
+    public static long replay(String dir, Consumer<byte[]> consumer) {
+        Path path = Paths.get(dir);
+        if (!Files.isDirectory(path)) {
+            return 0;
+        }
+        long count = 0;
+        try {
+            for (long seq : listSegments(path)) {
+                try (DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(Files.newInputStream(segmentPath(path, seq))))) {
+                    byte[] body;
+                    while ((body = readRecord(in)) != null) {
+                        consumer.accept(body);
+                        count++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error replaying write-ahead log: " + e.getMessage());
+        }
+        return count;
+    }
+
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int crc = in.readInt();
+            if (length < 0 || length > MAX_RECORD_SIZE) {
+                return null;
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            return crc32(body) == crc ? body : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Método que acrescenta um registo ao log e espera que este esteja em disco
+     *
+     * @param body corpo do registo
+     * @throws IOException se o registo não puder ser escrito
+     */
+    public void append(byte[] body) throws IOException {
+        try {
+            appendAsync(body).join();
+        } catch (CompletionException e) {
+            throw new IOException("Error writing to write-ahead log", e.getCause());
+        }
+    }
+
+    /**
+     * Método que acrescenta um registo ao log sem esperar que este seja escrito
+     *
+     * @param body corpo do registo
+     * @return CompletableFuture concluída quando o registo estiver em disco, ou concluída
+     *         com um erro se não puder ser escrito
+     */
+    public CompletableFuture<Void> appendAsync(byte[] body) {
+        PendingRecord record = new PendingRecord(body);
+        if (!running) {
+            record.durable.completeExceptionally(new IOException("Write-ahead log is closed"));
+            return record.durable;
+        }
+        queue.add(record);
+        return record.durable;
+    }
+
+    private void writeLoop() {
+        List<PendingRecord> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingRecord first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingRecord> batch) {
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            byte[] body = batch.get(i).body;
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + body.length);
+            buffer.putInt(body.length).putInt(crc32(body)).put(body).flip();
+            buffers[i] = buffer;
+        }
+
+        segmentLock.lock();
+        try {
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+            channel.force(false);
+            for (PendingRecord record : batch) {
+                record.durable.complete(null);
+            }
+        } catch (IOException e) {
+            for (PendingRecord record : batch) {
+                record.durable.completeExceptionally(e);
+            }
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+    /**
+     * Método que fecha o segmento atual e passa a escrever num segmento novo. Os registos
+     * dos segmentos fechados podem ser apagados depois de guardado um snapshot do estado
+     *
+     * @return número do último segmento fechado
+     * @throws IOException se não for possível criar o segmento novo
+     */
+    public long rotate() throws IOException {
+        segmentLock.lock();
+        try {
+            FileChannel next = openSegment(segment + 1);
+            channel.close();
+            channel = next;
+            return segment++;
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+    /**
+     * Método que apaga os segmentos até ao segmento indicado (inclusive)
+     *
+     * @param lastSegment último segmento a apagar
+     */
+    public void deleteSegmentsUpTo(long lastSegment) {
+        try {
+            for (long seq : listSegments(dir)) {
+                if (seq <= lastSegment) {
+                    Files.deleteIfExists(segmentPath(dir, seq));
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error deleting write-ahead log segments: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Método que escreve os registos pendentes e fecha o log
+     */
+    public void close() {
+        running = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        PendingRecord late;
+        while ((late = queue.poll()) != null) {
+            late.durable.completeExceptionally(new IOException("Write-ahead log is closed"));
+        }
+        segmentLock.lock();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing write-ahead log");
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+    private FileChannel openSegment(long seq) throws IOException {
+        return FileChannel.open(segmentPath(dir, seq), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private static Path segmentPath(Path dir, long seq) {
+        return dir.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+    }
+
+    private static List<Long> listSegments(Path dir) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path p : stream) {
+                String name = p.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // ficheiro que não é um segmento
+                }
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private static int crc32(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,323 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Classe que codifica as mensagens num formato binário compacto (versão 1).
+ *
+ * Formato do payload:
+ *  - 1 byte com o opcode do comando (0 = sem comando, OTHER_COMMAND = comando em string)
+ *  - varint com a máscara dos campos presentes
+ *  - os campos presentes, pela ordem dos bits da máscara. As strings e os arrays de bytes
+ *    são precedidos do seu tamanho em varint, os longs são varints zigzag e a temperatura
+ *    é enviada como um float de 4 bytes sempre que for um número válido.
+ *
+ * Os opcodes e os códigos de mensagem são identificados pela sua posição, por isso novos
+ * comandos e novos MessageCode devem ser sempre acrescentados no fim.
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public final class BinaryMessageCodec implements MessageCodec {
+
+    /**
+     * Instância partilhada, o codec não tem estado
+     */
+    public static final BinaryMessageCodec INSTANCE = new BinaryMessageCodec();
+
+    private static final String[] COMMANDS = {
+        null, "CREATE", "ADD", "RD", "ET", "EI", "RT", "RI", "EXIT", "RH", "RTS", "EIB", "EIC", "EIE", "ETB",
+        "SUBSCRIBE", "UNSUBSCRIBE", "PUSH"
+    };
+    private static final int OTHER_COMMAND = 0xFF;
+
+    private static final MessageCode[] CODES = MessageCode.values();
+
+    private static final int F_CODE = 1;
+    private static final int F_COMMAND = 1 << 1;
+    private static final int F_DATA = 1 << 2;
+    private static final int F_FILE_NAME = 1 << 3;
+    private static final int F_SIZE = 1 << 4;
+    private static final int F_DOMAIN = 1 << 5;
+    private static final int F_USER = 1 << 6;
+    private static final int F_PASSWORD = 1 << 7;
+    private static final int F_DEV_ID = 1 << 8;
+    private static final int F_TEMP_FLOAT = 1 << 9;
+    private static final int F_TEMP_STRING = 1 << 10;
+    private static final int F_FROM = 1 << 11;
+    private static final int F_TO = 1 << 12;
+    private static final int F_INTERVAL = 1 << 13;
+    private static final int F_VERSION = 1 << 14;
+    private static final int F_REVISION = 1 << 15;
+    private static final int F_REQUEST_ID = 1 << 16;
+
+    /**
+     * Construtor privado, deve ser usada a instância partilhada
+     */
+    private BinaryMessageCodec() {
+    }
+
+    @Override
+    public byte getId() {
+        return BINARY_V1;
+    }
+
+    @Override
+    public byte[] encode(Message msg) {
+        int opcode = opcodeOf(msg.getCommand());
+        Float tempValue = parseTemp(msg.getTemp());
+
+        int fields = 0;
+        fields |= msg.getCode() != null ? F_CODE : 0;
+        fields |= opcode == OTHER_COMMAND ? F_COMMAND : 0;
+        fields |= msg.getData() != null ? F_DATA : 0;
+        fields |= msg.getFileName() != null ? F_FILE_NAME : 0;
+        fields |= msg.getSize() != null ? F_SIZE : 0;
+        fields |= msg.getDomain() != null ? F_DOMAIN : 0;
+        fields |= msg.getUser() != null ? F_USER : 0;
+        fields |= msg.getPassword() != null ? F_PASSWORD : 0;
+        fields |= msg.getDevId() != null ? F_DEV_ID : 0;
+        if (msg.getTemp() != null) {
+            fields |= tempValue != null ? F_TEMP_FLOAT : F_TEMP_STRING;
+        }
+        fields |= msg.getFrom() != null ? F_FROM : 0;
+        fields |= msg.getTo() != null ? F_TO : 0;
+        fields |= msg.getInterval() != null ? F_INTERVAL : 0;
+        fields |= msg.getVersion() != null ? F_VERSION : 0;
+        fields |= msg.getRevision() != null ? F_REVISION : 0;
+        fields |= msg.getRequestId() != null ? F_REQUEST_ID : 0;
+
+        int dataLength = msg.getData() != null ? msg.getData().length : 0;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 + dataLength);
+        out.write(opcode);
+        writeVarInt(out, fields);
+
+        if ((fields & F_CODE) != 0) {
+            out.write(msg.getCode().ordinal());
+        }
+        if ((fields & F_COMMAND) != 0) {
+            writeString(out, msg.getCommand());
+        }
+        if ((fields & F_DATA) != 0) {
+            writeVarInt(out, dataLength);
+            out.write(msg.getData(), 0, dataLength);
+        }
+        if ((fields & F_FILE_NAME) != 0) {
+            writeString(out, msg.getFileName());
+        }
+        if ((fields & F_SIZE) != 0) {
+            writeVarLong(out, msg.getSize());
+        }
+        if ((fields & F_DOMAIN) != 0) {
+            writeString(out, msg.getDomain());
+        }
+        if ((fields & F_USER) != 0) {
+            writeString(out, msg.getUser());
+        }
+        if ((fields & F_PASSWORD) != 0) {
+            writeString(out, msg.getPassword());
+        }
+        if ((fields & F_DEV_ID) != 0) {
+            writeString(out, msg.getDevId());
+        }
+        if ((fields & F_TEMP_FLOAT) != 0) {
+            int bits = Float.floatToRawIntBits(tempValue);
+            out.write(bits >>> 24);
+            out.write(bits >>> 16);
+            out.write(bits >>> 8);
+            out.write(bits);
+        }
+        if ((fields & F_TEMP_STRING) != 0) {
+            writeString(out, msg.getTemp());
+        }
+        if ((fields & F_FROM) != 0) {
+            writeVarLong(out, msg.getFrom());
+        }
+        if ((fields & F_TO) != 0) {
+            writeVarLong(out, msg.getTo());
+        }
+        if ((fields & F_INTERVAL) != 0) {
+            writeVarLong(out, msg.getInterval());
+        }
+        if ((fields & F_VERSION) != 0) {
+            writeVarLong(out, msg.getVersion());
+        }
+        if ((fields & F_REVISION) != 0) {
+            writeVarLong(out, msg.getRevision());
+        }
+        if ((fields & F_REQUEST_ID) != 0) {
+            writeVarLong(out, msg.getRequestId());
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public Message decode(byte[] payload) throws IOException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(payload);
+            Message msg = new Message();
+
+            int opcode = in.get() & 0xFF;
+            if (opcode != OTHER_COMMAND) {
+                if (opcode >= COMMANDS.length) {
+                    throw new IOException("Unknown opcode: " + opcode);
+                }
+                msg.setCommand(COMMANDS[opcode]);
+            }
+            int fields = readVarInt(in);
+
+            if ((fields & F_CODE) != 0) {
+                int code = in.get() & 0xFF;
+                if (code >= CODES.length) {
+                    throw new IOException("Unknown message code: " + code);
+                }
+                msg.setCode(CODES[code]);
+            }
+            if ((fields & F_COMMAND) != 0) {
+                msg.setCommand(readString(in));
+            }
+            if ((fields & F_DATA) != 0) {
+                byte[] data = new byte[readLength(in)];
+                in.get(data);
+                msg.setData(data);
+            }
+            if ((fields & F_FILE_NAME) != 0) {
+                msg.setFileName(readString(in));
+            }
+            if ((fields & F_SIZE) != 0) {
+                msg.setSize(readVarLong(in));
+            }
+            if ((fields & F_DOMAIN) != 0) {
+                msg.setDomain(readString(in));
+            }
+            if ((fields & F_USER) != 0) {
+                msg.setUser(readString(in));
+            }
+            if ((fields & F_PASSWORD) != 0) {
+                msg.setPassword(readString(in));
+            }
+            if ((fields & F_DEV_ID) != 0) {
+                msg.setDevId(readString(in));
+            }
+            if ((fields & F_TEMP_FLOAT) != 0) {
+                msg.setTemp(Float.toString(in.getFloat()));
+            }
+            if ((fields & F_TEMP_STRING) != 0) {
+                msg.setTemp(readString(in));
+            }
+            if ((fields & F_FROM) != 0) {
+                msg.setFrom(readVarLong(in));
+            }
+            if ((fields & F_TO) != 0) {
+                msg.setTo(readVarLong(in));
+            }
+            if ((fields & F_INTERVAL) != 0) {
+                msg.setInterval(readVarLong(in));
+            }
+            if ((fields & F_VERSION) != 0) {
+                msg.setVersion(readVarLong(in));
+            }
+            if ((fields & F_REVISION) != 0) {
+                msg.setRevision(readVarLong(in));
+            }
+            if ((fields & F_REQUEST_ID) != 0) {
+                msg.setRequestId(readVarLong(in));
+            }
+            return msg;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated message payload", e);
+        }
+    }
+
+    private static int opcodeOf(String command) {
+        if (command == null) {
+            return 0;
+        }
+        for (int i = 1; i < COMMANDS.length; i++) {
+            if (COMMANDS[i].equals(command)) {
+                return i;
+            }
+        }
+        return OTHER_COMMAND;
+    }
+
+    /**
+     * Método que converte a temperatura num float, se for um número válido.
+     * As temperaturas inválidas são enviadas como string para o servidor responder NOK.
+     */
+    private static Float parseTemp(String temp) {
+        if (temp == null) {
+            return null;
+        }
+        try {
+            return Float.parseFloat(temp);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readLength(in);
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    private static int readLength(ByteBuffer in) {
+        int length = readVarInt(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+        return length;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.write((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.write((int) zigzag);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
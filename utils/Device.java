@@ -2,8 +2,9 @@
 public class Device {
 
     private final String name;
-    private Float lastTemp;
-    private boolean isOn;
+    // lidos sem lock pelos pedidos e pelos backups
+    private volatile Float lastTemp;
+    private volatile boolean isOn;
 
     /**
      * Construtor para o objeto Device
@@ -1,10 +1,18 @@
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Classe que representa um dominio
  * 
+ * Os membros do dominio são guardados em mapas imutáveis que são substituídos (copy-on-write)
+ * sempre que um membro é adicionado. As leituras e os backups não precisam de lock e vêem
+ * sempre um conjunto de membros consistente, mesmo com ADD e RD a decorrer em paralelo.
+ * 
  * @author Martim Pereira fc58223
  * @author João Pereira fc58189
  * @author Daniel Nunes fc58257
@@ -13,8 +21,48 @@ public class Domain {
 
     private final String name;
     private User owner;
-    private List<User> users;
-    private List<Device> devices;
+    // membros indexados por id do utilizador e por nome do dispositivo (user_id:dev_id),
+    // por ordem de inserção
+    private volatile Map<String, User> users;
+    private volatile Map<String, Device> devices;
+    private final DomainStats stats = new DomainStats();
+
+    /**
+     * Versão dos dados de temperatura do dominio, incrementada quando um dispositivo do
+     * dominio regista uma temperatura ou um dispositivo é adicionado ao dominio, e a resposta
+     * do RT codificada para essa versão
+     */
+    private final AtomicLong dataVersion = new AtomicLong();
+    private volatile Temperatures temperatures;
+
+    /**
+     * Resposta do RT codificada para uma versão dos dados do dominio
+     */
+    public static final class Temperatures {
+        private final long version;
+        private final byte[] data;
+        private final long tag;
+
+        private Temperatures(long version, byte[] data) {
+            this.version = version;
+            this.data = data;
+            this.tag = data == null ? 0 : Utils.contentTag(data);
+        }
+
+        /**
+         * @return array de bytes com as temperaturas ou null se nenhum dispositivo tiver temperatura
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return identificador do conteúdo (ver Utils.contentTag), enviado ao cliente como versão
+         */
+        public long getTag() {
+            return tag;
+        }
+    }
 
     /**
      * Construtor de um dominio
@@ -24,16 +72,16 @@ public class Domain {
     public Domain(String name, User owner) {
         this.name = name;
         this.owner = owner;
-        this.users = new ArrayList<>();
-        this.devices = new ArrayList<>();
+        this.users = Collections.emptyMap();
+        this.devices = Collections.emptyMap();
     }
 
     /**
-     * Metodo que retorna a lista de dispositivos
-     * @return Lista de dispositivos
+     * Metodo que retorna os dispositivos do dominio
+     * @return Dispositivos do dominio no momento da chamada (não modificável)
      */
-    public List<Device> getDevices() {
-        return devices;
+    public Collection<Device> getDevices() {
+        return devices.values();
     }
 
     /**
@@ -45,27 +93,94 @@ public class Domain {
     }
 
     /**
-     * Metodo que retorna a lista de utilizadores
-     * @return Lista de utilizadores
+     * Metodo que retorna os utilizadores do dominio
+     * @return Utilizadores do dominio no momento da chamada (não modificável)
      */
-    public List<User> getUsers() {
-        return users;
+    public Collection<User> getUsers() {
+        return users.values();
     }
 
     /**
      * @param user User que vai ser adicionado ao dominio
-     * @ensures this.users.contains(user)
+     * @ensures this.hasUser(user.getUserId())
+     * @return true se o user ainda não era membro do dominio
      */
-    public void addUser(User user) {
-        this.users.add(user);
+    public synchronized boolean addUser(User user) {
+        if (users.containsKey(user.getUserId())) {
+            return false;
+        }
+        Map<String, User> copy = new LinkedHashMap<>(users);
+        copy.put(user.getUserId(), user);
+        users = Collections.unmodifiableMap(copy);
+        return true;
     }
 
     /**
      * Metodo que adiciona um dispositivo ao dominio
      * @param Device O device a ser adicionado
+     * @return true se o dispositivo ainda não estava no dominio
      */
-    public void registerDevice(Device device) {
-        this.devices.add(device);
+    public synchronized boolean registerDevice(Device device) {
+        if (devices.containsKey(device.getDevName())) {
+            return false;
+        }
+        Map<String, Device> copy = new LinkedHashMap<>(devices);
+        copy.put(device.getDevName(), device);
+        devices = Collections.unmodifiableMap(copy);
+        dataVersion.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Metodo que indica que a temperatura de um dos dispositivos do dominio mudou
+     */
+    public void temperatureChanged() {
+        dataVersion.incrementAndGet();
+    }
+
+    /**
+     * Metodo que retorna a versão dos dados de temperatura do dominio
+     * @return Versão dos dados de temperatura
+     */
+    public long getDataVersion() {
+        return dataVersion.get();
+    }
+
+    /**
+     * Metodo que retorna as últimas temperaturas dos dispositivos do dominio, codificadas
+     * como na resposta do RT (ver Utils.hashMapToByteArray). O resultado é guardado e
+     * partilhado por todos os pedidos até à próxima alteração dos dados do dominio, por isso
+     * o array devolvido não deve ser alterado
+     * 
+     * @return temperaturas codificadas e o identificador do seu conteúdo
+     */
+    public Temperatures getTemperatures() {
+        // a versão é lida antes de percorrer os dispositivos: uma alteração feita durante a
+        // construção invalida o resultado no pedido seguinte
+        long version = dataVersion.get();
+        Temperatures cached = temperatures;
+        if (cached != null && cached.version == version) {
+            return cached;
+        }
+
+        HashMap<String, Float> temps = new HashMap<>();
+        for (Device device : devices.values()) {
+            Float temp = device.getTemp();
+            if (temp != null) {
+                temps.put(device.getDevName(), temp);
+            }
+        }
+        Temperatures result = new Temperatures(version, temps.isEmpty() ? null : Utils.hashMapToByteArray(temps));
+        temperatures = result;
+        return result;
+    }
+
+    /**
+     * Metodo que retorna os agregados das temperaturas do dominio
+     * @return Agregados das temperaturas
+     */
+    public DomainStats getStats() {
+        return stats;
     }
 
     /**
@@ -90,12 +205,7 @@ public class Domain {
      * @return True se o user é membro do dominio e False caso contrário
      */
     public boolean hasUser(String user) {
-        for (User u : users) {
-            if (u.getUserId().equals(user)) {
-                return true;
-            }
-        }
-        return false;
+        return user != null && users.containsKey(user);
     }
 
     /**
@@ -104,17 +214,12 @@ public class Domain {
      * @return True se o dispositivo está na lista e False caso contrário
      */
     public boolean hasDevice(String name) {
-        for (Device d : this.devices) {
-            if (d.getDevName().equals(name)) {
-                return true;
-            }
-        }
-        return false;
+        return name != null && devices.containsKey(name);
     }
 
     @Override
     public String toString() {
-        return name + ";" + owner + ";" + devices.toString() + ";" + users.toString();
+        return name + ";" + owner + ";" + devices.values() + ";" + users.values();
     }
 
     @Override
@@ -0,0 +1,89 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Classe que mede o custo da resposta do RT de um dominio com muitos dispositivos (ver
+ * Domain.getTemperatures):
+ *  - rebuild: os dados do dominio mudaram e a resposta é codificada de novo, que era o
+ *    custo de todos os RT antes da resposta ser guardada
+ *  - cached: os dados não mudaram e a resposta guardada é devolvida, com uma thread e com
+ *    várias threads a ler o mesmo dominio
+ *
+ * Formato: java -cp IoTServer.jar DomainBenchmark [devices] [threads] [seconds]
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class DomainBenchmark {
+
+    private static volatile long sink;
+
+    /**
+     * Método main do benchmark
+     * @param args número de dispositivos do dominio (10000), de threads (8) e segundos de
+     *             cada medição (5)
+     * @throws InterruptedException se a thread for interrompida enquanto espera pelas outras
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        long seconds = args.length > 2 ? Long.parseLong(args[2]) : 5;
+
+        User owner = new User("bench", "bench");
+        Domain domain = new Domain("bench", owner);
+        for (int i = 0; i < devices; i++) {
+            domain.registerDevice(new Device("bench" + (i % 100) + ":d" + i, true, 15 + (i % 150) / 10f));
+        }
+        System.out.printf("Domain with %d devices, RT payload %d bytes%n", devices,
+                domain.getTemperatures().getData().length);
+
+        // aquecimento do JIT
+        measure(domain, true, TimeUnit.SECONDS.toNanos(1));
+        measure(domain, false, TimeUnit.SECONDS.toNanos(1));
+
+        long nanos = TimeUnit.SECONDS.toNanos(seconds);
+        double[] rebuild = measure(domain, true, nanos);
+        System.out.printf("rebuild:            %,12.0f ns/RT  (%,.0f RT/s)%n", rebuild[0], rebuild[1]);
+        double[] cached = measure(domain, false, nanos);
+        System.out.printf("cached, 1 thread:   %,12.1f ns/RT  (%,.0f RT/s)%n", cached[0], cached[1]);
+
+        AtomicLong calls = new AtomicLong();
+        Thread[] readers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            readers[i] = new Thread(() -> calls.addAndGet((long) (measure(domain, false, nanos)[1] * seconds)));
+            readers[i].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("cached, %d threads: %,.0f RT/s in total (%d CPUs)%n", threads,
+                calls.get() / elapsed, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Método que chama getTemperatures durante o tempo pedido
+     *
+     * @return custo médio de cada chamada em ns e número de chamadas por segundo
+     */
+    private static double[] measure(Domain domain, boolean changed, long nanos) {
+        long calls = 0;
+        long tags = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (int i = 0; i < 64; i++) {
+                if (changed) {
+                    domain.temperatureChanged();
+                }
+                tags += domain.getTemperatures().getTag();
+            }
+            calls += 64;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < nanos);
+        sink += tags;
+        return new double[] { (double) elapsed / calls, calls * 1e9 / elapsed };
+    }
+}
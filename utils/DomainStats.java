@@ -0,0 +1,157 @@
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Classe que representa os agregados das temperaturas de um dominio, atualizados a cada
+ * temperatura registada (ET) por um dos seus dispositivos, para que o resumo do dominio
+ * (RTS) não tenha de percorrer todos os dispositivos.
+ *
+ * São mantidos, sobre a última temperatura de cada dispositivo, o número de dispositivos
+ * com temperatura, a soma (para a média) e um multiconjunto ordenado dos valores (para o
+ * mínimo e o máximo). A soma é compensada (Kahan-Neumaier), para que somar e subtrair
+ * milhões de temperaturas não acumule erro de arredondamento. É também mantida uma média
+ * móvel exponencial (EWMA) de todas as temperaturas recebidas, com decaimento só no tempo:
+ * é a média das leituras pesada por exp(-idade / EWMA_WINDOW), em que a idade é medida a
+ * partir da leitura mais recente. O peso não depende do número de leituras, por isso:
+ *  - as leituras com o mesmo instante contam todas o mesmo (entram na média desse instante)
+ *  - uma leitura mais antiga do que a última (ex: lotes ETB) entra com o peso da sua idade
+ *  - o ritmo das leituras não encurta a janela
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class DomainStats {
+
+    /**
+     * Janela da média móvel exponencial, em ms
+     */
+    public static final long EWMA_WINDOW = 5 * 60 * 1000L;
+
+    /**
+     * Tamanho do resumo codificado por toByteArray
+     */
+    public static final int SUMMARY_SIZE = 4 + 4 * 4 + 8;
+
+    private final Map<String, Float> current = new HashMap<>();
+    private final TreeMap<Float, Integer> values = new TreeMap<>();
+    private double sum;
+    private double sumError;
+    private double ewma = Double.NaN;
+    // soma dos pesos das leituras da EWMA, no instante lastUpdate
+    private double ewmaWeight;
+    private long lastUpdate;
+
+    /**
+     * Método que atualiza os agregados com uma nova temperatura de um dispositivo
+     *
+     * @param devName   nome do dispositivo (user_id:dev_id)
+     * @param temp      temperatura recebida
+     * @param timestamp instante da leitura, em ms
+     */
+    public synchronized void update(String devName, float temp, long timestamp) {
+        setCurrent(devName, temp);
+        if (!Float.isFinite(temp)) {
+            return;
+        }
+        if (Double.isNaN(ewma)) {
+            ewma = temp;
+            ewmaWeight = 1;
+            lastUpdate = timestamp;
+            return;
+        }
+        double weight = 1;
+        if (timestamp > lastUpdate) {
+            // as leituras anteriores envelhecem até ao instante desta
+            ewmaWeight *= Math.exp(-(timestamp - lastUpdate) / (double) EWMA_WINDOW);
+            lastUpdate = timestamp;
+        } else if (timestamp < lastUpdate) {
+            weight = Math.exp(-(lastUpdate - timestamp) / (double) EWMA_WINDOW);
+        }
+        ewmaWeight += weight;
+        ewma += weight / ewmaWeight * (temp - ewma);
+    }
+
+    /**
+     * Método que define a última temperatura de um dispositivo sem a contar como uma nova
+     * leitura (dispositivo que entra no dominio ou estado carregado no arranque). As
+     * temperaturas que não são números finitos não entram nos agregados
+     *
+     * @param devName nome do dispositivo (user_id:dev_id)
+     * @param temp    última temperatura do dispositivo
+     */
+    public synchronized void setCurrent(String devName, float temp) {
+        Float old = Float.isFinite(temp) ? current.put(devName, temp) : current.remove(devName);
+        if (old != null) {
+            remove(old);
+        }
+        if (Float.isFinite(temp)) {
+            values.merge(temp, 1, Integer::sum);
+            add(temp);
+            if (Double.isNaN(ewma)) {
+                ewma = temp;
+            }
+        }
+    }
+
+    private void remove(float temp) {
+        values.computeIfPresent(temp, (t, n) -> n == 1 ? null : n - 1);
+        if (values.isEmpty()) {
+            sum = 0;
+            sumError = 0;
+        } else {
+            add(-temp);
+        }
+    }
+
+    /**
+     * Método que soma um valor à soma compensada: sumError guarda o que se perde por
+     * arredondamento em cada operação
+     */
+    private void add(double value) {
+        double total = sum + value;
+        if (Math.abs(sum) >= Math.abs(value)) {
+            sumError += (sum - total) + value;
+        } else {
+            sumError += (value - total) + sum;
+        }
+        sum = total;
+    }
+
+    /**
+     * Método que devolve o número de dispositivos com temperatura
+     *
+     * @return número de dispositivos com temperatura
+     */
+    public synchronized int getCount() {
+        return current.size();
+    }
+
+    /**
+     * Método que codifica o resumo do dominio (big-endian):
+     * [int número de dispositivos com temperatura][float mínimo][float máximo][float média]
+     * [float EWMA][long instante da última leitura]
+     *
+     * @return array de bytes com o resumo ou null se nenhum dispositivo tiver temperatura
+     */
+    public synchronized byte[] toByteArray() {
+        if (current.isEmpty()) {
+            return null;
+        }
+        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(SUMMARY_SIZE);
+                DataOutputStream out = new DataOutputStream(bos)) {
+            out.writeInt(current.size());
+            out.writeFloat(values.firstKey());
+            out.writeFloat(values.lastKey());
+            out.writeFloat((float) ((sum + sumError) / current.size()));
+            out.writeFloat((float) ewma);
+            out.writeLong(lastUpdate);
+            out.flush();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
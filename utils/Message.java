@@ -23,6 +23,21 @@ public class Message implements Serializable{
 
     private String temp;
 
+    // intervalo de tempo (ms) e tamanho dos buckets (ms) das consultas ao histórico
+    private Long from;
+    private Long to;
+    private Long interval;
+
+    // versão dos dados que o cliente já tem (pedidos condicionais) ou dos dados enviados
+    private Long version;
+
+    // número da versão guardada de uma imagem (RI de uma versão anterior ou versão enviada)
+    private Long revision;
+
+    // identificador do pedido, repetido na resposta, para o cliente associar as respostas
+    // aos pedidos quando envia vários pedidos sem esperar pelas respostas (pipelining)
+    private Long requestId;
+
     /**
      * Construtor de uma mensagem vazia
      */
@@ -42,6 +57,8 @@ public class Message implements Serializable{
      * 
      * @ensures this.code == null && this.data == null && this.fileName == null && this.size == null
      *       && this.domain == null && this.user == null && this.dev_id == null && this.temp == null
+     *       && this.from == null && this.to == null && this.interval == null && this.version == null
+     *       && this.revision == null && this.requestId == null
      */
     public void clear() {
         this.code = null;
@@ -54,6 +71,13 @@ public class Message implements Serializable{
         this.user = null;
         this.dev_id = null;
         this.temp = null;
+
+        this.from = null;
+        this.to = null;
+        this.interval = null;
+        this.version = null;
+        this.revision = null;
+        this.requestId = null;
         
     }
 
@@ -98,6 +122,30 @@ public class Message implements Serializable{
         return this.command;
     }
 
+    public Long getFrom() {
+        return this.from;
+    }
+
+    public Long getTo() {
+        return this.to;
+    }
+
+    public Long getInterval() {
+        return this.interval;
+    }
+
+    public Long getVersion() {
+        return this.version;
+    }
+
+    public Long getRevision() {
+        return this.revision;
+    }
+
+    public Long getRequestId() {
+        return this.requestId;
+    }
+
     // ------------------------- Setters ------------------------- //
     public void setCode(MessageCode code) {
         this.code = code;
@@ -138,6 +186,30 @@ public class Message implements Serializable{
     public void setCommand(String command) {
         this.command = command;
     }
+
+    public void setFrom(Long from) {
+        this.from = from;
+    }
+
+    public void setTo(Long to) {
+        this.to = to;
+    }
+
+    public void setInterval(Long interval) {
+        this.interval = interval;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    public void setRevision(Long revision) {
+        this.revision = revision;
+    }
+
+    public void setRequestId(Long requestId) {
+        this.requestId = requestId;
+    }
     
     
 }
@@ -0,0 +1,65 @@
+import java.io.IOException;
+
+/**
+ * Interface que representa um formato de codificação das mensagens dentro de um frame.
+ * O formato a usar numa ligação é negociado pelo cliente e pelo servidor no início da ligação
+ * (ver MessageFrames.clientHandshake e MessageFrames.serverHandshake).
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public interface MessageCodec {
+
+    /**
+     * Identificador do formato de serialização Java da classe Message
+     */
+    byte SERIALIZED = 0;
+
+    /**
+     * Identificador da versão 1 do formato binário compacto
+     */
+    byte BINARY_V1 = 1;
+
+    /**
+     * Método que devolve o identificador do formato, enviado na negociação
+     *
+     * @return identificador do formato
+     */
+    byte getId();
+
+    /**
+     * Método que converte uma mensagem no payload de um frame
+     *
+     * @param msg mensagem a converter
+     * @return array de bytes com a mensagem codificada
+     * @throws IOException se ocorrer um erro na codificação
+     */
+    byte[] encode(Message msg) throws IOException;
+
+    /**
+     * Método que converte o payload de um frame numa mensagem
+     *
+     * @param payload array de bytes com a mensagem codificada
+     * @return mensagem descodificada
+     * @throws IOException se o payload não contiver uma mensagem válida
+     */
+    Message decode(byte[] payload) throws IOException;
+
+    /**
+     * Método que devolve o formato com o identificador indicado
+     *
+     * @param id identificador do formato
+     * @return o formato correspondente ou null se não for suportado
+     */
+    static MessageCodec forId(int id) {
+        switch (id) {
+            case SERIALIZED:
+                return SerializedMessageCodec.INSTANCE;
+            case BINARY_V1:
+                return BinaryMessageCodec.INSTANCE;
+            default:
+                return null;
+        }
+    }
+}
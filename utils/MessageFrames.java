@@ -0,0 +1,198 @@
+import java.io.*;
+
+/**
+ * Classe que contem os metodos static de enquadramento (framing) das mensagens trocadas
+ * entre o IoTDevice e o IoTServer.
+ *
+ * No início da ligação o cliente envia o HELLO (MAGIC, número de formatos e os identificadores
+ * dos MessageCodec que suporta, por ordem de preferência) e o servidor responde com o
+ * identificador do formato escolhido, ou NO_CODEC se não suportar nenhum.
+ *
+ * A partir daí cada mensagem é enviada como um frame independente: um int (4 bytes, big-endian)
+ * com o tamanho do payload seguido do payload codificado. Como cada frame é auto-contido, o
+ * servidor pode descodificar pedidos a partir de buffers parciais sem bloquear (front end NIO).
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public final class MessageFrames {
+
+    /**
+     * Número mágico que inicia o HELLO do cliente ("IoTD")
+     */
+    public static final int MAGIC = 0x496F5444;
+
+    /**
+     * Tamanho do início do HELLO (MAGIC e número de formatos)
+     */
+    public static final int HELLO_HEADER_SIZE = 5;
+
+    /**
+     * Resposta do servidor quando não suporta nenhum dos formatos do cliente
+     */
+    public static final byte NO_CODEC = -1;
+
+    /**
+     * Tamanho do cabeçalho de um frame (int com o tamanho do payload)
+     */
+    public static final int HEADER_SIZE = 4;
+
+    /**
+     * Tamanho máximo da imagem (EI) ou da parte de imagem (EIC) levada por uma mensagem.
+     * As imagens maiores são enviadas por partes (EIB, EIC e EIE)
+     */
+    public static final int MAX_IMAGE_DATA_SIZE = 1024 * 1024;
+
+    /**
+     * Tamanho máximo aceite para o payload de um pedido recebido pelo servidor. O maior
+     * pedido legítimo é uma imagem de MAX_IMAGE_DATA_SIZE bytes mais os restantes campos
+     * da mensagem; um frame maior é recusado antes de ser alocado
+     */
+    public static final int MAX_FRAME_SIZE = MAX_IMAGE_DATA_SIZE + 64 * 1024;
+
+    /**
+     * Tamanho máximo aceite para o payload de um frame antes de o cliente estar autenticado
+     * (utilizador, device id e executável)
+     */
+    public static final int MAX_AUTH_FRAME_SIZE = 4 * 1024;
+
+    /**
+     * Tamanho máximo aceite para o payload de uma resposta lida pelo cliente (ex: as
+     * temperaturas de um dominio com muitos dispositivos)
+     */
+    public static final int MAX_REPLY_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Constructor vazio para impedir inicializacao
+     */
+    private MessageFrames() {
+    }
+
+    /**
+     * Método que negoceia, do lado do cliente, o formato das mensagens
+     *
+     * @param in      stream de onde ler
+     * @param out     stream onde escrever
+     * @param offered formatos suportados pelo cliente, por ordem de preferência
+     * @return formato escolhido pelo servidor
+     * @throws IOException se o servidor não aceitar nenhum dos formatos
+     */
+    public static MessageCodec clientHandshake(DataInputStream in, DataOutputStream out, MessageCodec... offered)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(offered.length);
+        for (MessageCodec codec : offered) {
+            out.writeByte(codec.getId());
+        }
+        out.flush();
+
+        MessageCodec codec = MessageCodec.forId(in.readByte());
+        if (codec == null) {
+            throw new IOException("Server does not support any of the offered codecs");
+        }
+        return codec;
+    }
+
+    /**
+     * Método que negoceia, do lado do servidor, o formato das mensagens
+     *
+     * @param in  stream de onde ler
+     * @param out stream onde escrever
+     * @return formato escolhido
+     * @throws IOException se o HELLO for inválido ou nenhum formato for suportado
+     */
+    public static MessageCodec serverHandshake(DataInputStream in, DataOutputStream out) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Invalid protocol hello");
+        }
+        byte[] offered = new byte[in.readUnsignedByte()];
+        in.readFully(offered);
+
+        MessageCodec codec = selectCodec(offered);
+        out.writeByte(codec == null ? NO_CODEC : codec.getId());
+        out.flush();
+        if (codec == null) {
+            throw new IOException("No supported codec offered");
+        }
+        return codec;
+    }
+
+    /**
+     * Método que escolhe o primeiro formato suportado de entre os oferecidos pelo cliente
+     *
+     * @param offered identificadores dos formatos do cliente, por ordem de preferência
+     * @return formato escolhido ou null se nenhum for suportado
+     */
+    public static MessageCodec selectCodec(byte[] offered) {
+        for (byte id : offered) {
+            MessageCodec codec = MessageCodec.forId(id);
+            if (codec != null) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Método que escreve uma mensagem num frame e faz flush da stream
+     *
+     * @param out   stream onde escrever
+     * @param codec formato das mensagens da ligação
+     * @param msg   mensagem a escrever
+     * @throws IOException se ocorrer um erro de escrita
+     */
+    public static void write(DataOutputStream out, MessageCodec codec, Message msg) throws IOException {
+        writeFrame(out, codec, msg);
+        out.flush();
+    }
+
+    /**
+     * Método que escreve uma mensagem num frame sem fazer flush da stream, para que vários
+     * frames seguidos (pedidos ou respostas em pipelining) sejam enviados juntos
+     *
+     * @param out   stream onde escrever
+     * @param codec formato das mensagens da ligação
+     * @param msg   mensagem a escrever
+     * @throws IOException se ocorrer um erro de escrita
+     */
+    public static void writeFrame(DataOutputStream out, MessageCodec codec, Message msg) throws IOException {
+        byte[] payload = codec.encode(msg);
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    /**
+     * Método que lê um pedido (frame de até MAX_FRAME_SIZE bytes) e devolve a mensagem nele contida
+     *
+     * @param in    stream de onde ler
+     * @param codec formato das mensagens da ligação
+     * @return mensagem lida
+     * @throws IOException se ocorrer um erro de leitura, a ligação for fechada ou o frame
+     *                     for demasiado grande
+     */
+    public static Message read(DataInputStream in, MessageCodec codec) throws IOException {
+        return read(in, codec, MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Método que lê um frame e devolve a mensagem nele contida. O tamanho é verificado
+     * antes de ser alocado o buffer do payload
+     *
+     * @param in        stream de onde ler
+     * @param codec     formato das mensagens da ligação
+     * @param maxLength tamanho máximo aceite para o payload
+     * @return mensagem lida
+     * @throws IOException se ocorrer um erro de leitura, a ligação for fechada ou o frame
+     *                     for demasiado grande
+     */
+    public static Message read(DataInputStream in, MessageCodec codec, int maxLength) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return codec.decode(payload);
+    }
+}
@@ -0,0 +1,47 @@
+import java.io.*;
+
+/**
+ * Classe que codifica as mensagens com a serialização Java da classe Message
+ * (formato original do protocolo)
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public final class SerializedMessageCodec implements MessageCodec {
+
+    /**
+     * Instância partilhada, o codec não tem estado
+     */
+    public static final SerializedMessageCodec INSTANCE = new SerializedMessageCodec();
+
+    /**
+     * Construtor privado, deve ser usada a instância partilhada
+     */
+    private SerializedMessageCodec() {
+    }
+
+    @Override
+    public byte getId() {
+        return SERIALIZED;
+    }
+
+    @Override
+    public byte[] encode(Message msg) throws IOException {
+        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(msg);
+            oos.flush();
+            return bos.toByteArray();
+        }
+    }
+
+    @Override
+    public Message decode(byte[] payload) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            return (Message) ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Invalid message payload", e);
+        }
+    }
+}
@@ -1,5 +1,8 @@
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.util.*;
 
 /**
@@ -71,7 +74,7 @@ public final class Utils {
      * @param exec_size O tamanho do executavel
      * @return OK_TESTED se o executavel ja foi testado, NOK_TESTED se o executavel nao foi testado
      */
-    public synchronized static MessageCode checkExec(String exec_name, String exec_size) {
+    public static MessageCode checkExec(String exec_name, String exec_size) {
 
         try (BufferedReader br = new BufferedReader(new FileReader("localInfo.txt"))) {
             String line;
@@ -147,20 +150,32 @@ public final class Utils {
      * @param fileName ficheiro a ser lido
      * @return array de bytes com o conteúdo do ficheiro ou null caso ocorra um erro
      */
-    public static synchronized byte[] getFileContents(String fileName) {
+    public static byte[] getFileContents(String fileName) {
 
-        try (FileInputStream fis = new FileInputStream(fileName)) {
-            long fileSize = fis.available();
-            byte[] data = new byte[(int) fileSize];
-            fis.read(data);
-            return data;
-
-        } catch (IOException e) {
+        try {
+            return Files.readAllBytes(Paths.get(fileName));
+        } catch (IOException | InvalidPathException e) {
             System.err.println("Error in getFileContents: " + e.getMessage());
             return null;
         }
     }
 
+    /**
+     * Método que calcula um identificador (hash FNV-1a de 64 bits) do conteúdo de um array
+     * de bytes, usado como versão nos pedidos condicionais (RT e RI)
+     * 
+     * @param data array de bytes
+     * @return identificador do conteúdo
+     */
+    public static long contentTag(byte[] data) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : data) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
     /**
      * Método que converte um HashMap num array de bytes e envia o HashMap pela socket.
      * 
@@ -178,6 +193,32 @@ public final class Utils {
         }
     }
     
+    /**
+     * Método que converte um array de bytes (ver hashMapToByteArray) no HashMap das
+     * temperaturas dos dispositivos.
+     * 
+     * @param byteArray HashMap em formato de array de bytes
+     * @return HashMap com as temperaturas ou null se o array não tiver um HashMap
+     */
+    public static HashMap<String, Float> byteArrayToHashMap(byte[] byteArray) {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(byteArray))) {
+            Object object = ois.readObject();
+            if (!(object instanceof HashMap)) {
+                return null;
+            }
+            HashMap<String, Float> temps = new HashMap<>();
+            for (Map.Entry<?, ?> entry : ((HashMap<?, ?>) object).entrySet()) {
+                if (entry.getKey() instanceof String && entry.getValue() instanceof Float) {
+                    temps.put((String) entry.getKey(), (Float) entry.getValue());
+                }
+            }
+            return temps;
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Error in byteArrayToHashMap: " + e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * Método que escreve um array de bytes provenientes de um HashMap num ficheiro.
      * 